@@ -0,0 +1,261 @@
+/*
+ * Copyright (c) 2015, the IRMA Team
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ *
+ *  Redistributions of source code must retain the above copyright notice, this
+ *   list of conditions and the following disclaimer.
+ *
+ *  Redistributions in binary form must reproduce the above copyright notice,
+ *   this list of conditions and the following disclaimer in the documentation
+ *   and/or other materials provided with the distribution.
+ *
+ *  Neither the name of the IRMA project nor the names of its
+ *   contributors may be used to endorse or promote products derived from
+ *   this software without specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS"
+ * AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+ * IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE
+ * DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT HOLDER OR CONTRIBUTORS BE LIABLE
+ * FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL
+ * DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR
+ * SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER
+ * CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY,
+ * OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE
+ * OF THIS SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+
+package org.irmacard.credentials.idemix;
+
+import java.math.BigInteger;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.irmacard.credentials.idemix.util.Crypto;
+import org.irmacard.credentials.idemix.util.FixedBaseTables;
+
+/**
+ * A bounded cache of powers R_i^{m_i} of the generators of public keys, for
+ * attribute values m_i that occur often (such as metadata attributes or
+ * attributes that are constant for an issuer). When an instance is installed
+ * using {@link #setInstance(AttributePowerCache)}, it is used when computing
+ * R = prod R_i^{m_i} during signing and the disclosed part of disclosure proofs
+ * during verification, so that a repeated attribute costs a single
+ * multiplication instead of an exponentiation.
+ * <p>
+ * Entries are keyed on (modulus, generator, attribute value), which
+ * identifies the public key, the index of the generator and the attribute.
+ * The cache is split into a number of stripes, each of which is a
+ * synchronized LRU map, so that threads using different entries rarely
+ * contend. It records its hits and misses so that its size can be tuned.
+ */
+public class AttributePowerCache {
+	/** Default number of stripes */
+	public static final int DEFAULT_STRIPES = 16;
+
+	private static volatile AttributePowerCache instance;
+
+	private final Stripe[] stripes;
+	private final AtomicLong hits = new AtomicLong();
+	private final AtomicLong misses = new AtomicLong();
+
+	private static class Key {
+		final BigInteger modulus;
+		final BigInteger base;
+		final BigInteger exponent;
+		final int hash;
+
+		Key(BigInteger modulus, BigInteger base, BigInteger exponent) {
+			this.modulus = modulus;
+			this.base = base;
+			this.exponent = exponent;
+			this.hash = 31 * (31 * modulus.hashCode() + base.hashCode()) + exponent.hashCode();
+		}
+
+		@Override
+		public int hashCode() {
+			return hash;
+		}
+
+		@Override
+		public boolean equals(Object o) {
+			if (this == o)
+				return true;
+			if (!(o instanceof Key))
+				return false;
+
+			Key other = (Key) o;
+			return hash == other.hash && exponent.equals(other.exponent)
+					&& base.equals(other.base) && modulus.equals(other.modulus);
+		}
+	}
+
+	@SuppressWarnings("serial")
+	private static class Stripe extends LinkedHashMap<Key, BigInteger> {
+		private final int capacity;
+
+		Stripe(int capacity) {
+			super(16, 0.75f, true);
+			this.capacity = capacity;
+		}
+
+		@Override
+		protected boolean removeEldestEntry(Map.Entry<Key, BigInteger> eldest) {
+			return size() > capacity;
+		}
+	}
+
+	/**
+	 * Creates a cache holding at most (roughly) the given number of powers.
+	 */
+	public AttributePowerCache(int capacity) {
+		this(capacity, DEFAULT_STRIPES);
+	}
+
+	/**
+	 * Creates a cache holding at most (roughly) the given number of powers,
+	 * split into the given number of stripes.
+	 */
+	public AttributePowerCache(int capacity, int stripes) {
+		if (capacity < 1 || stripes < 1) {
+			throw new IllegalArgumentException("Capacity and number of stripes must be positive");
+		}
+
+		stripes = Math.min(stripes, capacity);
+		this.stripes = new Stripe[stripes];
+		for (int i = 0; i < stripes; i++) {
+			this.stripes[i] = new Stripe((capacity + stripes - 1) / stripes);
+		}
+	}
+
+	/**
+	 * Returns the cache that is currently in use, or null if attribute powers
+	 * are not cached (the default).
+	 */
+	public static AttributePowerCache getInstance() {
+		return instance;
+	}
+
+	/**
+	 * Installs the cache to be used from now on, or disables caching if null.
+	 */
+	public static void setInstance(AttributePowerCache cache) {
+		instance = cache;
+	}
+
+	/**
+	 * Returns base^exponent (mod modulus), from the cache if possible.
+	 */
+	public BigInteger modPow(BigInteger base, BigInteger exponent, BigInteger modulus) {
+		return modPow(base, exponent, modulus, null);
+	}
+
+	/**
+	 * Returns base^exponent (mod modulus), from the cache if possible, and
+	 * otherwise using the given fixed base tables where they apply.
+	 */
+	public BigInteger modPow(BigInteger base, BigInteger exponent, BigInteger modulus,
+			FixedBaseTables tables) {
+		Key key = new Key(modulus, base, exponent);
+		Stripe stripe = stripes[(key.hash & Integer.MAX_VALUE) % stripes.length];
+
+		BigInteger power;
+		synchronized (stripe) {
+			power = stripe.get(key);
+		}
+		if (power != null) {
+			hits.incrementAndGet();
+			return power;
+		}
+
+		// Compute outside of the lock; at worst two threads compute the same power
+		misses.incrementAndGet();
+		power = Crypto.multiExp(Collections.singletonList(base), Collections.singletonList(exponent),
+				modulus, tables);
+		synchronized (stripe) {
+			stripe.put(key, power);
+		}
+		return power;
+	}
+
+	/**
+	 * Computes the product bases[1]^{exps[1]}*...*bases[k]^{exps[k]} (mod modulus),
+	 * taking the powers from the cache if possible. Zero exponents are skipped.
+	 *
+	 * @throws RuntimeException if the number of bases and exponents differ
+	 */
+	public BigInteger multiExp(List<BigInteger> bases, List<BigInteger> exps, BigInteger modulus) {
+		return multiExp(bases, exps, modulus, null);
+	}
+
+	/**
+	 * Like {@link #multiExp(List, List, BigInteger)}, but computing the powers
+	 * that are not in the cache using the given fixed base tables where they
+	 * apply, so that exponents that are seldom repeated cost no more than
+	 * without a cache.
+	 */
+	public BigInteger multiExp(List<BigInteger> bases, List<BigInteger> exps, BigInteger modulus,
+			FixedBaseTables tables) {
+		if (bases.size() != exps.size()) {
+			throw new RuntimeException("Number of bases and exponents differ");
+		}
+
+		BigInteger result = BigInteger.ONE;
+		for (int i = 0; i < exps.size(); i++) {
+			if (exps.get(i).signum() != 0) {
+				result = result.multiply(modPow(bases.get(i), exps.get(i), modulus, tables)).mod(modulus);
+			}
+		}
+		return result;
+	}
+
+	/**
+	 * The number of powers currently in the cache.
+	 */
+	public int size() {
+		int size = 0;
+		for (Stripe stripe : stripes) {
+			synchronized (stripe) {
+				size += stripe.size();
+			}
+		}
+		return size;
+	}
+
+	/**
+	 * Removes all powers from the cache and resets the statistics.
+	 */
+	public void clear() {
+		for (Stripe stripe : stripes) {
+			synchronized (stripe) {
+				stripe.clear();
+			}
+		}
+		hits.set(0);
+		misses.set(0);
+	}
+
+	public long getHits() {
+		return hits.get();
+	}
+
+	public long getMisses() {
+		return misses.get();
+	}
+
+	/**
+	 * The fraction of lookups that was served from the cache, or 0 if there
+	 * have been none.
+	 */
+	public double getHitRate() {
+		long hits = getHits();
+		long total = hits + getMisses();
+		return total == 0 ? 0 : (double) hits / total;
+	}
+}
@@ -0,0 +1,167 @@
+/*
+ * Copyright (c) 2015, the IRMA Team
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ *
+ *  Redistributions of source code must retain the above copyright notice, this
+ *   list of conditions and the following disclaimer.
+ *
+ *  Redistributions in binary form must reproduce the above copyright notice,
+ *   this list of conditions and the following disclaimer in the documentation
+ *   and/or other materials provided with the distribution.
+ *
+ *  Neither the name of the IRMA project nor the names of its
+ *   contributors may be used to endorse or promote products derived from
+ *   this software without specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS"
+ * AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+ * IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE
+ * DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT HOLDER OR CONTRIBUTORS BE LIABLE
+ * FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL
+ * DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR
+ * SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER
+ * CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY,
+ * OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE
+ * OF THIS SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+
+package org.irmacard.credentials.idemix;
+
+import java.math.BigInteger;
+import java.util.ArrayList;
+import java.util.List;
+
+import org.irmacard.credentials.idemix.util.Crypto;
+
+/**
+ * Signs a number of blocks of messages and commitments at once using the same
+ * key pair, as happens when many issuance sessions against one issuer run
+ * concurrently. The resulting signatures are ordinary {@link CLSignature}s,
+ * indistinguishable from signatures made one at a time.
+ * <p>
+ * Batch RSA (Fiat) would extract all e-th roots using a single full-size
+ * exponentiation, but in order to do so it raises values to powers of
+ * (products of) the primes e; as these are almost 600 bits long, this costs
+ * more than the CRT root extraction it saves. Instead, we share the work that
+ * can be shared: the modular inversions of S^v * R * U for all signatures are
+ * replaced by a single one, and the tuples (v, S^v, e, e^{-1}) are taken from
+ * a {@link SigningTuplePool} if one is set, so that what remains per signature
+ * is computing R and one root extraction using the CRT.
+ */
+public class BatchCLSigner {
+	private final IdemixSecretKey sk;
+	private final IdemixPublicKey pk;
+	private SigningTuplePool signingTuplePool;
+	private boolean verifyAfterSign = false;
+
+	public BatchCLSigner(IdemixSecretKey sk, IdemixPublicKey pk) {
+		this.sk = sk;
+		this.pk = pk;
+	}
+
+	/**
+	 * Returns Camenisch-Lysyanskaya signatures on the commitments Us[i] and
+	 * blocks of messages mss[i], as
+	 * {@link CLSignature#signMessageBlockAndCommitment(IdemixSecretKey, IdemixPublicKey, BigInteger, List)}
+	 * would for each of them.
+	 *
+	 * @param Us
+	 *            the commitments
+	 * @param mss
+	 *            the blocks of messages, one for each commitment
+	 */
+	public List<CLSignature> signMessageBlocksAndCommitments(List<BigInteger> Us, List<List<BigInteger>> mss) {
+		List<SigningResult> results = signWithIntermediates(Us, mss);
+		List<CLSignature> signatures = new ArrayList<>(results.size());
+		for (SigningResult result : results) {
+			signatures.add(result.getSignature());
+		}
+		return signatures;
+	}
+
+	/**
+	 * Signs the commitments and blocks of messages as
+	 * {@link #signMessageBlocksAndCommitments(List, List)} does, returning the
+	 * signatures along with their intermediate values (see
+	 * {@link CLSignature#signWithIntermediates(IdemixSecretKey, IdemixPublicKey, BigInteger, List, SigningTuple, boolean)}).
+	 */
+	public List<SigningResult> signWithIntermediates(List<BigInteger> Us, List<List<BigInteger>> mss) {
+		if (Us.size() != mss.size()) {
+			throw new RuntimeException("Number of commitments and message blocks differ");
+		}
+
+		BigInteger n = pk.getModulus();
+		// Skip the first generator
+		List<BigInteger> Rs = pk.getGeneratorsR().subList(1, pk.getGeneratorsR().size());
+
+		int k = Us.size();
+		List<SigningTuple> tuples = new ArrayList<>(k);
+		List<BigInteger> R = new ArrayList<>(k);
+		List<BigInteger> numerators = new ArrayList<>(k);
+		for (int i = 0; i < k; i++) {
+			List<BigInteger> ms = mss.get(i);
+			if (Rs.size() < ms.size()) {
+				throw new RuntimeException("Not enough bases to represent exponents");
+			}
+
+			SigningTuple tuple = signingTuplePool != null ? signingTuplePool.take()
+					: SigningTuple.generate(sk, pk);
+			tuples.add(tuple);
+
+			// S^v * R * U, where R = prod R_i^{m_i}
+			R.add(CLSignature.representAttributes(pk, Rs, ms));
+			numerators.add(tuple.getSv().multiply(R.get(i)).multiply(Us.get(i)).mod(n));
+		}
+
+		List<BigInteger> inverses = Crypto.batchModInverse(numerators, n);
+
+		List<SigningResult> results = new ArrayList<>(k);
+		for (int i = 0; i < k; i++) {
+			BigInteger Q = pk.getGeneratorZ().multiply(inverses.get(i)).mod(n);
+			results.add(CLSignature.finishSignature(sk, pk, Us.get(i), R.get(i), Q, tuples.get(i), verifyAfterSign));
+		}
+
+		return results;
+	}
+
+	/**
+	 * Sets a pool of precomputed signing tuples to take from when signing, or
+	 * null (the default) to compute them when needed. The pool must have been
+	 * created for the same key pair as this signer.
+	 */
+	public void setSigningTuplePool(SigningTuplePool signingTuplePool) {
+		if (signingTuplePool != null && (signingTuplePool.getSecretKey() != sk
+				|| signingTuplePool.getPublicKey() != pk)) {
+			throw new IllegalArgumentException("Signing tuple pool belongs to a different key pair");
+		}
+		this.signingTuplePool = signingTuplePool;
+	}
+
+	public SigningTuplePool getSigningTuplePool() {
+		return signingTuplePool;
+	}
+
+	/**
+	 * Whether or not to check each signature using only public values before
+	 * returning it (default false). See
+	 * {@link CLSignature#signMessageBlockAndCommitment(IdemixSecretKey, IdemixPublicKey, BigInteger, List, boolean)}.
+	 */
+	public void setVerifyAfterSign(boolean verifyAfterSign) {
+		this.verifyAfterSign = verifyAfterSign;
+	}
+
+	public boolean getVerifyAfterSign() {
+		return verifyAfterSign;
+	}
+
+	public IdemixSecretKey getSecretKey() {
+		return sk;
+	}
+
+	public IdemixPublicKey getPublicKey() {
+		return pk;
+	}
+}
@@ -31,6 +31,9 @@
 package org.irmacard.credentials.idemix;
 
 import java.math.BigInteger;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
 import java.util.List;
 import java.security.SecureRandom;
 
@@ -100,37 +103,132 @@ public class CLSignature {
 	 *            a block of messages
 	 */
 	public static CLSignature signMessageBlockAndCommitment(IdemixSecretKey sk, IdemixPublicKey pk, BigInteger U, List<BigInteger> ms) {
+		return signMessageBlockAndCommitment(sk, pk, U, ms, false);
+	}
+
+	/**
+	 * Returns a Camenisch-Lysyanskaya signature using the public-private
+	 * key-pair (pk,sk) on the block of messages ms and the commitment U, as
+	 * {@link #signMessageBlockAndCommitment(IdemixSecretKey, IdemixPublicKey, BigInteger, List)}
+	 * does, optionally verifying the signature before returning it.
+	 *
+	 * @param sk
+	 *            an Idemix secret key
+	 * @param pk
+	 *            an Idemix public key
+	 * @param U
+	 *            commitment to a value that is to be included in the signature
+	 * @param ms
+	 *            a block of messages
+	 * @param verify
+	 *            whether to verify the signature using only public values before
+	 *            returning it. As we use the Chinese Remainder Theorem when signing,
+	 *            releasing a signature that was miscomputed due to a (hardware) fault
+	 *            could reveal the factorization of n.
+	 * @throws RuntimeException if verify is true and the signature does not verify
+	 */
+	public static CLSignature signMessageBlockAndCommitment(IdemixSecretKey sk, IdemixPublicKey pk, BigInteger U, List<BigInteger> ms, boolean verify) {
 		// Skip the first generator
 		List<BigInteger> Rs = pk.getGeneratorsR().subList(1, pk.getGeneratorsR().size());
-		return signMessageBlockAndCommitment(sk, pk, U, ms, Rs);
+		return signMessageBlockAndCommitment(sk, pk, U, ms, Rs, verify);
+	}
+
+	/**
+	 * Returns a Camenisch-Lysyanskaya signature using the public-private
+	 * key-pair (pk,sk) on the block of messages ms and the commitment U, as
+	 * {@link #signMessageBlockAndCommitment(IdemixSecretKey, IdemixPublicKey, BigInteger, List, boolean)}
+	 * does, using a precomputed tuple (v, S^v, e, e^{-1}). What remains to be
+	 * done is computing R = prod R_i^{m_i}, the quotient Q = Z / (S^v * R * U),
+	 * and the e-th root of Q.
+	 *
+	 * @param tuple
+	 *            a precomputed tuple that has not been used before, or null to
+	 *            generate one now
+	 */
+	public static CLSignature signMessageBlockAndCommitment(IdemixSecretKey sk, IdemixPublicKey pk, BigInteger U, List<BigInteger> ms, SigningTuple tuple, boolean verify) {
+		return signWithIntermediates(sk, pk, U, ms, tuple, verify).getSignature();
+	}
+
+	/**
+	 * Signs the block of messages ms and the commitment U as
+	 * {@link #signMessageBlockAndCommitment(IdemixSecretKey, IdemixPublicKey, BigInteger, List, SigningTuple, boolean)}
+	 * does, and additionally returns Q = A^e and e^{-1} mod p'q', which the
+	 * issuer needs for its proof of correctness of the signature (see
+	 * {@link IdemixIssuer#proveSignature(SigningResult, BigInteger)}).
+	 */
+	public static SigningResult signWithIntermediates(IdemixSecretKey sk, IdemixPublicKey pk, BigInteger U, List<BigInteger> ms, SigningTuple tuple, boolean verify) {
+		// Skip the first generator
+		List<BigInteger> Rs = pk.getGeneratorsR().subList(1, pk.getGeneratorsR().size());
+		return signWithIntermediates(sk, pk, U, ms, Rs, tuple, verify);
 	}
 
 	protected static CLSignature signMessageBlockAndCommitment(IdemixSecretKey sk, IdemixPublicKey pk, BigInteger U, List<BigInteger> ms, List<BigInteger> Rs) {
-		BigInteger n = pk.getModulus();
-		IdemixSystemParameters params = pk.getSystemParameters();
+		return signMessageBlockAndCommitment(sk, pk, U, ms, Rs, null, false);
+	}
 
-		BigInteger R = Crypto.representToBases(Rs, ms, n);
+	protected static CLSignature signMessageBlockAndCommitment(IdemixSecretKey sk, IdemixPublicKey pk, BigInteger U, List<BigInteger> ms, List<BigInteger> Rs, boolean verify) {
+		return signMessageBlockAndCommitment(sk, pk, U, ms, Rs, null, verify);
+	}
 
-		SecureRandom rnd = new SecureRandom();
+	protected static CLSignature signMessageBlockAndCommitment(IdemixSecretKey sk, IdemixPublicKey pk, BigInteger U, List<BigInteger> ms, List<BigInteger> Rs, SigningTuple tuple, boolean verify) {
+		return signWithIntermediates(sk, pk, U, ms, Rs, tuple, verify).getSignature();
+	}
 
-		BigInteger v_tilde = new BigInteger(params.l_v - 1, rnd);
-		BigInteger two_l_v = new BigInteger("2").pow(params.l_v - 1);
-		BigInteger v = two_l_v.add(v_tilde);
+	protected static SigningResult signWithIntermediates(IdemixSecretKey sk, IdemixPublicKey pk, BigInteger U, List<BigInteger> ms, List<BigInteger> Rs, SigningTuple tuple, boolean verify) {
+		BigInteger n = pk.getModulus();
+
+		if (Rs.size() < ms.size()) {
+			throw new RuntimeException("Not enough bases to represent exponents");
+		}
 
-		// Q = inv( S^v * R * U) * Z
-		BigInteger numerator = pk.getGeneratorS().modPow(v, n).multiply(R).multiply(U).mod(n);
+		if (tuple == null) {
+			tuple = SigningTuple.generate(sk, pk);
+		}
+
+		// Q = inv( S^v * R * U) * Z, where R = prod R_i^{m_i}
+		BigInteger R = representAttributes(pk, Rs, ms);
+		BigInteger numerator = tuple.getSv().multiply(R).multiply(U).mod(n);
 		BigInteger Q = pk.getGeneratorZ().multiply(numerator.modInverse(n)).mod(n);
 
-		BigInteger e = Crypto.probablyPrimeInBitRange(params.l_e - 1,
-				params.l_e_prime - 1);
+		return finishSignature(sk, pk, U, R, Q, tuple, verify);
+	}
+
+	/**
+	 * Computes R = prod R_i^{m_i}, using the {@link AttributePowerCache} if
+	 * one is installed.
+	 */
+	static BigInteger representAttributes(IdemixPublicKey pk, List<BigInteger> Rs, List<BigInteger> ms) {
+		AttributePowerCache cache = AttributePowerCache.getInstance();
+		if (cache != null) {
+			return cache.multiExp(Rs.subList(0, ms.size()), ms, pk.getModulus(), pk.getFixedBaseTables());
+		}
+		return Crypto.multiExp(Rs.subList(0, ms.size()), ms, pk.getModulus(), pk.getFixedBaseTables());
+	}
+
+	/**
+	 * Computes the signature A = Q^{1/e} given the quotient Q = Z / (S^v * R * U),
+	 * and checks it if so requested.
+	 */
+	static SigningResult finishSignature(IdemixSecretKey sk, IdemixPublicKey pk, BigInteger U, BigInteger R, BigInteger Q, SigningTuple tuple, boolean verify) {
+		BigInteger n = pk.getModulus();
+		BigInteger v = tuple.get_v();
+		BigInteger e = tuple.get_e();
 
+		// A = Q^{1/e}. For Q in QR_n this equals Q^{e^{-1} mod p'q'}.
 		// TODO: this is probably open to side channel attacks, maybe use a
 		// safe (raw) RSA signature?
-		BigInteger order = sk.get_p_prime_q_prime();
-		BigInteger e_inv = e.modInverse(order);
-		BigInteger A = Q.modPow(e_inv, n);
+		BigInteger A = sk.modRoot(Q, tuple.get_d_p(), tuple.get_d_q());
+
+		// Check that A^e * S^v * R * U = Z using only public values
+		if (verify) {
+			BigInteger Z = Crypto.multiExp(Arrays.asList(A, pk.getGeneratorS()), Arrays.asList(e, v),
+					n, pk.getFixedBaseTables()).multiply(R).multiply(U).mod(n);
+			if (!Z.equals(pk.getGeneratorZ())) {
+				throw new RuntimeException("Signature does not verify after signing");
+			}
+		}
 
-		return new CLSignature(A, e, v);
+		return new SigningResult(new CLSignature(A, e, v), Q, tuple.get_e_inverse());
 	}
 
 	public boolean verify(IdemixPublicKey pk, List<BigInteger> ms) {
@@ -145,15 +243,126 @@ public class CLSignature {
 			return false;
 		}
 
+		if (pk.getGeneratorsR().size() < ms.size()) {
+			throw new RuntimeException("Not enough bases to represent exponents");
+		}
+
 		// Q = A^e * R * S^v
-		BigInteger R = Crypto.representToBases(pk.getGeneratorsR(), ms, n);
-		BigInteger Ae = this.A.modPow(e, n);
-		BigInteger Sv = pk.getGeneratorS().modPow(this.v, n);
-		BigInteger Q = Ae.multiply(R).multiply(Sv).mod(n);
+		List<BigInteger> bases = new ArrayList<>(ms.size() + 2);
+		List<BigInteger> exps = new ArrayList<>(ms.size() + 2);
+		bases.add(this.A);
+		exps.add(this.e);
+		bases.add(pk.getGeneratorS());
+		exps.add(this.v);
+		bases.addAll(pk.getGeneratorsR().subList(0, ms.size()));
+		exps.addAll(ms);
+		BigInteger Q = Crypto.multiExp(bases, exps, n, pk.getFixedBaseTables());
 
 		return pk.getGeneratorZ().equals(Q);
 	}
 
+	/**
+	 * Verifies a number of signatures by the same key at once. It first
+	 * computes X_j = A_j^{e_j} for each signature, and then runs l_statzk
+	 * rounds in which it picks a random subset J of the signatures and checks
+	 * that PROD_{j in J} X_j * S^{SUM_J v_j} * PROD_i R_i^{SUM_J m_ij} equals
+	 * Z^{|J|}. Each round catches any non-empty set of invalid signatures
+	 * with probability at least 1/2, including errors by a factor of order
+	 * two (e.g. when A is replaced by n - A) that would cancel out in a single
+	 * random linear combination. So if one of the signatures is invalid, this
+	 * returns true with probability at most 2^{-l_statzk}.
+	 * <p>
+	 * A round costs one multi-exponentiation over the generators, so this is
+	 * only cheaper than {@link #verify(IdemixPublicKey, List)} on each
+	 * signature when there are more signatures than rounds. For smaller
+	 * batches the signatures are simply verified one by one.
+	 *
+	 * @param pk
+	 *            the public key of the signer
+	 * @param signatures
+	 *            the signatures
+	 * @param ms
+	 *            the blocks of messages, one for each signature
+	 * @return whether all signatures are (most likely) valid
+	 */
+	public static boolean verifyBatch(IdemixPublicKey pk, List<CLSignature> signatures,
+			List<List<BigInteger>> ms) {
+		if (signatures.size() != ms.size()) {
+			throw new RuntimeException("Number of signatures and message blocks differ");
+		}
+
+		IdemixSystemParameters params = pk.getSystemParameters();
+		int rounds = params.l_statzk;
+		if (signatures.size() <= rounds) {
+			for (int j = 0; j < signatures.size(); j++) {
+				if (!signatures.get(j).verify(pk, ms.get(j))) {
+					return false;
+				}
+			}
+			return true;
+		}
+
+		BigInteger n = pk.getModulus();
+		BigInteger start = Crypto.TWO.pow(params.l_e - 1);
+		BigInteger end = start.add(Crypto.TWO.pow(params.l_e_prime - 1));
+		SecureRandom rnd = new SecureRandom();
+
+		int count = 0;
+		for (List<BigInteger> block : ms) {
+			count = Math.max(count, block.size());
+		}
+		if (pk.getGeneratorsR().size() < count) {
+			throw new RuntimeException("Not enough bases to represent exponents");
+		}
+
+		BigInteger[] X = new BigInteger[signatures.size()];
+		for (int j = 0; j < signatures.size(); j++) {
+			CLSignature signature = signatures.get(j);
+			if (signature.e.compareTo(start) < 0 || signature.e.compareTo(end) > 0) {
+				System.out.println("Prime in signature out of range");
+				return false;
+			}
+			X[j] = signature.A.modPow(signature.e, n);
+		}
+
+		List<BigInteger> bases = new ArrayList<>(count + 1);
+		bases.add(pk.getGeneratorS());
+		bases.addAll(pk.getGeneratorsR().subList(0, count));
+		BigInteger[] exps = new BigInteger[count + 1];
+
+		for (int round = 0; round < rounds; round++) {
+			Arrays.fill(exps, BigInteger.ZERO);
+			BigInteger left = BigInteger.ONE;
+			int size = 0;
+
+			for (int j = 0; j < signatures.size(); j++) {
+				if (!rnd.nextBoolean()) {
+					continue;
+				}
+				left = left.multiply(X[j]).mod(n);
+				exps[0] = exps[0].add(signatures.get(j).v);
+				List<BigInteger> block = ms.get(j);
+				for (int i = 0; i < block.size(); i++) {
+					exps[i + 1] = exps[i + 1].add(block.get(i));
+				}
+				size++;
+			}
+			if (size == 0) {
+				continue;
+			}
+
+			left = left.multiply(Crypto.multiExp(bases, Arrays.asList(exps), n,
+					pk.getFixedBaseTables())).mod(n);
+			BigInteger right = Crypto.multiExp(Collections.singletonList(pk.getGeneratorZ()),
+					Collections.singletonList(BigInteger.valueOf(size)), n, pk.getFixedBaseTables());
+			if (!left.equals(right)) {
+				return false;
+			}
+		}
+
+		return true;
+	}
+
 	/**
 	 * A randomized copy of this signature. Does not modify the original.
 	 * @return A randomized copy of the original
@@ -165,7 +374,9 @@ public class CLSignature {
 		SecureRandom rnd = new SecureRandom();
 
 		BigInteger randomizer = new BigInteger(params.l_r_a, rnd);
-		BigInteger A_prime = A.multiply(pk.getGeneratorS().modPow(randomizer, n)).mod(n);
+		BigInteger Sr = Crypto.multiExp(Collections.singletonList(pk.getGeneratorS()),
+				Collections.singletonList(randomizer), n, pk.getFixedBaseTables());
+		BigInteger A_prime = A.multiply(Sr).mod(n);
 		BigInteger v_prime = v.subtract(e.multiply(randomizer));
 
 		return new CLSignature(A_prime, e, v_prime);
@@ -31,12 +31,22 @@
 package org.irmacard.credentials.idemix;
 
 import java.math.BigInteger;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.LinkedHashMap;
 import java.util.List;
+import java.util.Map;
 import java.security.SecureRandom;
 import java.util.Vector;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.Executor;
+import java.util.concurrent.ForkJoinPool;
 
 import org.irmacard.credentials.CredentialsException;
 import org.irmacard.credentials.idemix.messages.IssueCommitmentMessage;
+import org.irmacard.credentials.idemix.messages.IssueSignatureBundleMessage;
 import org.irmacard.credentials.idemix.messages.IssueSignatureMessage;
 import org.irmacard.credentials.idemix.proofs.ProofListBuilder;
 import org.irmacard.credentials.idemix.proofs.ProofU;
@@ -48,6 +58,15 @@ public class CredentialBuilder {
 	private BigInteger v_prime;
 	private BigInteger n_2;
 	private BigInteger U;
+	private HolderSecret holderSecret;
+
+	private Executor executor;
+
+	// Precomputed commitments, taken from the pool at most once
+	private ProofUCommitmentPool commitmentPool;
+	private ProofUCommitmentPool.Precomputation precomputation;
+	private boolean precomputationTaken = false;
+	private boolean precomputedCommitmentUsed = false;
 
 	// Immutable Input
 	private final IdemixPublicKey pk;
@@ -99,6 +118,20 @@ public class CredentialBuilder {
 		return new IssueCommitmentMessage(proofU, n_2);
 	}
 
+	/**
+	 * As {@link #commitToSecretAndProve(BigInteger, BigInteger)}, taking
+	 * R_0^s from the given holder secret context.
+	 */
+	public IssueCommitmentMessage commitToSecretAndProve(HolderSecret secret,
+			BigInteger nonce1) {
+		setSecret(secret);
+
+		ProofU proofU = proveCommitment(nonce1);
+		n_2 = createReceiverNonce();
+
+		return new IssueCommitmentMessage(proofU, n_2);
+	}
+
 	public IdemixCredential constructCredential(IssueSignatureMessage msg)
 			throws CredentialsException {
 		if (!msg.getProofS().verify(pk, msg.getSignature(), context, n_2)) {
@@ -107,16 +140,10 @@ public class CredentialBuilder {
 		}
 
 		// Construct actual signature
-		CLSignature psig = msg.getSignature();
-		CLSignature signature = new CLSignature(psig.getA(), psig.get_e(), psig
-				.get_v().add(v_prime));
+		CLSignature signature = completeSignature(msg);
 
 		// Verify signature
-		List<BigInteger> exponents = new Vector<>();
-		exponents.add(s);
-		exponents.addAll(attributes);
-
-		if (!signature.verify(pk, exponents)) {
+		if (!signature.verify(pk, getExponents())) {
 			throw new CredentialsException(
 					"Signature on the attributes is not correct");
 		}
@@ -124,9 +151,241 @@ public class CredentialBuilder {
 		return new IdemixCredential(pk, s, attributes, signature);
 	}
 
+	/**
+	 * Constructs the credentials from a bundle of signatures issued within one
+	 * session, verifying the single proof of correctness of all signatures
+	 * before verifying the signatures themselves. The builders must be the
+	 * ones whose commitments were sent to the issuer, in the same order; they
+	 * must share the public key, context and nonce n_2.
+	 *
+	 * @return the credentials, in the order of the builders
+	 * @throws CredentialsException if the proof or one of the signatures does
+	 *         not verify
+	 */
+	public static List<IdemixCredential> constructCredentials(List<CredentialBuilder> builders,
+			IssueSignatureBundleMessage msg) throws CredentialsException {
+		List<CLSignature> signatures = msg.getSignatures();
+		if (builders.isEmpty() || signatures == null || signatures.size() != builders.size()) {
+			throw new CredentialsException("Number of signatures does not match number of credentials");
+		}
+
+		CredentialBuilder first = builders.get(0);
+		for (CredentialBuilder builder : builders) {
+			if (!builder.pk.getModulus().equals(first.pk.getModulus()) || !builder.context.equals(first.context)
+					|| !builder.n_2.equals(first.n_2)) {
+				throw new IllegalArgumentException("Builders must share public key, context and nonce");
+			}
+		}
+
+		if (msg.getProofS() == null || !msg.getProofS().verify(first.pk, signatures, first.context, first.n_2)) {
+			throw new CredentialsException(
+					"The proof of correctness on the signatures does not verify");
+		}
+
+		List<IdemixCredential> credentials = new ArrayList<>(builders.size());
+		for (int i = 0; i < builders.size(); i++) {
+			CredentialBuilder builder = builders.get(i);
+			CLSignature signature = builder.completeSignature(signatures.get(i));
+			if (!signature.verify(builder.pk, builder.getExponents())) {
+				throw new CredentialsException(
+						"Signature on the attributes is not correct");
+			}
+			credentials.add(new IdemixCredential(builder.pk, builder.s, builder.attributes, signature));
+		}
+
+		return credentials;
+	}
+
+	/**
+	 * Constructs and verifies a number of credentials at once, e.g. a batch of
+	 * freshly issued credentials received by a wallet. The proofs of
+	 * correctness are verified concurrently on the given executor (or the
+	 * common pool if null), and so are the signatures: for each issuer key
+	 * with more than l_statzk signatures, these are checked together using
+	 * {@link CLSignature#verifyBatch(IdemixPublicKey, List, List)}, which
+	 * accepts an invalid signature with probability at most 2^{-l_statzk}.
+	 * Only if that check fails, they are verified one by one to find the bad
+	 * ones. Smaller groups are always verified one by one.
+	 *
+	 * @param builders
+	 *            the builders of the credentials
+	 * @param msgs
+	 *            the messages from the issuers, one for each builder
+	 * @param executor
+	 *            the executor to verify on, may be null
+	 * @return the credentials, in the order of the builders, with null in
+	 *         place of each credential whose message was malformed or whose
+	 *         proof or signature did not verify
+	 */
+	public static List<IdemixCredential> constructCredentials(List<CredentialBuilder> builders,
+			List<IssueSignatureMessage> msgs, Executor executor) {
+		if (builders.size() != msgs.size()) {
+			throw new IllegalArgumentException("Number of builders and messages differ");
+		}
+		final Executor exec = executor != null ? executor : ForkJoinPool.commonPool();
+
+		// Start verifying the proofs, and group the items by issuer key
+		List<CompletableFuture<Boolean>> proofs = new ArrayList<>(builders.size());
+		List<CLSignature> signatures = new ArrayList<>(builders.size());
+		Map<BigInteger, List<Integer>> groups = new LinkedHashMap<>();
+		for (int i = 0; i < builders.size(); i++) {
+			final CredentialBuilder builder = builders.get(i);
+			final IssueSignatureMessage msg = msgs.get(i);
+			if (!isComplete(msg)) {
+				proofs.add(CompletableFuture.completedFuture(false));
+				signatures.add(null);
+				continue;
+			}
+
+			proofs.add(CompletableFuture.supplyAsync(() -> msg.getProofS() != null
+					&& msg.getProofS().verify(builder.pk, msg.getSignature(), builder.context, builder.n_2), exec)
+					.exceptionally(e -> false));
+			signatures.add(builder.completeSignature(msg));
+
+			List<Integer> group = groups.get(builder.n);
+			if (group == null) {
+				group = new ArrayList<>();
+				groups.put(builder.n, group);
+			}
+			group.add(i);
+		}
+
+		// Verify the signatures of each group together
+		List<CompletableFuture<Boolean>> valid = new ArrayList<>(Collections.nCopies(builders.size(),
+				(CompletableFuture<Boolean>) null));
+		for (final List<Integer> group : groups.values()) {
+			final IdemixPublicKey pk = builders.get(group.get(0)).pk;
+			final List<CLSignature> groupSignatures = new ArrayList<>(group.size());
+			final List<List<BigInteger>> groupExponents = new ArrayList<>(group.size());
+			for (Integer i : group) {
+				groupSignatures.add(signatures.get(i));
+				groupExponents.add(builders.get(i).getExponents());
+			}
+
+			CompletableFuture<Boolean> batch = group.size() > pk.getSystemParameters().l_statzk
+					? CompletableFuture.supplyAsync(
+							() -> CLSignature.verifyBatch(pk, groupSignatures, groupExponents), exec)
+							.exceptionally(e -> false)
+					: CompletableFuture.completedFuture(false);
+			for (int k = 0; k < group.size(); k++) {
+				final CLSignature signature = groupSignatures.get(k);
+				final List<BigInteger> exponents = groupExponents.get(k);
+				valid.set(group.get(k), batch.thenCompose(ok -> ok
+						? CompletableFuture.completedFuture(true)
+						: CompletableFuture.supplyAsync(() -> signature.verify(pk, exponents), exec))
+						.exceptionally(e -> false));
+			}
+		}
+
+		List<IdemixCredential> credentials = new ArrayList<>(builders.size());
+		for (int i = 0; i < builders.size(); i++) {
+			CredentialBuilder builder = builders.get(i);
+			if (proofs.get(i).join() && valid.get(i) != null && valid.get(i).join()) {
+				credentials.add(new IdemixCredential(builder.pk, builder.s, builder.attributes, signatures.get(i)));
+			} else {
+				credentials.add(null);
+			}
+		}
+		return credentials;
+	}
+
+	/**
+	 * Asynchronous version of {@link #constructCredential(IssueSignatureMessage)},
+	 * running on the executor of this builder or on the common pool if no
+	 * executor is set. The proof of correctness and the signature are
+	 * verified concurrently.
+	 *
+	 * @return a future that completes with the credential, or exceptionally
+	 *         with a {@link CredentialsException} if the proof or the
+	 *         signature does not verify
+	 */
+	public CompletableFuture<IdemixCredential> constructCredentialAsync(final IssueSignatureMessage msg) {
+		Executor executor = this.executor != null ? this.executor : ForkJoinPool.commonPool();
+
+		final CLSignature signature = completeSignature(msg);
+		final List<BigInteger> exponents = getExponents();
+
+		CompletableFuture<Boolean> proof = CompletableFuture.supplyAsync(
+				() -> msg.getProofS().verify(pk, msg.getSignature(), context, n_2), executor);
+		CompletableFuture<Boolean> valid = CompletableFuture.supplyAsync(
+				() -> signature.verify(pk, exponents), executor);
+
+		return proof.thenCombine(valid, (proofValid, signatureValid) -> {
+			if (!proofValid)
+				throw new CompletionException(new CredentialsException(
+						"The proof of correctness on the signature does not verify"));
+			if (!signatureValid)
+				throw new CompletionException(new CredentialsException(
+						"Signature on the attributes is not correct"));
+			return new IdemixCredential(pk, s, attributes, signature);
+		});
+	}
+
+	/**
+	 * Adds our v_prime to the partial signature from the issuer.
+	 */
+	/**
+	 * Whether the message contains a signature with all of its parts, so
+	 * that it can be completed.
+	 */
+	private static boolean isComplete(IssueSignatureMessage msg) {
+		CLSignature signature = msg != null ? msg.getSignature() : null;
+		return signature != null && signature.getA() != null && signature.get_e() != null
+				&& signature.get_v() != null;
+	}
+
+	private CLSignature completeSignature(IssueSignatureMessage msg) {
+		return completeSignature(msg.getSignature());
+	}
+
+	private CLSignature completeSignature(CLSignature psig) {
+		return new CLSignature(psig.getA(), psig.get_e(), psig
+				.get_v().add(v_prime));
+	}
+
+	/**
+	 * The secret followed by the attributes.
+	 */
+	private List<BigInteger> getExponents() {
+		List<BigInteger> exponents = new Vector<>();
+		exponents.add(s);
+		exponents.addAll(attributes);
+		return exponents;
+	}
+
+	/**
+	 * Sets the executor on which {@link #constructCredentialAsync(IssueSignatureMessage)}
+	 * runs, or null (the default) to use the common pool.
+	 */
+	public void setExecutor(Executor executor) {
+		this.executor = executor;
+	}
+
+	public Executor getExecutor() {
+		return executor;
+	}
+
 	public void setSecret(BigInteger secret) {
 		// State that needs to be stored
 		this.s = secret;
+		this.holderSecret = null;
+	}
+
+	/**
+	 * Sets the secret of the holder, taking R_0^s from (and caching it in) the
+	 * given context instead of computing it for this credential.
+	 */
+	public void setSecret(HolderSecret secret) {
+		this.s = secret.getSecret();
+		this.holderSecret = secret;
+	}
+
+	/**
+	 * The holder secret context of this builder, or null if its secret was
+	 * set as a number.
+	 */
+	public HolderSecret getHolderSecret() {
+		return holderSecret;
 	}
 
 	public BigInteger getSecret() {
@@ -141,21 +400,89 @@ public class CredentialBuilder {
 		this.n_2 = nonce2;
 	}
 
+	/**
+	 * Sets a pool of precomputed commitments for the key of this builder, or
+	 * null (the default) to compute the commitments when the nonce of the
+	 * issuer arrives.
+	 */
+	public void setCommitmentPool(ProofUCommitmentPool commitmentPool) {
+		if (commitmentPool != null && !commitmentPool.getPublicKey().getModulus().equals(n)) {
+			throw new IllegalArgumentException("Pool is for a different public key");
+		}
+		this.commitmentPool = commitmentPool;
+	}
+
+	public ProofUCommitmentPool getCommitmentPool() {
+		return commitmentPool;
+	}
+
+	/**
+	 * The precomputation of this builder, taken from the pool on first use;
+	 * or null if there is no pool or it was empty.
+	 */
+	private ProofUCommitmentPool.Precomputation getPrecomputation() {
+		if (!precomputationTaken && commitmentPool != null) {
+			precomputationTaken = true;
+			precomputation = commitmentPool.take();
+		}
+		return precomputation;
+	}
+
+	/**
+	 * The randomness s_commit that {@link #commit(BigInteger, BigInteger)}
+	 * will use if it is passed no other, if it was precomputed along with
+	 * R_0^{s_commit}; null otherwise. A {@link ProofListBuilder} adopts it as
+	 * the commitment to the secret key of its proofs.
+	 */
+	public BigInteger getPrecomputedSecretKeyCommitment() {
+		ProofUCommitmentPool.Precomputation precomputation = getPrecomputation();
+		if (precomputation == null || precomputedCommitmentUsed) {
+			return null;
+		}
+		return precomputation.s_commit;
+	}
+
 	public BigInteger commitmentToSecret() {
+		ProofUCommitmentPool.Precomputation precomputation = U == null ? getPrecomputation() : null;
+		if (U == null && precomputation != null) {
+			v_prime = precomputation.v_prime;
+
+			// U = S^{v_prime} * R_0^{s}
+			BigInteger R0s = getSecretPower();
+			if (R0s == null) {
+				R0s = Crypto.multiExp(Collections.singletonList(pk.getGeneratorR(0)),
+						Collections.singletonList(s), n, pk.getFixedBaseTables());
+			}
+			U = precomputation.Sv_prime.multiply(R0s).mod(n);
+		}
+
 		if (U == null) {
 			// FIXME: Not according to protocol, only positives possible this way
 			//v_prime = Crypto.randomSignedInteger(params.l_v_prime);
 			v_prime = Crypto.randomUnsignedInteger(params.l_v_prime);
 
 			// U = S^{v_prime} * R_0^{s}
-			BigInteger Sv = pk.getGeneratorS().modPow(v_prime, n);
-			BigInteger R0s = pk.getGeneratorR(0).modPow(s, n);
-			U = Sv.multiply(R0s).mod(n);
+			BigInteger R0s = getSecretPower();
+			if (R0s != null) {
+				U = Crypto.multiExp(Collections.singletonList(pk.getGeneratorS()),
+						Collections.singletonList(v_prime), n, pk.getFixedBaseTables())
+						.multiply(R0s).mod(n);
+			} else {
+				U = Crypto.multiExp(Arrays.asList(pk.getGeneratorS(), pk.getGeneratorR(0)),
+						Arrays.asList(v_prime, s), n, pk.getFixedBaseTables());
+			}
 		}
 
 		return U;
 	}
 
+	/**
+	 * R_0^s, if this builder has a holder secret context; null otherwise.
+	 */
+	private BigInteger getSecretPower() {
+		return holderSecret != null ? holderSecret.getPower(pk) : null;
+	}
+
 	protected ProofU proveCommitment(BigInteger n_1) {
 		Commitment commitment = commit(n_1, null);
 		return commitment.createProof(null);
@@ -192,6 +519,23 @@ public class CredentialBuilder {
 			//BigInteger v_prime_commit = Crypto.randomSignedInteger(params.l_v_prime_commit);
 
 			this.n_1 = nonce1;
+
+			ProofUCommitmentPool.Precomputation precomputation = getPrecomputation();
+			if (precomputation != null && !precomputedCommitmentUsed) {
+				precomputedCommitmentUsed = true;
+				v_prime_commit = precomputation.v_prime_commit;
+				s_commit = skCommit != null ? skCommit : precomputation.s_commit;
+
+				// U_commit = S^{v_prime_commit} * R_0^{s_commit}
+				BigInteger R0s_commit = precomputation.R0s_commit;
+				if (!s_commit.equals(precomputation.s_commit)) {
+					R0s_commit = Crypto.multiExp(Collections.singletonList(pk.getGeneratorR(0)),
+							Collections.singletonList(s_commit), n, pk.getFixedBaseTables());
+				}
+				U_commit = precomputation.Sv_prime_commit.multiply(R0s_commit).mod(n);
+				return;
+			}
+
 			this.v_prime_commit = Crypto.randomUnsignedInteger(params.l_v_prime_commit);
 			this.s_commit = skCommit;
 			if (s_commit == null) {
@@ -199,9 +543,8 @@ public class CredentialBuilder {
 			}
 
 			// U_commit = S^{v_prime_commit} * R_0^{s_commit}
-			BigInteger Sv = pk.getGeneratorS().modPow(v_prime_commit, n);
-			BigInteger R0s = pk.getGeneratorR(0).modPow(s_commit, n);
-			U_commit = Sv.multiply(R0s).mod(n);
+			U_commit = Crypto.multiExp(Arrays.asList(pk.getGeneratorS(), pk.getGeneratorR(0)),
+					Arrays.asList(v_prime_commit, s_commit), n, pk.getFixedBaseTables());
 		}
 
 		public ProofU createProof(BigInteger challenge) {
@@ -0,0 +1,230 @@
+/*
+ * Copyright (c) 2015, the IRMA Team
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ *
+ *  Redistributions of source code must retain the above copyright notice, this
+ *   list of conditions and the following disclaimer.
+ *
+ *  Redistributions in binary form must reproduce the above copyright notice,
+ *   this list of conditions and the following disclaimer in the documentation
+ *   and/or other materials provided with the distribution.
+ *
+ *  Neither the name of the IRMA project nor the names of its
+ *   contributors may be used to endorse or promote products derived from
+ *   this software without specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS"
+ * AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+ * IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE
+ * DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT HOLDER OR CONTRIBUTORS BE LIABLE
+ * FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL
+ * DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR
+ * SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER
+ * CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY,
+ * OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE
+ * OF THIS SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+
+package org.irmacard.credentials.idemix;
+
+import java.math.BigInteger;
+import java.security.SecureRandom;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.Executor;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.irmacard.credentials.idemix.util.Crypto;
+
+/**
+ * A bounded pool of precomputed, nonce-independent parts of disclosure proofs
+ * for a single credential: a randomization of its signature, the randomness
+ * e_commit, v_commit and a_commit_i, and the powers A^{e_commit} S^{v_commit}
+ * and R_i^{a_commit_i} for every attribute. With such a precomputation, the
+ * commitment Z of a disclosure proof is a product of a few of these powers,
+ * so that creating the proof costs only some multiplications and a hash. See
+ * {@link IdemixCredential#setDisclosureCommitmentPool(DisclosureCommitmentPool)}.
+ * <p>
+ * The pool is refilled on an executor (by default the common pool) whenever
+ * something is taken from it, so that credentials that are not used do not
+ * occupy threads. Every precomputation is handed out at most once, since
+ * reusing a randomization would make disclosures linkable; when the pool is
+ * empty, {@link #take()} returns null and the proof is computed as usual.
+ */
+public class DisclosureCommitmentPool {
+	/** Default maximum number of precomputations kept in the pool */
+	public static final int DEFAULT_DEPTH = 4;
+
+	private final IdemixCredential credential;
+	private final BlockingQueue<Precomputation> precomputations;
+	private final Executor executor;
+	private final AtomicBoolean filling = new AtomicBoolean();
+
+	private final AtomicLong hits = new AtomicLong();
+	private final AtomicLong misses = new AtomicLong();
+
+	private volatile boolean running = true;
+
+	/**
+	 * The nonce-independent part of a disclosure proof.
+	 */
+	static class Precomputation {
+		final CLSignature rand_sig;
+		final BigInteger e_commit;
+		final BigInteger v_commit;
+		final List<BigInteger> a_commits;
+		final List<BigInteger> powers; // R_i^{a_commits[i]}
+		final BigInteger base; // A^{e_commit} * S^{v_commit}
+
+		Precomputation(CLSignature rand_sig, BigInteger e_commit, BigInteger v_commit,
+				List<BigInteger> a_commits, List<BigInteger> powers, BigInteger base) {
+			this.rand_sig = rand_sig;
+			this.e_commit = e_commit;
+			this.v_commit = v_commit;
+			this.a_commits = a_commits;
+			this.powers = powers;
+			this.base = base;
+		}
+	}
+
+	/**
+	 * Creates a pool of {@link #DEFAULT_DEPTH} precomputations, filled on the
+	 * common pool.
+	 */
+	public DisclosureCommitmentPool(IdemixCredential credential) {
+		this(credential, DEFAULT_DEPTH, ForkJoinPool.commonPool());
+	}
+
+	/**
+	 * Creates a pool and starts filling it.
+	 *
+	 * @param credential
+	 *            the credential to precompute disclosures of
+	 * @param depth
+	 *            the maximum number of precomputations kept in the pool
+	 * @param executor
+	 *            the executor on which the pool is filled
+	 */
+	public DisclosureCommitmentPool(IdemixCredential credential, int depth, Executor executor) {
+		if (depth < 1) {
+			throw new IllegalArgumentException("Depth must be positive");
+		}
+
+		this.credential = credential;
+		this.precomputations = new ArrayBlockingQueue<>(depth);
+		this.executor = executor;
+		refill();
+	}
+
+	/**
+	 * Removes a precomputation from the pool, or returns null if the pool is
+	 * empty, and schedules a refill.
+	 */
+	Precomputation take() {
+		Precomputation precomputation = precomputations.poll();
+		if (precomputation != null) {
+			hits.incrementAndGet();
+		} else {
+			misses.incrementAndGet();
+		}
+		refill();
+		return precomputation;
+	}
+
+	/**
+	 * Starts filling the pool on our executor, unless that is already
+	 * happening.
+	 */
+	private void refill() {
+		if (running && precomputations.remainingCapacity() > 0 && filling.compareAndSet(false, true)) {
+			executor.execute(this::fill);
+		}
+	}
+
+	private void fill() {
+		try {
+			while (running && precomputations.remainingCapacity() > 0) {
+				if (!precomputations.offer(precompute())) {
+					break;
+				}
+			}
+		} finally {
+			if (!running) {
+				precomputations.clear();
+			}
+			filling.set(false);
+		}
+
+		// Something may have been taken after our last check
+		refill();
+	}
+
+	private Precomputation precompute() {
+		IdemixPublicKey pk = credential.getPublicKey();
+		IdemixSystemParameters params = pk.getSystemParameters();
+		BigInteger n = pk.getModulus();
+		SecureRandom rnd = new SecureRandom();
+
+		CLSignature rand_sig = credential.getSignature().randomize(pk);
+		BigInteger e_commit = new BigInteger(params.l_e_commit, rnd);
+		BigInteger v_commit = new BigInteger(params.l_v_commit, rnd);
+
+		int count = credential.getNrAttributes();
+		List<BigInteger> a_commits = new ArrayList<>(count);
+		List<BigInteger> powers = new ArrayList<>(count);
+		for (int i = 0; i < count; i++) {
+			BigInteger a_commit = new BigInteger(params.l_m_commit, rnd);
+			a_commits.add(a_commit);
+			powers.add(Crypto.multiExp(Collections.singletonList(pk.getGeneratorR(i)),
+					Collections.singletonList(a_commit), n, pk.getFixedBaseTables()));
+		}
+
+		BigInteger base = rand_sig.getA().modPow(e_commit, n)
+				.multiply(Crypto.multiExp(Collections.singletonList(pk.getGeneratorS()),
+						Collections.singletonList(v_commit), n, pk.getFixedBaseTables()))
+				.mod(n);
+
+		return new Precomputation(rand_sig, e_commit, v_commit, a_commits, powers, base);
+	}
+
+	/**
+	 * Stops refilling the pool and discards its contents.
+	 */
+	public void shutdown() {
+		running = false;
+		precomputations.clear();
+	}
+
+	public IdemixCredential getCredential() {
+		return credential;
+	}
+
+	/**
+	 * The number of precomputations currently in the pool.
+	 */
+	public int size() {
+		return precomputations.size();
+	}
+
+	/**
+	 * The number of disclosures that used a precomputation.
+	 */
+	public long getHits() {
+		return hits.get();
+	}
+
+	/**
+	 * The number of disclosures that found the pool empty.
+	 */
+	public long getMisses() {
+		return misses.get();
+	}
+}
@@ -0,0 +1,171 @@
+/*
+ * Copyright (c) 2015, the IRMA Team
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ *
+ *  Redistributions of source code must retain the above copyright notice, this
+ *   list of conditions and the following disclaimer.
+ *
+ *  Redistributions in binary form must reproduce the above copyright notice,
+ *   this list of conditions and the following disclaimer in the documentation
+ *   and/or other materials provided with the distribution.
+ *
+ *  Neither the name of the IRMA project nor the names of its
+ *   contributors may be used to endorse or promote products derived from
+ *   this software without specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS"
+ * AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+ * IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE
+ * DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT HOLDER OR CONTRIBUTORS BE LIABLE
+ * FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL
+ * DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR
+ * SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER
+ * CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY,
+ * OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE
+ * OF THIS SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+
+package org.irmacard.credentials.idemix;
+
+import java.math.BigInteger;
+import java.security.SecureRandom;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.irmacard.credentials.idemix.util.Crypto;
+
+/**
+ * The secret s of a holder, which is the first attribute of all of its
+ * credentials, together with a bounded cache of the powers R_0^s for the
+ * public keys of the issuers it receives credentials from. Since s never
+ * changes, the commitment U = S^{v_prime} R_0^s of a {@link CredentialBuilder}
+ * using this context costs one exponentiation less for every credential
+ * after the first from the same key. See
+ * {@link CredentialBuilder#setSecret(HolderSecret)} and
+ * {@link org.irmacard.credentials.idemix.proofs.ProofListBuilder#setSecretKey(HolderSecret)}.
+ * <p>
+ * The powers are kept in a synchronized LRU map keyed on the modulus and
+ * R_0 of the public key. Instances may be shared between threads.
+ */
+public class HolderSecret {
+	/** Default maximum number of issuer keys for which R_0^s is cached */
+	public static final int DEFAULT_CAPACITY = 32;
+
+	private final BigInteger secret;
+	private final PowerMap powers;
+
+	private final AtomicLong hits = new AtomicLong();
+	private final AtomicLong misses = new AtomicLong();
+
+	@SuppressWarnings("serial")
+	private static class PowerMap extends LinkedHashMap<List<BigInteger>, BigInteger> {
+		private final int capacity;
+
+		PowerMap(int capacity) {
+			super(16, 0.75f, true);
+			this.capacity = capacity;
+		}
+
+		@Override
+		protected boolean removeEldestEntry(Map.Entry<List<BigInteger>, BigInteger> eldest) {
+			return size() > capacity;
+		}
+	}
+
+	/**
+	 * Creates a context for the given secret, caching R_0^s for at most
+	 * {@link #DEFAULT_CAPACITY} keys.
+	 */
+	public HolderSecret(BigInteger secret) {
+		this(secret, DEFAULT_CAPACITY);
+	}
+
+	/**
+	 * Creates a context for the given secret, caching R_0^s for at most the
+	 * given number of keys.
+	 */
+	public HolderSecret(BigInteger secret, int capacity) {
+		if (secret == null) {
+			throw new IllegalArgumentException("Secret must not be null");
+		}
+		if (capacity < 1) {
+			throw new IllegalArgumentException("Capacity must be positive");
+		}
+
+		this.secret = secret;
+		this.powers = new PowerMap(capacity);
+	}
+
+	/**
+	 * Creates a context for a new random secret of the size of an attribute.
+	 */
+	public static HolderSecret generate(IdemixSystemParameters params) {
+		return new HolderSecret(new BigInteger(params.l_m, new SecureRandom()));
+	}
+
+	public BigInteger getSecret() {
+		return secret;
+	}
+
+	/**
+	 * Returns R_0^s (mod n) for the given public key, from the cache if
+	 * possible.
+	 */
+	public BigInteger getPower(IdemixPublicKey pk) {
+		BigInteger R0 = pk.getGeneratorR(0);
+		List<BigInteger> key = Arrays.asList(pk.getModulus(), R0);
+
+		BigInteger power;
+		synchronized (powers) {
+			power = powers.get(key);
+		}
+		if (power != null) {
+			hits.incrementAndGet();
+			return power;
+		}
+
+		// Compute outside of the lock; at worst two threads compute the same power
+		misses.incrementAndGet();
+		power = Crypto.multiExp(Collections.singletonList(R0), Collections.singletonList(secret),
+				pk.getModulus(), pk.getFixedBaseTables());
+		synchronized (powers) {
+			powers.put(key, power);
+		}
+		return power;
+	}
+
+	/**
+	 * The number of keys for which R_0^s is currently cached.
+	 */
+	public int size() {
+		synchronized (powers) {
+			return powers.size();
+		}
+	}
+
+	/**
+	 * Removes all powers from the cache and resets the statistics.
+	 */
+	public void clear() {
+		synchronized (powers) {
+			powers.clear();
+		}
+		hits.set(0);
+		misses.set(0);
+	}
+
+	public long getHits() {
+		return hits.get();
+	}
+
+	public long getMisses() {
+		return misses.get();
+	}
+}
@@ -37,6 +37,7 @@ import org.irmacard.credentials.idemix.util.Crypto;
 
 import java.math.BigInteger;
 import java.security.SecureRandom;
+import java.util.ArrayList;
 import java.util.Collections;
 import java.util.HashMap;
 import java.util.List;
@@ -49,6 +50,7 @@ public class IdemixCredential {
 	private CLSignature signature;
 	private IdemixPublicKey issuer_pk;
 	private List<BigInteger> attributes;
+	private volatile DisclosureCommitmentPool disclosurePool;
 
 	public IdemixCredential(IdemixPublicKey issuer_pk,
 			List<BigInteger> attributes, CLSignature signature) {
@@ -100,6 +102,21 @@ public class IdemixCredential {
 		return commitment.createProof(null);
 	}
 
+	/**
+	 * Sets a pool of precomputed disclosure commitments for this credential,
+	 * or null (the default) to compute disclosure proofs entirely online.
+	 */
+	public void setDisclosureCommitmentPool(DisclosureCommitmentPool disclosurePool) {
+		if (disclosurePool != null && disclosurePool.getCredential() != this) {
+			throw new IllegalArgumentException("Pool belongs to a different credential");
+		}
+		this.disclosurePool = disclosurePool;
+	}
+
+	public DisclosureCommitmentPool getDisclosureCommitmentPool() {
+		return disclosurePool;
+	}
+
 	public int getNrAttributes() {
 		return attributes.size();
 	}
@@ -162,6 +179,13 @@ public class IdemixCredential {
 
 			undisclosed_attributes = getUndisclosedAttributes(disclosed_attributes);
 
+			DisclosureCommitmentPool pool = disclosurePool;
+			DisclosureCommitmentPool.Precomputation precomputation = pool != null ? pool.take() : null;
+			if (precomputation != null) {
+				commit(precomputation, skCommit);
+				return;
+			}
+
 			rand_sig = signature.randomize(issuer_pk);
 
 			A = rand_sig.getA();
@@ -179,12 +203,50 @@ public class IdemixCredential {
 
 			// Z = A^{e_commit} * S^{v_commit}
 			//     PROD_{i \in undisclosed} ( R_i^{a_commits{i}} )
-			BigInteger Ae = rand_sig.getA().modPow(e_commit, n);
-			BigInteger Sv = issuer_pk.getGeneratorS().modPow(v_commit, n);
-			Z = Ae.multiply(Sv).mod(n);
+			List<BigInteger> bases = new ArrayList<>(undisclosed_attributes.size() + 2);
+			List<BigInteger> exps = new ArrayList<>(undisclosed_attributes.size() + 2);
+			bases.add(rand_sig.getA());
+			exps.add(e_commit);
+			bases.add(issuer_pk.getGeneratorS());
+			exps.add(v_commit);
 			for(Integer i : undisclosed_attributes) {
-				Z = Z.multiply(issuer_pk.getGeneratorR(i).modPow(a_commits.get(i), n)).mod(n);
+				bases.add(issuer_pk.getGeneratorR(i));
+				exps.add(a_commits.get(i));
+			}
+			Z = Crypto.multiExp(bases, exps, n, issuer_pk.getFixedBaseTables());
+		}
+
+		/**
+		 * Computes the commitment from the given precomputation: only the
+		 * power of R_0 needs to be computed, and only if a commitment to the
+		 * secret key is given.
+		 */
+		private void commit(DisclosureCommitmentPool.Precomputation precomputation, BigInteger skCommit) {
+			BigInteger n = issuer_pk.getModulus();
+
+			rand_sig = precomputation.rand_sig;
+			A = rand_sig.getA();
+			e_commit = precomputation.e_commit;
+			v_commit = precomputation.v_commit;
+
+			a_commits = new HashMap<>();
+			BigInteger product = precomputation.base;
+			for (Integer i : undisclosed_attributes) {
+				if (i == 0 && skCommit != null) {
+					a_commits.put(0, skCommit);
+					product = product.multiply(Crypto.multiExp(
+							Collections.singletonList(issuer_pk.getGeneratorR(0)),
+							Collections.singletonList(skCommit), n, issuer_pk.getFixedBaseTables()));
+				} else {
+					a_commits.put(i, precomputation.a_commits.get(i));
+					product = product.multiply(precomputation.powers.get(i));
+				}
+				product = product.mod(n);
+			}
+			if (skCommit != null) {
+				a_commits.put(0, skCommit);
 			}
+			Z = product;
 		}
 
 		public ProofD createProof(BigInteger challenge) {
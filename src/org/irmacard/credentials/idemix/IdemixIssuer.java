@@ -31,11 +31,20 @@
 package org.irmacard.credentials.idemix;
 
 import java.math.BigInteger;
+import java.util.ArrayList;
+import java.util.Collections;
 import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.Executor;
+import java.util.concurrent.ForkJoinPool;
 
 import org.irmacard.credentials.CredentialsException;
+import org.irmacard.credentials.idemix.journal.IssuanceJournal;
 import org.irmacard.credentials.idemix.messages.IssueCommitmentMessage;
+import org.irmacard.credentials.idemix.messages.IssueSignatureBundleMessage;
 import org.irmacard.credentials.idemix.messages.IssueSignatureMessage;
+import org.irmacard.credentials.idemix.proofs.AggregatedProofS;
 import org.irmacard.credentials.idemix.proofs.ProofList;
 import org.irmacard.credentials.idemix.proofs.ProofS;
 import org.irmacard.credentials.idemix.util.Crypto;
@@ -46,6 +55,13 @@ public class IdemixIssuer {
 
 	private BigInteger context;
 
+	private boolean verifyAfterSign = false;
+	private SigningTuplePool signingTuplePool;
+	private Executor executor;
+	private boolean speculativeSigning = false;
+	private IssuanceResponseCache responseCache;
+	private IssuanceJournal journal;
+
 	public IdemixIssuer(IdemixPublicKey pk, IdemixSecretKey sk,
 			BigInteger context) {
 
@@ -89,7 +105,7 @@ public class IdemixIssuer {
 
 		if (msg.getCombinedProofs() != null) {
 			ProofList proofs = msg.getCombinedProofs();
-			if(!proofs.verify(context, nonce1, true))
+			if(!proofs.verify(context, nonce1, true, executor))
 				throw new CredentialsException("The combined proofs are not correct");
 		}
 		else {
@@ -98,8 +114,99 @@ public class IdemixIssuer {
 		}
 	}
 
-	public IssueSignatureMessage issueSignature(IssueCommitmentMessage msg,
+	/**
+	 * Asynchronous version of {@link #verifyCommitments(IssueCommitmentMessage, BigInteger)}.
+	 * Runs on the executor of this issuer, or on the common pool if no
+	 * executor is set; the proofs in a {@link ProofList} are verified
+	 * concurrently.
+	 *
+	 * @return a future that completes when the proofs have been verified, or
+	 *         exceptionally with a {@link CredentialsException} when the
+	 *         commitment proof(s) is/are not correct
+	 */
+	public CompletableFuture<Void> verifyCommitmentsAsync(final IssueCommitmentMessage msg,
+			final BigInteger nonce1) {
+		Executor executor = getAsyncExecutor();
+
+		if (msg.getCombinedProofs() == null) {
+			return CompletableFuture.runAsync(() -> {
+				try {
+					verifyCommitments(msg, nonce1);
+				} catch (CredentialsException e) {
+					throw new CompletionException(e);
+				}
+			}, executor);
+		}
+
+		CompletableFuture<Boolean> verification;
+		try {
+			verification = msg.getCombinedProofs().verifyAsync(context, nonce1, true, executor);
+		} catch (RuntimeException e) {
+			verification = new CompletableFuture<>();
+			verification.completeExceptionally(e);
+		}
+
+		return verification.thenAccept(valid -> {
+			if (!valid)
+				throw new CompletionException(new CredentialsException("The combined proofs are not correct"));
+		});
+	}
+
+	/**
+	 * Asynchronous version of {@link #issueSignature(IssueCommitmentMessage, List, int, BigInteger)}.
+	 * Runs on the executor of this issuer, or on the common pool if no
+	 * executor is set (see {@link #setExecutor(Executor)}). If speculative
+	 * signing is enabled, signing starts while the proofs are being verified.
+	 *
+	 * @return a future that completes with the signature and proof, or
+	 *         exceptionally with a {@link CredentialsException} when the
+	 *         commitment proof(s) is/are not correct
+	 */
+	public CompletableFuture<IssueSignatureMessage> issueSignatureAsync(final IssueCommitmentMessage msg,
+			final List<BigInteger> attrs, final int index, final BigInteger nonce1) {
+		CompletableFuture<Void> verification = verifyCommitmentsAsync(msg, nonce1);
+
+		if (speculativeSigning) {
+			final CompletableFuture<IssueSignatureMessage> signing
+					= issueSignatureNoCheckAsync(msg, attrs, index, nonce1, getAsyncExecutor());
+			verification.whenComplete((v, e) -> {
+				if (e != null)
+					signing.cancel(false);
+			});
+			// Never hand out the signature unless the proofs verified
+			return verification.thenCompose(v -> signing).thenApply(response -> release(response, attrs));
+		}
+
+		return verification.thenCompose(v -> issueSignatureNoCheckAsync(msg, attrs, index, nonce1, getAsyncExecutor()))
+				.thenApply(response -> release(response, attrs));
+	}
+
+	/**
+	 * Asynchronous version of {@link #issueSignature(IssueCommitmentMessage, List, BigInteger)};
+	 * see {@link #issueSignatureAsync(IssueCommitmentMessage, List, int, BigInteger)}.
+	 */
+	public CompletableFuture<IssueSignatureMessage> issueSignatureAsync(IssueCommitmentMessage msg,
+			List<BigInteger> attrs, BigInteger nonce1) {
+		return issueSignatureAsync(msg, attrs, 0, nonce1);
+	}
+
+	public IssueSignatureMessage issueSignature(final IssueCommitmentMessage msg,
+			final List<BigInteger> attrs, final int index, final BigInteger nonce1) throws CredentialsException {
+		if (responseCache != null) {
+			BigInteger key = IssuanceResponseCache.key(pk, context, msg, attrs, index, nonce1);
+			return responseCache.get(key, () -> issueSignatureUncached(msg, attrs, index, nonce1));
+		}
+
+		return issueSignatureUncached(msg, attrs, index, nonce1);
+	}
+
+	private IssueSignatureMessage issueSignatureUncached(IssueCommitmentMessage msg,
 			List<BigInteger> attrs, int index, BigInteger nonce1) throws CredentialsException {
+		if (speculativeSigning) {
+			return release(verifyWhileSigning(msg, nonce1, Collections.singletonList(
+					issueSignatureNoCheckAsync(msg, attrs, index, nonce1, getAsyncExecutor()))).get(0), attrs);
+		}
+
 		verifyCommitments(msg, nonce1);
 		return issueSignatureNoCheck(msg, attrs, index, nonce1);
 	}
@@ -111,20 +218,301 @@ public class IdemixIssuer {
 	 */
 	public IssueSignatureMessage issueSignatureNoCheck(IssueCommitmentMessage msg,
 			List<BigInteger> attrs, int index, BigInteger nonce1) throws CredentialsException {
-		BigInteger U;
+		return release(signAndProve(msg, attrs, index), attrs);
+	}
+
+	/**
+	 * Signs the index-th commitment in the message and proves the signature,
+	 * without checking the supplied proofs or recording the signature in the
+	 * journal.
+	 */
+	private IssueSignatureMessage signAndProve(IssueCommitmentMessage msg,
+			List<BigInteger> attrs, int index) throws CredentialsException {
+		BigInteger U = getCommitment(msg, index);
+
+		// Sign and prove in one go, so that the proof can reuse Q = A^e and
+		// e^{-1} from the signing algorithm
+		SigningResult result = signWithIntermediates(U, attrs);
+		ProofS proof = proveSignature(result, msg.getNonce2());
+
+		return new IssueSignatureMessage(result.getSignature(), proof);
+	}
+
+	/**
+	 * Returns signatures and corresponding proofs on a number of credentials
+	 * within one issuance session: the i-th list of attributes is signed along
+	 * with the commitment from the i-th ProofU in the combined proofs of the
+	 * message. The proofs in the message are verified once, after which the
+	 * credentials are signed on the executor of this issuer, if set (see
+	 * {@link #setExecutor(Executor)}).
+	 *
+	 * @param msg
+	 *            Message from the user, containing one ProofU per credential
+	 *            and the nonce over which we should create our own proofs
+	 * @param attrs
+	 *            Attributes to include in the signatures, one list per credential
+	 * @param nonce1
+	 *            Nonce from the recipient
+	 * @return Signatures on attributes+commitments and their proofs of
+	 *         correctness, in the same order as the attributes
+	 * @throws CredentialsException when the commitment proof(s) is/are not correct
+	 */
+	public List<IssueSignatureMessage> issueSignatures(IssueCommitmentMessage msg,
+			List<List<BigInteger>> attrs, BigInteger nonce1) throws CredentialsException {
+		checkCommitmentCount(msg, attrs.size());
+		if (speculativeSigning) {
+			return release(verifyWhileSigning(msg, nonce1,
+					issueSignaturesNoCheckAsync(msg, attrs, nonce1, getAsyncExecutor())), attrs);
+		}
+
+		verifyCommitments(msg, nonce1);
+		return issueSignaturesNoCheck(msg, attrs, nonce1);
+	}
+
+	/**
+	 * ADVANCED! This version of issueSignatures does _not_ check the supplied
+	 * proofs, you have to manually call verifyCommitments, and ensure that
+	 * there are no problems before using this method.
+	 */
+	public List<IssueSignatureMessage> issueSignaturesNoCheck(IssueCommitmentMessage msg,
+			List<List<BigInteger>> attrs, BigInteger nonce1) throws CredentialsException {
+		checkCommitmentCount(msg, attrs.size());
+		List<IssueSignatureMessage> messages = new ArrayList<>(attrs.size());
+
+		if (executor == null) {
+			for (int i = 0; i < attrs.size(); i++) {
+				messages.add(issueSignatureNoCheck(msg, attrs.get(i), i, nonce1));
+			}
+			return messages;
+		}
+
+		return release(join(issueSignaturesNoCheckAsync(msg, attrs, nonce1, executor)), attrs);
+	}
+
+	/**
+	 * Returns signatures on a number of credentials within one issuance
+	 * session, as {@link #issueSignatures(IssueCommitmentMessage, List, BigInteger)}
+	 * does, but with a single {@link AggregatedProofS} proving the correctness
+	 * of all of them instead of a {@link ProofS} per signature. This saves the
+	 * recipient most of the work of verifying the proofs.
+	 *
+	 * @param msg
+	 *            Message from the user, containing one ProofU per credential
+	 *            and the nonce over which we should create our own proof
+	 * @param attrs
+	 *            Attributes to include in the signatures, one list per credential
+	 * @param nonce1
+	 *            Nonce from the recipient
+	 * @return Signatures on attributes+commitments, in the same order as the
+	 *         attributes, and their proof of correctness
+	 * @throws CredentialsException when the commitment proof(s) is/are not correct
+	 */
+	public IssueSignatureBundleMessage issueSignatureBundle(final IssueCommitmentMessage msg,
+			final List<List<BigInteger>> attrs, final BigInteger nonce1) throws CredentialsException {
+		checkCommitmentCount(msg, attrs.size());
+		if (speculativeSigning) {
+			return release(verifyWhileSigning(msg, nonce1, Collections.singletonList(
+					issueSignatureBundleNoCheckAsync(msg, attrs, getAsyncExecutor()))).get(0), attrs);
+		}
+
+		verifyCommitments(msg, nonce1);
+		return issueSignatureBundleNoCheck(msg, attrs, nonce1);
+	}
+
+	/**
+	 * ADVANCED! This version of issueSignatureBundle does _not_ check the
+	 * supplied proofs, you have to manually call verifyCommitments, and ensure
+	 * that there are no problems before using this method.
+	 */
+	public IssueSignatureBundleMessage issueSignatureBundleNoCheck(IssueCommitmentMessage msg,
+			List<List<BigInteger>> attrs, BigInteger nonce1) throws CredentialsException {
+		if (executor != null) {
+			return release(join(Collections.singletonList(
+					issueSignatureBundleNoCheckAsync(msg, attrs, executor))).get(0), attrs);
+		}
+
+		return release(bundle(msg, signWithIntermediates(getCommitments(msg, attrs.size()), attrs)), attrs);
+	}
+
+	/**
+	 * Starts signing the credentials in the message on the given executor,
+	 * one task per credential, without checking the supplied proofs or
+	 * recording the signatures in the journal. The
+	 * tasks never wait for each other, so this cannot deadlock on a bounded
+	 * executor; the proof is computed by whichever task finishes last.
+	 */
+	private CompletableFuture<IssueSignatureBundleMessage> issueSignatureBundleNoCheckAsync(
+			final IssueCommitmentMessage msg, List<List<BigInteger>> attrs, Executor executor) {
+		List<BigInteger> Us;
+		try {
+			Us = getCommitments(msg, attrs.size());
+		} catch (CredentialsException e) {
+			CompletableFuture<IssueSignatureBundleMessage> failed = new CompletableFuture<>();
+			failed.completeExceptionally(e);
+			return failed;
+		}
+
+		final List<CompletableFuture<SigningResult>> futures = new ArrayList<>(attrs.size());
+		for (int i = 0; i < attrs.size(); i++) {
+			final BigInteger U = Us.get(i);
+			final List<BigInteger> attributes = attrs.get(i);
+			futures.add(CompletableFuture.supplyAsync(() -> signWithIntermediates(U, attributes), executor));
+		}
+
+		return CompletableFuture.allOf(futures.toArray(new CompletableFuture<?>[futures.size()])).thenApply(v -> {
+			List<SigningResult> results = new ArrayList<>(futures.size());
+			for (CompletableFuture<SigningResult> future : futures) {
+				results.add(future.join());
+			}
+			return bundle(msg, results);
+		});
+	}
+
+	/**
+	 * Returns the commitments U from the ProofUs in the message, after
+	 * checking that there is one for each of the given number of credentials.
+	 */
+	private List<BigInteger> getCommitments(IssueCommitmentMessage msg, int count) throws CredentialsException {
+		checkCommitmentCount(msg, count);
+		List<BigInteger> Us = new ArrayList<>(count);
+		for (int i = 0; i < count; i++) {
+			Us.add(getCommitment(msg, i));
+		}
+		return Us;
+	}
+
+	/**
+	 * Proves the given signatures together, for the recipient of the message.
+	 */
+	private IssueSignatureBundleMessage bundle(IssueCommitmentMessage msg, List<SigningResult> results) {
+		List<CLSignature> signatures = new ArrayList<>(results.size());
+		for (SigningResult result : results) {
+			signatures.add(result.getSignature());
+		}
+
+		return new IssueSignatureBundleMessage(signatures, proveSignatures(results, msg.getNonce2()));
+	}
+
+	/**
+	 * Starts issuing signatures on the credentials in the message on the given
+	 * executor, without checking the supplied proofs or recording the
+	 * signatures in the journal.
+	 */
+	private List<CompletableFuture<IssueSignatureMessage>> issueSignaturesNoCheckAsync(IssueCommitmentMessage msg,
+			List<List<BigInteger>> attrs, BigInteger nonce1, Executor executor) {
+		List<CompletableFuture<IssueSignatureMessage>> futures = new ArrayList<>(attrs.size());
+		for (int i = 0; i < attrs.size(); i++) {
+			futures.add(issueSignatureNoCheckAsync(msg, attrs.get(i), i, nonce1, executor));
+		}
+		return futures;
+	}
+
+	/**
+	 * Starts issuing a signature on the given executor, without checking the
+	 * supplied proofs or recording the signature in the journal.
+	 */
+	private CompletableFuture<IssueSignatureMessage> issueSignatureNoCheckAsync(final IssueCommitmentMessage msg,
+			final List<BigInteger> attrs, final int index, final BigInteger nonce1, Executor executor) {
+		return CompletableFuture.supplyAsync(() -> {
+			try {
+				return signAndProve(msg, attrs, index);
+			} catch (CredentialsException e) {
+				throw new CompletionException(e);
+			}
+		}, executor);
+	}
+
+	/**
+	 * Waits for the given futures and returns their results, rethrowing the
+	 * first exception that occurred.
+	 */
+	private static <T> List<T> join(List<CompletableFuture<T>> futures) throws CredentialsException {
+		List<T> results = new ArrayList<>(futures.size());
+		try {
+			for (CompletableFuture<T> future : futures) {
+				results.add(future.join());
+			}
+		} catch (CompletionException e) {
+			if (e.getCause() instanceof CredentialsException) {
+				throw (CredentialsException) e.getCause();
+			}
+			if (e.getCause() instanceof RuntimeException) {
+				throw (RuntimeException) e.getCause();
+			}
+			throw e;
+		}
+		return results;
+	}
+
+	/**
+	 * Verifies the proofs in the message while the given futures, which are
+	 * signing in the background, run. If verification fails, the futures are
+	 * cancelled and their signatures are discarded; only if it succeeds we
+	 * wait for and return the signatures.
+	 */
+	private <T> List<T> verifyWhileSigning(IssueCommitmentMessage msg, BigInteger nonce1,
+			List<CompletableFuture<T>> futures) throws CredentialsException {
+		try {
+			verifyCommitments(msg, nonce1);
+		} catch (CredentialsException|RuntimeException e) {
+			for (CompletableFuture<T> future : futures) {
+				future.cancel(false);
+			}
+			throw e;
+		}
+
+		return join(futures);
+	}
+
+	/**
+	 * The executor for asynchronous and speculative work: our own executor if
+	 * set, or the common pool otherwise.
+	 */
+	private Executor getAsyncExecutor() {
+		return executor != null ? executor : ForkJoinPool.commonPool();
+	}
+
+	/**
+	 * Returns the commitment U from the index-th ProofU in the message, or from
+	 * its commitment proof if it contains no {@link ProofList}.
+	 *
+	 * @throws CredentialsException if the message contains no index-th ProofU
+	 */
+	protected BigInteger getCommitment(IssueCommitmentMessage msg, int index) throws CredentialsException {
+		if (index < 0 || index >= getCommitmentCount(msg)) {
+			throw new CredentialsException("No commitment " + index + " in the message");
+		}
 
 		if (msg.getCombinedProofs() != null) {
 			ProofList proofs = msg.getCombinedProofs();
-			U = proofs.getProofU(index).getU();
+			return proofs.getProofU(index).getU();
 		}
 		else {
-			U = msg.getCommitmentProof().getU();
+			return msg.getCommitmentProof().getU();
 		}
+	}
 
-		CLSignature signature = signCommitmentAndAttributes(U, attrs);
-		ProofS proof = proveSignature(signature, msg.getNonce2());
+	/**
+	 * The number of commitments (ProofUs) in the message.
+	 */
+	private static int getCommitmentCount(IssueCommitmentMessage msg) {
+		if (msg.getCombinedProofs() != null) {
+			return msg.getCombinedProofs().getProofUCount();
+		}
+		return msg.getCommitmentProof() != null ? 1 : 0;
+	}
 
-		return new IssueSignatureMessage(signature, proof);
+	/**
+	 * Checks that the message contains exactly one commitment per credential.
+	 *
+	 * @throws CredentialsException if it does not
+	 */
+	private static void checkCommitmentCount(IssueCommitmentMessage msg, int credentials) throws CredentialsException {
+		int count = getCommitmentCount(msg);
+		if (count != credentials) {
+			throw new CredentialsException("Message contains " + count + " commitments for "
+					+ credentials + " credentials");
+		}
 	}
 
 	/**
@@ -141,7 +529,69 @@ public class IdemixIssuer {
 	protected CLSignature signCommitmentAndAttributes(BigInteger U,
 			List<BigInteger> attrs) {
 
-		return CLSignature.signMessageBlockAndCommitment(sk, pk, U, attrs);
+		return signWithIntermediates(U, attrs).getSignature();
+	}
+
+	/**
+	 * Signature on the commitment and the attributes, as
+	 * {@link #signCommitmentAndAttributes(BigInteger, List)}, along with the
+	 * intermediate values needed by {@link #proveSignature(SigningResult, BigInteger)}.
+	 */
+	protected SigningResult signWithIntermediates(BigInteger U,
+			List<BigInteger> attrs) {
+
+		SigningTuple tuple = signingTuplePool != null ? signingTuplePool.take() : null;
+		return CLSignature.signWithIntermediates(sk, pk, U, attrs, tuple, verifyAfterSign);
+	}
+
+	/**
+	 * Signatures on a number of commitments and their attributes, made at once
+	 * using a {@link BatchCLSigner}.
+	 *
+	 * @param Us
+	 *            Commitments to secrets
+	 * @param attrs
+	 *            Lists of attributes, one for each commitment
+	 * @return (Partial) CL signatures, along with the intermediate values needed
+	 *         by {@link #proveSignature(SigningResult, BigInteger)}
+	 */
+	protected List<SigningResult> signWithIntermediates(List<BigInteger> Us,
+			List<List<BigInteger>> attrs) {
+
+		BatchCLSigner signer = new BatchCLSigner(sk, pk);
+		signer.setSigningTuplePool(signingTuplePool);
+		signer.setVerifyAfterSign(verifyAfterSign);
+		return signer.signWithIntermediates(Us, attrs);
+	}
+
+	/**
+	 * Records the signature in our journal, if any. This is done only when
+	 * the signature is handed out, after the proofs of the recipient have
+	 * been verified; the attributes are copied, since they are hashed later.
+	 */
+	void journal(CLSignature signature, List<BigInteger> attrs) {
+		if (journal != null) {
+			journal.append(pk.getCounter(), signature.get_e(), new ArrayList<>(attrs));
+		}
+	}
+
+	private IssueSignatureMessage release(IssueSignatureMessage msg, List<BigInteger> attrs) {
+		journal(msg.getSignature(), attrs);
+		return msg;
+	}
+
+	private List<IssueSignatureMessage> release(List<IssueSignatureMessage> msgs, List<List<BigInteger>> attrs) {
+		for (int i = 0; i < msgs.size(); i++) {
+			journal(msgs.get(i).getSignature(), attrs.get(i));
+		}
+		return msgs;
+	}
+
+	private IssueSignatureBundleMessage release(IssueSignatureBundleMessage msg, List<List<BigInteger>> attrs) {
+		for (int i = 0; i < msg.getSignatures().size(); i++) {
+			journal(msg.getSignatures().get(i), attrs.get(i));
+		}
+		return msg;
 	}
 
 	/**
@@ -157,14 +607,32 @@ public class IdemixIssuer {
 	 * @return A proof of knowledge of e^{-1}
 	 */
 	public ProofS proveSignature(CLSignature signature, BigInteger n_2) {
-		BigInteger n = pk.getModulus();
-		BigInteger Q = signature.getA().modPow(signature.get_e(), n);
+		BigInteger Q = sk.modPow(signature.getA(), signature.get_e());
+		BigInteger e_inverse = signature.get_e().modInverse(sk.get_p_prime_q_prime());
+
+		return proveSignature(new SigningResult(signature, Q, e_inverse), n_2);
+	}
+
+	/**
+	 * Proof of the knowledge of $e^{-1}$ in the signature, using the values
+	 * Q = A^e and e^{-1} that were computed while signing. This leaves a
+	 * single exponentiation, which we do using the factorization of n.
+	 *
+	 * @param result
+	 *            the signature along with Q and e^{-1}
+	 * @param n_2
+	 *            Nonce
+	 * @return A proof of knowledge of e^{-1}
+	 */
+	public ProofS proveSignature(SigningResult result, BigInteger n_2) {
+		CLSignature signature = result.getSignature();
+		BigInteger Q = result.getQ();
 		BigInteger group_modulus = sk.get_p_prime_q_prime();
-		BigInteger e_inverse = signature.get_e().modInverse(group_modulus);
+		BigInteger e_inverse = result.get_e_inverse();
 
 		BigInteger e_commit = Crypto
 				.randomElementMultiplicativeGroup(group_modulus);
-		BigInteger A_commit = Q.modPow(e_commit, n);
+		BigInteger A_commit = sk.modPow(Q, e_commit);
 
 		BigInteger c = Crypto.sha256Hash(Crypto.asn1Encode(context, Q,
 				signature.getA(), n_2, A_commit));
@@ -175,7 +643,144 @@ public class IdemixIssuer {
 		return new ProofS(c, e_response);
 	}
 
+	/**
+	 * Proof of the knowledge of $e_i^{-1}$ in each of the signatures, using a
+	 * single commitment and challenge; see {@link AggregatedProofS}.
+	 *
+	 * @param results
+	 *            the signatures along with their Q and e^{-1}
+	 * @param n_2
+	 *            Nonce
+	 * @return A proof of knowledge of all e_i^{-1}
+	 */
+	public AggregatedProofS proveSignatures(List<SigningResult> results, BigInteger n_2) {
+		BigInteger group_modulus = sk.get_p_prime_q_prime();
+		BigInteger n = pk.getModulus();
+
+		List<CLSignature> signatures = new ArrayList<>(results.size());
+		List<BigInteger> e_commits = new ArrayList<>(results.size());
+		BigInteger commitment = BigInteger.ONE;
+		for (SigningResult result : results) {
+			BigInteger e_commit = Crypto.randomElementMultiplicativeGroup(group_modulus);
+			commitment = commitment.multiply(sk.modPow(result.getQ(), e_commit)).mod(n);
+			e_commits.add(e_commit);
+			signatures.add(result.getSignature());
+		}
+
+		BigInteger c = AggregatedProofS.challenge(context, n_2, signatures, commitment);
+
+		List<BigInteger> e_responses = new ArrayList<>(results.size());
+		for (int i = 0; i < results.size(); i++) {
+			BigInteger c_i = AggregatedProofS.challenge(c, i);
+			e_responses.add(e_commits.get(i).subtract(c_i.multiply(results.get(i).get_e_inverse()))
+					.mod(group_modulus));
+		}
+
+		return new AggregatedProofS(c, e_responses);
+	}
+
 	public BigInteger getContext() {
 		return context;
 	}
+
+	/**
+	 * Whether or not to verify each signature before issuing it, to protect the
+	 * secret key against faults during signing (default false). See
+	 * {@link CLSignature#signMessageBlockAndCommitment(IdemixSecretKey, IdemixPublicKey, BigInteger, List, boolean)}.
+	 */
+	public void setVerifyAfterSign(boolean verifyAfterSign) {
+		this.verifyAfterSign = verifyAfterSign;
+	}
+
+	public boolean getVerifyAfterSign() {
+		return verifyAfterSign;
+	}
+
+	/**
+	 * Sets a pool of precomputed signing tuples to take from when signing, or
+	 * null (the default) to compute them when needed. The pool must have been
+	 * created for the same key pair as this issuer.
+	 */
+	public void setSigningTuplePool(SigningTuplePool signingTuplePool) {
+		if (signingTuplePool != null && (signingTuplePool.getSecretKey() != sk
+				|| signingTuplePool.getPublicKey() != pk)) {
+			throw new IllegalArgumentException("Signing tuple pool belongs to a different key pair");
+		}
+		this.signingTuplePool = signingTuplePool;
+	}
+
+	public SigningTuplePool getSigningTuplePool() {
+		return signingTuplePool;
+	}
+
+	/**
+	 * Sets the executor on which {@link #issueSignatures(IssueCommitmentMessage, List, BigInteger)}
+	 * signs multiple credentials in parallel and on which the proofs in a
+	 * {@link ProofList} are verified concurrently, or null (the default) to do
+	 * this one after the other on the calling thread. The asynchronous methods
+	 * run on this executor, or on the common pool if it is null. On Java 21
+	 * and up, Executors.newVirtualThreadPerTaskExecutor() is an option.
+	 * <p>
+	 * The synchronous methods, such as {@link #verifyCommitments(IssueCommitmentMessage, BigInteger)},
+	 * hand work to this executor and then block until it is done. Do not
+	 * call them from tasks running on a bounded pool that is also set here:
+	 * once all of its threads block this way, issuance stalls. Such tasks
+	 * should use the asynchronous methods and compose their futures, as
+	 * {@link IssuanceScheduler} does.
+	 */
+	public void setExecutor(Executor executor) {
+		this.executor = executor;
+	}
+
+	public Executor getExecutor() {
+		return executor;
+	}
+
+	/**
+	 * Whether or not to start signing while the proofs of the recipient are
+	 * still being verified (default false). The signing then runs on the
+	 * executor of this issuer, or on the common pool if no executor is set.
+	 * If verification fails, the signatures are discarded and never returned.
+	 * This (nearly) halves the latency of issuance when there are idle cores,
+	 * at the cost of wasted work for invalid requests.
+	 */
+	public void setSpeculativeSigning(boolean speculativeSigning) {
+		this.speculativeSigning = speculativeSigning;
+	}
+
+	public boolean getSpeculativeSigning() {
+		return speculativeSigning;
+	}
+
+	/**
+	 * Sets a cache in which the responses of
+	 * {@link #issueSignature(IssueCommitmentMessage, List, int, BigInteger)}
+	 * are remembered, so that retried requests get the same response without
+	 * verifying and signing again; or null (the default) to process every
+	 * request anew. The cache may be shared between issuers.
+	 */
+	public void setResponseCache(IssuanceResponseCache responseCache) {
+		this.responseCache = responseCache;
+	}
+
+	public IssuanceResponseCache getResponseCache() {
+		return responseCache;
+	}
+
+	/**
+	 * Sets a journal in which every signature handed out by this issuer is
+	 * recorded (its key counter, e, time and a hash of the attributes), or
+	 * null (the default) to keep no record. Signatures are recorded when they
+	 * are returned, after the proofs of the recipient have been verified, so
+	 * speculative signatures that are discarded are not recorded. The
+	 * low-level signing methods, such as
+	 * {@link #signCommitmentAndAttributes(BigInteger, List)}, record nothing.
+	 */
+	public void setJournal(IssuanceJournal journal) {
+		this.journal = journal;
+	}
+
+	public IssuanceJournal getJournal() {
+		return journal;
+	}
 }
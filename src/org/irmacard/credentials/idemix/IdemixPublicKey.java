@@ -31,6 +31,7 @@
 package org.irmacard.credentials.idemix;
 
 import org.irmacard.credentials.PublicKey;
+import org.irmacard.credentials.idemix.util.FixedBaseTables;
 import org.irmacard.credentials.info.ConfigurationParser;
 import org.irmacard.credentials.info.InfoException;
 import org.w3c.dom.Document;
@@ -58,6 +59,9 @@ public class IdemixPublicKey extends ConfigurationParser implements PublicKey {
 	private int counter;
 	private Date expiryDate;
 
+	private static volatile boolean fixedBasePrecomputation = false;
+	private volatile FixedBaseTables fixedBaseTables;
+
 	public IdemixPublicKey(BigInteger n, BigInteger Z, BigInteger S,
 			List<BigInteger> R) {
 
@@ -78,19 +82,23 @@ public class IdemixPublicKey extends ConfigurationParser implements PublicKey {
 
 	public void set_n(BigInteger n) {
 		this.n = n;
+		this.fixedBaseTables = null;
 	}
 
 	public void set_Z(BigInteger Z) {
 		this.Z = Z;
+		this.fixedBaseTables = null;
 	}
 
 	public void set_S(BigInteger S) {
 		this.S = S;
+		this.fixedBaseTables = null;
 	}
 
 	public void set_Ri(int i, BigInteger Ri) {
 		System.out.println("Setting R" + i + ": " + Ri);
 		R.set(i, Ri);
+		this.fixedBaseTables = null;
 	}
 
 	/**
@@ -160,6 +168,51 @@ public class IdemixPublicKey extends ConfigurationParser implements PublicKey {
 		return systemParameters;
 	}
 
+	/**
+	 * Enable or disable precomputation of fixed-base tables for the generators S, Z and R_i of
+	 * all public keys (disabled by default). When enabled, exponentiations with these generators
+	 * become about twice as fast, at the cost of about 60 KB of memory per generator per key.
+	 * The tables of a key are computed on first use.
+	 */
+	public static void setFixedBasePrecomputation(boolean enabled) {
+		fixedBasePrecomputation = enabled;
+	}
+
+	public static boolean isFixedBasePrecomputationEnabled() {
+		return fixedBasePrecomputation;
+	}
+
+	/**
+	 * Returns precomputed powers of the generators S, Z and R_i of this key, for use in
+	 * {@link org.irmacard.credentials.idemix.util.Crypto#multiExp(List, List, BigInteger, FixedBaseTables)}.
+	 * The tables are computed on first use and then shared between all threads.
+	 * @return The tables, or null if fixed-base precomputation is disabled
+	 * (see {@link #setFixedBasePrecomputation(boolean)})
+	 */
+	public FixedBaseTables getFixedBaseTables() {
+		if (!fixedBasePrecomputation)
+			return null;
+
+		FixedBaseTables tables = fixedBaseTables;
+		if (tables == null) {
+			synchronized (this) {
+				tables = fixedBaseTables;
+				if (tables == null) {
+					List<BigInteger> bases = new ArrayList<>(R.size() + 2);
+					bases.add(S);
+					bases.add(Z);
+					bases.addAll(R);
+
+					// The largest exponents of the generators are the v_responses of disclosure proofs
+					tables = new FixedBaseTables(n, bases, systemParameters.l_v_commit + 1);
+					fixedBaseTables = tables;
+				}
+			}
+		}
+
+		return tables;
+	}
+
 	public String toString() {
 		return "Public key: " + R.get(0);
 	}
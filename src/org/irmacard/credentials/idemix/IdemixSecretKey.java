@@ -52,6 +52,13 @@ public class IdemixSecretKey extends ConfigurationParser {
 	private BigInteger p_prime;
 	private BigInteger q_prime;
 
+	// Derived values for fast exponentiation using the Chinese Remainder Theorem
+	private BigInteger n;
+	private BigInteger p_prime_q_prime;
+	private BigInteger p_minus_one;
+	private BigInteger q_minus_one;
+	private BigInteger q_inverse; // q^{-1} mod p
+
 	public IdemixSecretKey(BigInteger p, BigInteger q) throws InfoException {
 		super();
 
@@ -60,6 +67,8 @@ public class IdemixSecretKey extends ConfigurationParser {
 
 		this.p_prime = p.subtract(BigInteger.ONE).shiftRight(1);
 		this.q_prime = q.subtract(BigInteger.ONE).shiftRight(1);
+
+		precompute();
 	}
 
 	/**
@@ -89,6 +98,16 @@ public class IdemixSecretKey extends ConfigurationParser {
 		q = new BigInteger(getFirstTagText(d, "q"));
 		p_prime = new BigInteger(getFirstTagText(d, "pPrime"));
 		q_prime = new BigInteger(getFirstTagText(d, "qPrime"));
+
+		precompute();
+	}
+
+	private void precompute() {
+		n = p.multiply(q);
+		p_prime_q_prime = p_prime.multiply(q_prime);
+		p_minus_one = p.subtract(BigInteger.ONE);
+		q_minus_one = q.subtract(BigInteger.ONE);
+		q_inverse = q.modInverse(p);
 	}
 
 	public BigInteger get_p() {
@@ -108,6 +127,67 @@ public class IdemixSecretKey extends ConfigurationParser {
 	}
 
 	public BigInteger get_p_prime_q_prime() {
-		return p_prime.multiply(q_prime);
+		return p_prime_q_prime;
+	}
+
+	/**
+	 * Computes base^exponent mod n, where n = pq, using the Chinese Remainder Theorem:
+	 * the exponentiation is done modulo p and modulo q separately, with the exponent
+	 * reduced modulo p - 1 and q - 1 respectively. This is about four to eight times
+	 * faster than a modPow modulo n, depending on the size of the exponent.
+	 *
+	 * @param base		an element of Z_n^*
+	 * @param exponent	the exponent, may be negative
+	 * @return			base^exponent mod n
+	 */
+	public BigInteger modPow(BigInteger base, BigInteger exponent) {
+		BigInteger x_p = base.mod(p).modPow(exponent.mod(p_minus_one), p);
+		BigInteger x_q = base.mod(q).modPow(exponent.mod(q_minus_one), q);
+		return combine(x_p, x_q);
+	}
+
+	/**
+	 * Computes the e-th root of x modulo n, for e coprime to (p-1)(q-1). As
+	 * exponentiation with such an e is a permutation of Z_n^*, this root is unique.
+	 * This is the RSA decryption operation, using the Chinese Remainder Theorem.
+	 *
+	 * @param x		an element of Z_n^*
+	 * @param e		the exponent, coprime to (p-1)(q-1)
+	 * @return		the y such that y^e = x mod n
+	 */
+	public BigInteger modRoot(BigInteger x, BigInteger e) {
+		return modRoot(x, e.modInverse(p_minus_one), e.modInverse(q_minus_one));
+	}
+
+	/**
+	 * Computes the e-th root of x modulo n as {@link #modRoot(BigInteger, BigInteger)} does,
+	 * given the exponents d_p = e^{-1} mod p - 1 and d_q = e^{-1} mod q - 1 (see
+	 * {@link #rootExponents(BigInteger)}), so that these can be computed ahead of time.
+	 *
+	 * @param x		an element of Z_n^*
+	 * @param d_p	e^{-1} mod p - 1
+	 * @param d_q	e^{-1} mod q - 1
+	 * @return		the y such that y^e = x mod n
+	 */
+	public BigInteger modRoot(BigInteger x, BigInteger d_p, BigInteger d_q) {
+		BigInteger x_p = x.mod(p).modPow(d_p, p);
+		BigInteger x_q = x.mod(q).modPow(d_q, q);
+		return combine(x_p, x_q);
+	}
+
+	/**
+	 * Returns the exponents d_p = e^{-1} mod p - 1 and d_q = e^{-1} mod q - 1 with which
+	 * {@link #modRoot(BigInteger, BigInteger, BigInteger)} computes e-th roots.
+	 */
+	public BigInteger[] rootExponents(BigInteger e) {
+		return new BigInteger[] { e.modInverse(p_minus_one), e.modInverse(q_minus_one) };
+	}
+
+	/**
+	 * Returns the x mod n such that x = x_p mod p and x = x_q mod q (Garner's formula).
+	 */
+	private BigInteger combine(BigInteger x_p, BigInteger x_q) {
+		BigInteger h = x_p.subtract(x_q).multiply(q_inverse).mod(p);
+		return x_q.add(h.multiply(q)).mod(n);
 	}
 }
@@ -0,0 +1,430 @@
+/*
+ * Copyright (c) 2015, the IRMA Team
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ *
+ *  Redistributions of source code must retain the above copyright notice, this
+ *   list of conditions and the following disclaimer.
+ *
+ *  Redistributions in binary form must reproduce the above copyright notice,
+ *   this list of conditions and the following disclaimer in the documentation
+ *   and/or other materials provided with the distribution.
+ *
+ *  Neither the name of the IRMA project nor the names of its
+ *   contributors may be used to endorse or promote products derived from
+ *   this software without specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS"
+ * AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+ * IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE
+ * DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT HOLDER OR CONTRIBUTORS BE LIABLE
+ * FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL
+ * DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR
+ * SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER
+ * CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY,
+ * OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE
+ * OF THIS SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+
+package org.irmacard.credentials.idemix;
+
+import java.math.BigInteger;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.TimeoutException;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.Condition;
+import java.util.concurrent.locks.ReentrantLock;
+
+import org.irmacard.credentials.CredentialsException;
+import org.irmacard.credentials.idemix.messages.IssueCommitmentMessage;
+import org.irmacard.credentials.idemix.messages.IssueSignatureMessage;
+import org.irmacard.credentials.info.IssuerIdentifier;
+
+/**
+ * Runs issuance requests on a fixed number of worker threads, with admission
+ * control so that overload results in fast, explicit rejections instead of
+ * ever-growing queues and latencies.
+ * <ul>
+ *     <li>The total number of queued requests, and the number of queued
+ *     requests per issuer, are bounded; requests beyond these bounds are
+ *     rejected immediately.</li>
+ *     <li>Requests of different issuers are served round-robin, so that a burst
+ *     of requests for one issuer does not starve the others.</li>
+ *     <li>A request may carry a timeout. It is rejected immediately if, judging
+ *     from the current queue and the average time an issuance takes, it cannot
+ *     start before its deadline; and it is dropped without doing any work if
+ *     its deadline passes while it is queued.</li>
+ * </ul>
+ * Rejected and dropped requests complete exceptionally with a
+ * {@link RejectedExecutionException} or a {@link TimeoutException}
+ * respectively.
+ */
+public class IssuanceExecutor {
+	/** Default maximum number of queued requests */
+	public static final int DEFAULT_MAX_QUEUED = 1024;
+	/** Default maximum number of queued requests per issuer */
+	public static final int DEFAULT_MAX_QUEUED_PER_ISSUER = 256;
+
+	private final int threadCount;
+	private final int maxQueued;
+	private final int maxQueuedPerIssuer;
+
+	private final ReentrantLock lock = new ReentrantLock();
+	private final Condition notEmpty = lock.newCondition();
+	// Queues of the issuers that have requests waiting, in round-robin order
+	private final LinkedHashMap<IssuerIdentifier, ArrayDeque<Task>> queues = new LinkedHashMap<>();
+	private int queued = 0;
+	private int busy = 0;
+	private boolean running = true;
+	private final List<Thread> threads;
+
+	// Exponential moving average of the time an issuance takes
+	private volatile long averageServiceNanos = 0;
+
+	private final AtomicLong submitted = new AtomicLong();
+	private final AtomicLong rejected = new AtomicLong();
+	private final AtomicLong expired = new AtomicLong();
+	private final AtomicLong completed = new AtomicLong();
+	private final AtomicLong totalWaitNanos = new AtomicLong();
+	private final AtomicLong maxWaitNanos = new AtomicLong();
+
+	private static class Task {
+		final IdemixIssuer issuer;
+		final IssueCommitmentMessage msg;
+		final List<BigInteger> attrs;
+		final int index;
+		final BigInteger nonce1;
+		final long enqueued;
+		final long deadline; // in terms of System.nanoTime(), or 0 if none
+		final CompletableFuture<IssueSignatureMessage> future = new CompletableFuture<>();
+
+		Task(IdemixIssuer issuer, IssueCommitmentMessage msg, List<BigInteger> attrs, int index,
+				BigInteger nonce1, long enqueued, long deadline) {
+			this.issuer = issuer;
+			this.msg = msg;
+			this.attrs = attrs;
+			this.index = index;
+			this.nonce1 = nonce1;
+			this.enqueued = enqueued;
+			this.deadline = deadline;
+		}
+	}
+
+	/**
+	 * Creates an executor with the default queue bounds and one worker thread
+	 * per available processor.
+	 */
+	public IssuanceExecutor() {
+		this(Runtime.getRuntime().availableProcessors(), DEFAULT_MAX_QUEUED, DEFAULT_MAX_QUEUED_PER_ISSUER);
+	}
+
+	/**
+	 * Creates an executor and starts its worker threads.
+	 *
+	 * @param threads
+	 *            the number of worker threads
+	 * @param maxQueued
+	 *            the maximum number of requests waiting to be processed
+	 * @param maxQueuedPerIssuer
+	 *            the maximum number of requests of a single issuer waiting to
+	 *            be processed
+	 */
+	public IssuanceExecutor(int threads, int maxQueued, int maxQueuedPerIssuer) {
+		if (threads < 1 || maxQueued < 1 || maxQueuedPerIssuer < 1) {
+			throw new IllegalArgumentException("Number of threads and queue bounds must be positive");
+		}
+
+		this.threadCount = threads;
+		this.maxQueued = maxQueued;
+		this.maxQueuedPerIssuer = maxQueuedPerIssuer;
+		this.threads = new ArrayList<>(threads);
+
+		for (int i = 0; i < threads; i++) {
+			Thread thread = new Thread(new Runnable() {
+				@Override
+				public void run() {
+					work();
+				}
+			}, "IssuanceExecutor-" + i);
+			thread.setDaemon(true);
+			this.threads.add(thread);
+			thread.start();
+		}
+	}
+
+	/**
+	 * Schedules the issuance of a signature and corresponding proof on the
+	 * given attributes, as {@link IdemixIssuer#issueSignature(IssueCommitmentMessage, List, int, BigInteger)}
+	 * does.
+	 *
+	 * @param issuerId
+	 *            the issuer on whose behalf the signature is made, used for
+	 *            fairness and per-issuer queue bounds
+	 * @param issuer
+	 *            the issuer that makes the signature
+	 * @param timeoutMillis
+	 *            the time in milliseconds within which processing of the
+	 *            request must start, or 0 for no deadline
+	 * @return a future that completes with the signature and proof; or
+	 *         exceptionally with a {@link RejectedExecutionException} if the
+	 *         request is not admitted, with a {@link TimeoutException} if its
+	 *         deadline passes while it is queued, or with a
+	 *         {@link CredentialsException} when the commitment proof(s) is/are
+	 *         not correct
+	 */
+	public CompletableFuture<IssueSignatureMessage> submit(IssuerIdentifier issuerId, IdemixIssuer issuer,
+			IssueCommitmentMessage msg, List<BigInteger> attrs, int index, BigInteger nonce1, long timeoutMillis) {
+		long now = System.nanoTime();
+		long deadline = timeoutMillis > 0 ? now + timeoutMillis * 1000000L : 0;
+		Task task = new Task(issuer, msg, attrs, index, nonce1, now, deadline);
+		submitted.incrementAndGet();
+
+		String rejection = null;
+		lock.lock();
+		try {
+			ArrayDeque<Task> queue = queues.get(issuerId);
+			if (!running) {
+				rejection = "Executor has been shut down";
+			} else if (queued >= maxQueued) {
+				rejection = "Too many issuance requests queued";
+			} else if (queue != null && queue.size() >= maxQueuedPerIssuer) {
+				rejection = "Too many issuance requests queued for " + issuerId;
+			} else if (deadline != 0 && now + estimateWaitNanos() > deadline) {
+				rejection = "Issuance request cannot be processed before its deadline";
+			} else {
+				if (queue == null) {
+					queue = new ArrayDeque<>();
+					queues.put(issuerId, queue);
+				}
+				queue.add(task);
+				queued++;
+				notEmpty.signal();
+			}
+		} finally {
+			lock.unlock();
+		}
+
+		if (rejection != null) {
+			rejected.incrementAndGet();
+			task.future.completeExceptionally(new RejectedExecutionException(rejection));
+		}
+		return task.future;
+	}
+
+	/**
+	 * Schedules the issuance of a signature on the first commitment in the
+	 * message; see {@link #submit(IssuerIdentifier, IdemixIssuer, IssueCommitmentMessage, List, int, BigInteger, long)}.
+	 */
+	public CompletableFuture<IssueSignatureMessage> submit(IssuerIdentifier issuerId, IdemixIssuer issuer,
+			IssueCommitmentMessage msg, List<BigInteger> attrs, BigInteger nonce1, long timeoutMillis) {
+		return submit(issuerId, issuer, msg, attrs, 0, nonce1, timeoutMillis);
+	}
+
+	/**
+	 * Estimates how long a request that is queued now waits before being
+	 * processed: the requests ahead of it and the ones being processed are
+	 * shared by all threads. Must be called while holding the lock.
+	 */
+	private long estimateWaitNanos() {
+		return (queued + busy) * averageServiceNanos / threadCount;
+	}
+
+	/**
+	 * Removes the next task, taking turns between issuers. Must be called
+	 * while holding the lock, when there is at least one queued task.
+	 */
+	private Task next() {
+		Iterator<Map.Entry<IssuerIdentifier, ArrayDeque<Task>>> iterator = queues.entrySet().iterator();
+		Map.Entry<IssuerIdentifier, ArrayDeque<Task>> entry = iterator.next();
+		iterator.remove();
+
+		ArrayDeque<Task> queue = entry.getValue();
+		Task task = queue.poll();
+		if (!queue.isEmpty()) {
+			// Move this issuer to the back of the line
+			queues.put(entry.getKey(), queue);
+		}
+		queued--;
+		return task;
+	}
+
+	private void work() {
+		while (true) {
+			Task task;
+			lock.lock();
+			try {
+				while (running && queued == 0) {
+					notEmpty.awaitUninterruptibly();
+				}
+				if (!running) {
+					return;
+				}
+				task = next();
+				busy++;
+			} finally {
+				lock.unlock();
+			}
+
+			try {
+				process(task);
+			} finally {
+				lock.lock();
+				try {
+					busy--;
+				} finally {
+					lock.unlock();
+				}
+			}
+		}
+	}
+
+	private void process(Task task) {
+		long start = System.nanoTime();
+		long wait = start - task.enqueued;
+		totalWaitNanos.addAndGet(wait);
+		long max = maxWaitNanos.get();
+		while (wait > max && !maxWaitNanos.compareAndSet(max, wait)) {
+			max = maxWaitNanos.get();
+		}
+
+		if (task.deadline != 0 && start > task.deadline) {
+			expired.incrementAndGet();
+			task.future.completeExceptionally(new TimeoutException("Deadline passed while queued"));
+			return;
+		}
+
+		IssueSignatureMessage result = null;
+		Exception exception = null;
+		try {
+			result = task.issuer.issueSignature(task.msg, task.attrs, task.index, task.nonce1);
+		} catch (CredentialsException|RuntimeException e) {
+			exception = e;
+		}
+
+		// Update the statistics before completing, so that they are up to date
+		// once the caller sees the result
+		long service = System.nanoTime() - start;
+		long average = averageServiceNanos;
+		averageServiceNanos = average == 0 ? service : average + (service - average) / 8;
+		completed.incrementAndGet();
+
+		if (exception == null) {
+			task.future.complete(result);
+		} else {
+			task.future.completeExceptionally(exception);
+		}
+	}
+
+	/**
+	 * Stops the worker threads once they finish their current request.
+	 * Requests that are still queued complete exceptionally with a
+	 * {@link RejectedExecutionException}, as do requests submitted afterwards.
+	 */
+	public void shutdown() {
+		List<Task> remaining = new ArrayList<>();
+		lock.lock();
+		try {
+			running = false;
+			for (ArrayDeque<Task> queue : queues.values()) {
+				remaining.addAll(queue);
+			}
+			queues.clear();
+			queued = 0;
+			notEmpty.signalAll();
+		} finally {
+			lock.unlock();
+		}
+
+		for (Task task : remaining) {
+			rejected.incrementAndGet();
+			task.future.completeExceptionally(new RejectedExecutionException("Executor has been shut down"));
+		}
+	}
+
+	/**
+	 * The number of requests waiting to be processed.
+	 */
+	public int getQueueDepth() {
+		lock.lock();
+		try {
+			return queued;
+		} finally {
+			lock.unlock();
+		}
+	}
+
+	/**
+	 * The number of requests of the given issuer waiting to be processed.
+	 */
+	public int getQueueDepth(IssuerIdentifier issuerId) {
+		lock.lock();
+		try {
+			ArrayDeque<Task> queue = queues.get(issuerId);
+			return queue == null ? 0 : queue.size();
+		} finally {
+			lock.unlock();
+		}
+	}
+
+	/**
+	 * The number of requests submitted so far, including rejected ones.
+	 */
+	public long getSubmittedCount() {
+		return submitted.get();
+	}
+
+	/**
+	 * The number of requests that were not admitted, or that were still
+	 * queued when the executor was shut down.
+	 */
+	public long getRejectedCount() {
+		return rejected.get();
+	}
+
+	/**
+	 * The number of requests whose deadline passed while they were queued.
+	 */
+	public long getExpiredCount() {
+		return expired.get();
+	}
+
+	/**
+	 * The number of requests that were processed, successfully or not.
+	 */
+	public long getCompletedCount() {
+		return completed.get();
+	}
+
+	/**
+	 * The average time in milliseconds that requests waited in the queue, or 0
+	 * if none have been taken from the queue yet.
+	 */
+	public double getAverageWaitMillis() {
+		long count = completed.get() + expired.get();
+		return count == 0 ? 0 : totalWaitNanos.get() / 1e6 / count;
+	}
+
+	/**
+	 * The longest time in milliseconds that a request waited in the queue.
+	 */
+	public double getMaxWaitMillis() {
+		return maxWaitNanos.get() / 1e6;
+	}
+
+	/**
+	 * The average time in milliseconds that processing a request takes, as used
+	 * to decide whether requests can meet their deadline.
+	 */
+	public double getAverageServiceMillis() {
+		return averageServiceNanos / 1e6;
+	}
+}
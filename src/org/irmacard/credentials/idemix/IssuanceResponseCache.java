@@ -0,0 +1,286 @@
+/*
+ * Copyright (c) 2015, the IRMA Team
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ *
+ *  Redistributions of source code must retain the above copyright notice, this
+ *   list of conditions and the following disclaimer.
+ *
+ *  Redistributions in binary form must reproduce the above copyright notice,
+ *   this list of conditions and the following disclaimer in the documentation
+ *   and/or other materials provided with the distribution.
+ *
+ *  Neither the name of the IRMA project nor the names of its
+ *   contributors may be used to endorse or promote products derived from
+ *   this software without specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS"
+ * AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+ * IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE
+ * DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT HOLDER OR CONTRIBUTORS BE LIABLE
+ * FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL
+ * DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR
+ * SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER
+ * CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY,
+ * OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE
+ * OF THIS SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+
+package org.irmacard.credentials.idemix;
+
+import java.math.BigInteger;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.TimeUnit;
+
+import org.irmacard.credentials.CredentialsException;
+import org.irmacard.credentials.idemix.messages.IssueCommitmentMessage;
+import org.irmacard.credentials.idemix.messages.IssueSignatureMessage;
+import org.irmacard.credentials.idemix.proofs.Proof;
+import org.irmacard.credentials.idemix.proofs.ProofD;
+import org.irmacard.credentials.idemix.proofs.ProofList;
+import org.irmacard.credentials.idemix.proofs.ProofU;
+import org.irmacard.credentials.idemix.util.Crypto;
+
+/**
+ * Remembers the responses to issuance requests for a limited time, so that a
+ * recipient that retries its request (for example because the response got
+ * lost on a flaky network) gets the same signature back instead of a new one,
+ * at the cost of a hash and a lookup. See
+ * {@link IdemixIssuer#setResponseCache(IssuanceResponseCache)}.
+ * <p>
+ * Requests are identified by a hash over the public key and context of the
+ * issuer, the nonce sent to the recipient, the attributes, and the entire
+ * message of the recipient. Identical requests that arrive while the first
+ * one is still being processed wait for its result. Failed requests are not
+ * remembered. The cache holds at most a fixed number of responses, evicting
+ * the least recently used ones first.
+ */
+public class IssuanceResponseCache {
+	/** Default maximum number of responses */
+	public static final int DEFAULT_CAPACITY = 10000;
+	/** Default time responses are remembered, in milliseconds */
+	public static final long DEFAULT_TTL_MILLIS = TimeUnit.MINUTES.toMillis(5);
+
+	private final long ttlNanos;
+	private final LinkedHashMap<BigInteger, Entry> entries;
+
+	private long hits = 0;
+	private long misses = 0;
+
+	/**
+	 * The computation of a response, for when it is not in the cache.
+	 */
+	public interface Issuance {
+		IssueSignatureMessage issue() throws CredentialsException;
+	}
+
+	private static class Entry {
+		final CompletableFuture<IssueSignatureMessage> response;
+		final long expires;
+
+		Entry(CompletableFuture<IssueSignatureMessage> response, long expires) {
+			this.response = response;
+			this.expires = expires;
+		}
+	}
+
+	public IssuanceResponseCache() {
+		this(DEFAULT_CAPACITY, DEFAULT_TTL_MILLIS);
+	}
+
+	/**
+	 * @param capacity
+	 *            the maximum number of responses to remember
+	 * @param ttlMillis
+	 *            the time in milliseconds to remember a response for
+	 */
+	public IssuanceResponseCache(final int capacity, long ttlMillis) {
+		if (capacity < 1 || ttlMillis < 1) {
+			throw new IllegalArgumentException("Capacity and time to live must be positive");
+		}
+
+		this.ttlNanos = TimeUnit.MILLISECONDS.toNanos(ttlMillis);
+		this.entries = new LinkedHashMap<BigInteger, Entry>(16, 0.75f, true) {
+			private static final long serialVersionUID = 1L;
+
+			@Override
+			protected boolean removeEldestEntry(Map.Entry<BigInteger, Entry> eldest) {
+				return size() > capacity;
+			}
+		};
+	}
+
+	/**
+	 * Returns the response for the request with the given key: the
+	 * remembered one if there is one, otherwise a new one computed by the
+	 * given issuance.
+	 *
+	 * @throws CredentialsException if the issuance fails
+	 */
+	public IssueSignatureMessage get(BigInteger key, Issuance issuance) throws CredentialsException {
+		CompletableFuture<IssueSignatureMessage> response;
+		boolean compute = false;
+		long now = System.nanoTime();
+
+		synchronized (this) {
+			Entry entry = entries.get(key);
+			if (entry != null && now - entry.expires < 0) {
+				hits++;
+				response = entry.response;
+			} else {
+				misses++;
+				response = new CompletableFuture<>();
+				entries.put(key, new Entry(response, now + ttlNanos));
+				compute = true;
+			}
+		}
+
+		if (compute) {
+			try {
+				IssueSignatureMessage msg = issuance.issue();
+				response.complete(msg);
+				return msg;
+			} catch (CredentialsException|RuntimeException e) {
+				forget(key, response);
+				response.completeExceptionally(e);
+				throw e;
+			}
+		}
+
+		try {
+			return response.join();
+		} catch (CompletionException e) {
+			if (e.getCause() instanceof CredentialsException)
+				throw (CredentialsException) e.getCause();
+			if (e.getCause() instanceof RuntimeException)
+				throw (RuntimeException) e.getCause();
+			throw e;
+		}
+	}
+
+	private synchronized void forget(BigInteger key, CompletableFuture<IssueSignatureMessage> response) {
+		Entry entry = entries.get(key);
+		if (entry != null && entry.response == response) {
+			entries.remove(key);
+		}
+	}
+
+	/**
+	 * Computes the key identifying an issuance request.
+	 */
+	public static BigInteger key(IdemixPublicKey pk, BigInteger context, IssueCommitmentMessage msg,
+			List<BigInteger> attrs, int index, BigInteger nonce1) {
+		List<BigInteger> values = new ArrayList<>();
+		add(values, pk.getModulus());
+		add(values, context);
+		add(values, nonce1);
+		add(values, BigInteger.valueOf(index));
+		add(values, BigInteger.valueOf(attrs.size()));
+		for (BigInteger attr : attrs) {
+			add(values, attr);
+		}
+
+		add(values, msg.getNonce2());
+		ProofList proofs = msg.getCombinedProofs();
+		if (proofs == null) {
+			add(values, BigInteger.ZERO);
+			add(values, msg.getCommitmentProof());
+		} else {
+			add(values, BigInteger.valueOf(proofs.size()));
+			for (Proof proof : proofs) {
+				if (proof instanceof ProofU) {
+					add(values, (ProofU) proof);
+				} else if (proof instanceof ProofD) {
+					add(values, (ProofD) proof);
+				} else {
+					throw new IllegalArgumentException("Unsupported proof type " + proof.getClass().getName());
+				}
+			}
+		}
+
+		return Crypto.sha256Hash(Crypto.asn1Encode(values.toArray(new BigInteger[values.size()])));
+	}
+
+	private static void add(List<BigInteger> values, ProofU proof) {
+		if (proof == null) {
+			add(values, (BigInteger) null);
+			return;
+		}
+		add(values, BigInteger.ONE);
+		add(values, proof.getU());
+		add(values, proof.get_c());
+		add(values, proof.get_v_prime_response());
+		add(values, proof.get_s_response());
+	}
+
+	private static void add(List<BigInteger> values, ProofD proof) {
+		add(values, Crypto.TWO);
+		add(values, proof.get_c());
+		add(values, proof.getA());
+		add(values, proof.get_e_response());
+		add(values, proof.get_v_response());
+		add(values, proof.get_a_responses());
+		add(values, proof.get_a_disclosed());
+	}
+
+	private static void add(List<BigInteger> values, Map<Integer, BigInteger> map) {
+		if (map == null) {
+			add(values, (BigInteger) null);
+			return;
+		}
+		add(values, BigInteger.valueOf(map.size()));
+		for (Map.Entry<Integer, BigInteger> entry : new TreeMap<>(map).entrySet()) {
+			add(values, BigInteger.valueOf(entry.getKey()));
+			add(values, entry.getValue());
+		}
+	}
+
+	/**
+	 * Adds the value, preceded by a marker distinguishing it from null.
+	 */
+	private static void add(List<BigInteger> values, BigInteger value) {
+		if (value == null) {
+			values.add(BigInteger.ZERO);
+		} else {
+			values.add(BigInteger.ONE);
+			values.add(value);
+		}
+	}
+
+	/**
+	 * The number of responses currently remembered, including expired ones
+	 * that have not been evicted yet.
+	 */
+	public synchronized int size() {
+		return entries.size();
+	}
+
+	/**
+	 * Forgets all responses.
+	 */
+	public synchronized void clear() {
+		entries.clear();
+	}
+
+	/**
+	 * The number of requests that were answered from the cache.
+	 */
+	public synchronized long getHits() {
+		return hits;
+	}
+
+	/**
+	 * The number of requests for which a new response was computed.
+	 */
+	public synchronized long getMisses() {
+		return misses;
+	}
+}
@@ -0,0 +1,350 @@
+/*
+ * Copyright (c) 2015, the IRMA Team
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ *
+ *  Redistributions of source code must retain the above copyright notice, this
+ *   list of conditions and the following disclaimer.
+ *
+ *  Redistributions in binary form must reproduce the above copyright notice,
+ *   this list of conditions and the following disclaimer in the documentation
+ *   and/or other materials provided with the distribution.
+ *
+ *  Neither the name of the IRMA project nor the names of its
+ *   contributors may be used to endorse or promote products derived from
+ *   this software without specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS"
+ * AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+ * IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE
+ * DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT HOLDER OR CONTRIBUTORS BE LIABLE
+ * FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL
+ * DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR
+ * SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER
+ * CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY,
+ * OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE
+ * OF THIS SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+
+package org.irmacard.credentials.idemix;
+
+import java.math.BigInteger;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.Executor;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.TimeUnit;
+
+import org.irmacard.credentials.CredentialsException;
+import org.irmacard.credentials.idemix.messages.IssueCommitmentMessage;
+import org.irmacard.credentials.idemix.messages.IssueSignatureMessage;
+import org.irmacard.credentials.idemix.proofs.ProofS;
+
+/**
+ * Collects issuance requests for a single {@link IdemixIssuer} from many
+ * threads into small batches on a background thread, and processes each
+ * batch on an executor (by default the common pool). A batch is started as
+ * soon as it contains {@link #getMaxBatchSize()} requests, or when the first
+ * request in it has waited for {@link #getMaxWaitMillis()} milliseconds. The
+ * commitment proofs in a batch are verified concurrently, after which all
+ * valid requests are signed together using a {@link BatchCLSigner}, sharing
+ * a single modular inversion; this trades a few milliseconds of latency for
+ * throughput. Several batches may be in progress at the same time.
+ * <p>
+ * Results are returned as futures. A request whose proofs do not verify
+ * completes exceptionally with a {@link CredentialsException}, without
+ * affecting the other requests in its batch.
+ */
+public class IssuanceScheduler {
+	/** Default maximum number of requests per batch */
+	public static final int DEFAULT_MAX_BATCH_SIZE = 16;
+	/** Default maximum time the first request of a batch waits for others, in milliseconds */
+	public static final long DEFAULT_MAX_WAIT_MILLIS = 5;
+
+	private final IdemixIssuer issuer;
+	private final int maxBatchSize;
+	private final long maxWaitMillis;
+	private final Executor executor;
+
+	private final BlockingQueue<Request> queue = new LinkedBlockingQueue<>();
+	private final Thread dispatcher;
+	private volatile boolean running = true;
+
+	private static class Request {
+		final IssueCommitmentMessage msg;
+		final List<BigInteger> attrs;
+		final int index;
+		final BigInteger nonce1;
+		final CompletableFuture<IssueSignatureMessage> future = new CompletableFuture<>();
+
+		BigInteger U;
+
+		Request(IssueCommitmentMessage msg, List<BigInteger> attrs, int index, BigInteger nonce1) {
+			this.msg = msg;
+			this.attrs = attrs;
+			this.index = index;
+			this.nonce1 = nonce1;
+		}
+	}
+
+	public IssuanceScheduler(IdemixIssuer issuer) {
+		this(issuer, DEFAULT_MAX_BATCH_SIZE, DEFAULT_MAX_WAIT_MILLIS);
+	}
+
+	/**
+	 * Creates a scheduler that processes its batches on the common pool, and
+	 * starts its background thread.
+	 *
+	 * @param issuer
+	 *            the issuer that processes the requests
+	 * @param maxBatchSize
+	 *            the maximum number of requests processed at once
+	 * @param maxWaitMillis
+	 *            the maximum time in milliseconds that a request waits for
+	 *            other requests to join its batch
+	 */
+	public IssuanceScheduler(IdemixIssuer issuer, int maxBatchSize, long maxWaitMillis) {
+		this(issuer, maxBatchSize, maxWaitMillis, ForkJoinPool.commonPool());
+	}
+
+	/**
+	 * Creates a scheduler and starts its background thread.
+	 *
+	 * @param issuer
+	 *            the issuer that processes the requests
+	 * @param maxBatchSize
+	 *            the maximum number of requests processed at once
+	 * @param maxWaitMillis
+	 *            the maximum time in milliseconds that a request waits for
+	 *            other requests to join its batch
+	 * @param executor
+	 *            the executor on which the batches are verified and signed
+	 */
+	public IssuanceScheduler(IdemixIssuer issuer, int maxBatchSize, long maxWaitMillis, Executor executor) {
+		if (maxBatchSize < 1 || maxWaitMillis < 0) {
+			throw new IllegalArgumentException("Invalid batch size or waiting time");
+		}
+
+		this.issuer = issuer;
+		this.maxBatchSize = maxBatchSize;
+		this.maxWaitMillis = maxWaitMillis;
+		this.executor = executor;
+
+		dispatcher = new Thread(new Runnable() {
+			@Override
+			public void run() {
+				dispatch();
+			}
+		}, "IssuanceScheduler");
+		dispatcher.setDaemon(true);
+		dispatcher.start();
+	}
+
+	/**
+	 * Schedules the issuance of a signature and corresponding proof on the
+	 * given attributes, as {@link IdemixIssuer#issueSignature(IssueCommitmentMessage, List, int, BigInteger)}
+	 * does.
+	 *
+	 * @return a future that completes with the signature and proof, or
+	 *         exceptionally with a {@link CredentialsException} when the
+	 *         commitment proof(s) is/are not correct
+	 * @throws IllegalStateException if the scheduler has been shut down
+	 */
+	public CompletableFuture<IssueSignatureMessage> submit(IssueCommitmentMessage msg,
+			List<BigInteger> attrs, int index, BigInteger nonce1) {
+		if (!running) {
+			throw new IllegalStateException("Scheduler has been shut down");
+		}
+
+		Request request = new Request(msg, attrs, index, nonce1);
+		queue.add(request);
+
+		// If we were shut down in the meantime, the dispatcher may no longer see
+		// this request
+		if (!running) {
+			failPending();
+		}
+
+		return request.future;
+	}
+
+	/**
+	 * Schedules the issuance of a signature on the first commitment in the
+	 * message; see {@link #submit(IssueCommitmentMessage, List, int, BigInteger)}.
+	 */
+	public CompletableFuture<IssueSignatureMessage> submit(IssueCommitmentMessage msg,
+			List<BigInteger> attrs, BigInteger nonce1) {
+		return submit(msg, attrs, 0, nonce1);
+	}
+
+	private void dispatch() {
+		List<Request> batch = new ArrayList<>(maxBatchSize);
+		try {
+			while (running) {
+				batch.add(queue.take());
+				long deadline = System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(maxWaitMillis);
+				while (batch.size() < maxBatchSize) {
+					Request request = queue.poll(deadline - System.nanoTime(), TimeUnit.NANOSECONDS);
+					if (request == null) {
+						break;
+					}
+					batch.add(request);
+				}
+
+				process(new ArrayList<>(batch));
+				batch.clear();
+			}
+		} catch (InterruptedException e) {
+			// We are being shut down
+		}
+
+		for (Request request : batch) {
+			request.future.completeExceptionally(new IllegalStateException("Scheduler has been shut down"));
+		}
+		failPending();
+	}
+
+	/**
+	 * Verifies the requests of a batch concurrently, and then signs the valid
+	 * ones together on the executor. The proofs are verified using
+	 * {@link IdemixIssuer#verifyCommitmentsAsync(IssueCommitmentMessage, BigInteger)},
+	 * so that no thread of the executor blocks while waiting for the
+	 * executor of the issuer, which may be the same one.
+	 */
+	private void process(final List<Request> batch) {
+		List<CompletableFuture<?>> checks = new ArrayList<>(batch.size());
+		try {
+			for (final Request request : batch) {
+				checks.add(issuer.verifyCommitmentsAsync(request.msg, request.nonce1)
+						.handle((result, e) -> verified(request, e)));
+			}
+			CompletableFuture.allOf(checks.toArray(new CompletableFuture<?>[checks.size()]))
+					.thenRunAsync(() -> sign(batch), executor)
+					.whenComplete((result, e) -> {
+						if (e != null) {
+							fail(batch, e);
+						}
+					});
+		} catch (RuntimeException e) {
+			// The executor rejected (part of) the batch
+			fail(batch, e);
+		}
+	}
+
+	private static void fail(List<Request> batch, Throwable e) {
+		for (Request request : batch) {
+			request.future.completeExceptionally(e);
+		}
+	}
+
+	/**
+	 * Extracts the commitment of the request once its proofs have been
+	 * verified, or completes it exceptionally if they were not correct.
+	 */
+	private Void verified(Request request, Throwable e) {
+		if (e != null) {
+			request.future.completeExceptionally(
+					e instanceof CompletionException && e.getCause() != null ? e.getCause() : e);
+			return null;
+		}
+
+		try {
+			request.U = issuer.getCommitment(request.msg, request.index);
+		} catch (CredentialsException|RuntimeException ex) {
+			request.future.completeExceptionally(ex);
+		}
+		return null;
+	}
+
+	/**
+	 * Signs the verified requests of the batch together, and then proves the
+	 * signatures concurrently.
+	 */
+	private void sign(List<Request> batch) {
+		final List<Request> verified = new ArrayList<>(batch.size());
+		List<BigInteger> Us = new ArrayList<>(batch.size());
+		List<List<BigInteger>> attrs = new ArrayList<>(batch.size());
+		for (Request request : batch) {
+			if (!request.future.isDone()) {
+				verified.add(request);
+				Us.add(request.U);
+				attrs.add(request.attrs);
+			}
+		}
+
+		if (verified.isEmpty()) {
+			return;
+		}
+
+		final List<SigningResult> results;
+		try {
+			results = issuer.signWithIntermediates(Us, attrs);
+		} catch (RuntimeException e) {
+			for (Request request : verified) {
+				request.future.completeExceptionally(e);
+			}
+			return;
+		}
+
+		for (int i = 0; i < verified.size(); i++) {
+			final Request request = verified.get(i);
+			final SigningResult result = results.get(i);
+			Runnable prove = () -> {
+				try {
+					ProofS proof = issuer.proveSignature(result, request.msg.getNonce2());
+					issuer.journal(result.getSignature(), request.attrs);
+					request.future.complete(new IssueSignatureMessage(result.getSignature(), proof));
+				} catch (RuntimeException e) {
+					request.future.completeExceptionally(e);
+				}
+			};
+
+			// The last one is proved on this thread
+			if (i == verified.size() - 1) {
+				prove.run();
+			} else {
+				try {
+					executor.execute(prove);
+				} catch (RuntimeException e) {
+					prove.run();
+				}
+			}
+		}
+	}
+
+	private void failPending() {
+		Request request;
+		while ((request = queue.poll()) != null) {
+			request.future.completeExceptionally(new IllegalStateException("Scheduler has been shut down"));
+		}
+	}
+
+	/**
+	 * Stops accepting requests and stops the background thread. Batches that
+	 * were already handed to the executor are still completed; requests that
+	 * have not been added to a batch yet complete exceptionally with an
+	 * {@link IllegalStateException}.
+	 */
+	public void shutdown() {
+		running = false;
+		dispatcher.interrupt();
+	}
+
+	public IdemixIssuer getIssuer() {
+		return issuer;
+	}
+
+	public int getMaxBatchSize() {
+		return maxBatchSize;
+	}
+
+	public long getMaxWaitMillis() {
+		return maxWaitMillis;
+	}
+}
@@ -0,0 +1,125 @@
+/*
+ * Copyright (c) 2015, the IRMA Team
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ *
+ *  Redistributions of source code must retain the above copyright notice, this
+ *   list of conditions and the following disclaimer.
+ *
+ *  Redistributions in binary form must reproduce the above copyright notice,
+ *   this list of conditions and the following disclaimer in the documentation
+ *   and/or other materials provided with the distribution.
+ *
+ *  Neither the name of the IRMA project nor the names of its
+ *   contributors may be used to endorse or promote products derived from
+ *   this software without specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS"
+ * AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+ * IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE
+ * DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT HOLDER OR CONTRIBUTORS BE LIABLE
+ * FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL
+ * DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR
+ * SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER
+ * CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY,
+ * OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE
+ * OF THIS SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+
+package org.irmacard.credentials.idemix;
+
+import java.math.BigInteger;
+import java.util.List;
+
+import org.irmacard.credentials.idemix.messages.IssueSignatureMessage;
+
+/**
+ * A pending issuance session in an {@link IssuanceSessionStore}: the nonce
+ * handed out to the recipient, along with what the issuer intends to issue.
+ * Once a request has been served, the session is completed with the
+ * response, which is then sent again for retries of that request.
+ */
+public class IssuanceSession {
+	private final BigInteger nonce1;
+	private final String issuer;
+	private final int keyCounter;
+	private final BigInteger context;
+	private final List<BigInteger> attributes;
+	final long expiresAt; // System.nanoTime()
+
+	// The request that completed this session and its response, guarded by this
+	private BigInteger requestKey;
+	private IssueSignatureMessage response;
+
+	// Links in the bucket of the time wheel, guarded by the bucket
+	volatile IssuanceSessionStore.Bucket bucket;
+	IssuanceSession prev;
+	IssuanceSession next;
+
+	IssuanceSession(BigInteger nonce1, String issuer, int keyCounter, BigInteger context,
+			List<BigInteger> attributes, long expiresAt) {
+		this.nonce1 = nonce1;
+		this.issuer = issuer;
+		this.keyCounter = keyCounter;
+		this.context = context;
+		this.attributes = attributes;
+		this.expiresAt = expiresAt;
+	}
+
+	public BigInteger getNonce1() {
+		return nonce1;
+	}
+
+	public String getIssuer() {
+		return issuer;
+	}
+
+	public int getKeyCounter() {
+		return keyCounter;
+	}
+
+	public BigInteger getContext() {
+		return context;
+	}
+
+	public List<BigInteger> getAttributes() {
+		return attributes;
+	}
+
+	public boolean isExpired() {
+		return System.nanoTime() - expiresAt >= 0;
+	}
+
+	/**
+	 * Whether a request has been served for this session.
+	 */
+	public synchronized boolean isCompleted() {
+		return response != null;
+	}
+
+	/**
+	 * Returns the response to the request with the given key (see
+	 * {@link IssuanceResponseCache#key}), if that request completed this
+	 * session; null otherwise.
+	 */
+	public synchronized IssueSignatureMessage getResponse(BigInteger requestKey) {
+		return response != null && this.requestKey.equals(requestKey) ? response : null;
+	}
+
+	/**
+	 * Completes this session with the response to the request with the given
+	 * key, unless it was already completed by another request.
+	 *
+	 * @return whether this call completed the session
+	 */
+	synchronized boolean complete(BigInteger requestKey, IssueSignatureMessage response) {
+		if (this.response != null) {
+			return false;
+		}
+		this.requestKey = requestKey;
+		this.response = response;
+		return true;
+	}
+}
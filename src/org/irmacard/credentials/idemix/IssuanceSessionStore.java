@@ -0,0 +1,326 @@
+/*
+ * Copyright (c) 2015, the IRMA Team
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ *
+ *  Redistributions of source code must retain the above copyright notice, this
+ *   list of conditions and the following disclaimer.
+ *
+ *  Redistributions in binary form must reproduce the above copyright notice,
+ *   this list of conditions and the following disclaimer in the documentation
+ *   and/or other materials provided with the distribution.
+ *
+ *  Neither the name of the IRMA project nor the names of its
+ *   contributors may be used to endorse or promote products derived from
+ *   this software without specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS"
+ * AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+ * IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE
+ * DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT HOLDER OR CONTRIBUTORS BE LIABLE
+ * FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL
+ * DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR
+ * SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER
+ * CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY,
+ * OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE
+ * OF THIS SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+
+package org.irmacard.credentials.idemix;
+
+import java.math.BigInteger;
+import java.security.SecureRandom;
+import java.util.List;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.irmacard.credentials.idemix.messages.IssueSignatureMessage;
+
+/**
+ * Keeps track of pending issuance sessions: the nonces nonce1 handed out to
+ * recipients, along with the attributes, key and context they are to be
+ * issued with. A session is opened with
+ * {@link #open(String, int, BigInteger, List)}, which generates a fresh
+ * nonce. When the recipient's commitment comes in, the session is either
+ * consumed by {@link #consume(BigInteger)}, or looked up using
+ * {@link #get(BigInteger)} and, once the credential has been issued,
+ * completed with the response using
+ * {@link #complete(BigInteger, BigInteger, IssueSignatureMessage)}. A
+ * completed session is kept until it expires, so that retries of the same
+ * request can be answered; no other request can use it. Sessions expire
+ * after the time to live.
+ * <p>
+ * Expiry is driven by a hashed time wheel: every session is linked into the
+ * bucket of the tick in which it expires, and a background thread empties
+ * one bucket per tick. Opening, consuming and expiring a session each take
+ * constant time, and the number of sessions (and thus the memory used) is
+ * bounded; when the store is full, new sessions are rejected.
+ */
+public class IssuanceSessionStore {
+	/** Default time to live of a session, in milliseconds */
+	public static final long DEFAULT_TTL_MILLIS = TimeUnit.MINUTES.toMillis(5);
+	/** Default resolution of expiry, in milliseconds */
+	public static final long DEFAULT_TICK_MILLIS = 1000;
+	/** Default maximum number of open sessions */
+	public static final int DEFAULT_MAX_SESSIONS = 500000;
+
+	private static final SecureRandom random = new SecureRandom();
+
+	static class Bucket {
+		IssuanceSession head;
+	}
+
+	private final int nonceBits;
+	private final long ttlNanos;
+	private final long tickNanos;
+	private final int maxSessions;
+
+	private final ConcurrentHashMap<BigInteger, IssuanceSession> sessions;
+	private final AtomicInteger count = new AtomicInteger();
+
+	private final Bucket[] wheel;
+	private final long start = System.nanoTime();
+	private long processedTick = 0; // only accessed by the timer thread
+
+	private final Thread timer;
+	private volatile boolean running = true;
+
+	/**
+	 * Creates a store with the default time to live, tick and capacity,
+	 * generating nonces of the size prescribed by the given system parameters.
+	 */
+	public IssuanceSessionStore(IdemixSystemParameters params) {
+		this(params.l_statzk, DEFAULT_TTL_MILLIS, DEFAULT_TICK_MILLIS, DEFAULT_MAX_SESSIONS);
+	}
+
+	/**
+	 * Creates a store and starts its timer thread.
+	 *
+	 * @param nonceBits
+	 *            the size of the generated nonces in bits
+	 * @param ttlMillis
+	 *            the time to live of a session, in milliseconds
+	 * @param tickMillis
+	 *            the resolution of expiry, in milliseconds; sessions are
+	 *            removed at most this long after they expire
+	 * @param maxSessions
+	 *            the maximum number of open sessions
+	 */
+	public IssuanceSessionStore(int nonceBits, long ttlMillis, long tickMillis, int maxSessions) {
+		if (nonceBits < 1 || ttlMillis < 1 || tickMillis < 1 || maxSessions < 1) {
+			throw new IllegalArgumentException("Parameters must be positive");
+		}
+
+		this.nonceBits = nonceBits;
+		this.ttlNanos = TimeUnit.MILLISECONDS.toNanos(ttlMillis);
+		this.tickNanos = TimeUnit.MILLISECONDS.toNanos(tickMillis);
+		this.maxSessions = maxSessions;
+		this.sessions = new ConcurrentHashMap<>(Math.min(maxSessions, 1 << 16));
+
+		// Large enough that a session never lands in a bucket a full turn ahead
+		int size = (int) Math.min(Integer.MAX_VALUE - 8, (ttlNanos + tickNanos - 1) / tickNanos + 2);
+		this.wheel = new Bucket[size];
+		for (int i = 0; i < size; i++) {
+			wheel[i] = new Bucket();
+		}
+
+		timer = new Thread(this::run, "IssuanceSessionStore timer");
+		timer.setDaemon(true);
+		timer.start();
+	}
+
+	/**
+	 * Opens a session with a fresh nonce.
+	 *
+	 * @param issuer
+	 *            the name of the issuer, which fixes (along with the key
+	 *            counter) the key that signs in this session
+	 * @param keyCounter
+	 *            the counter of the key to issue with
+	 * @param context
+	 *            the context of the session
+	 * @param attributes
+	 *            the attributes to be issued
+	 * @return the session, whose nonce is to be sent to the recipient
+	 * @throws IllegalArgumentException if the issuer is null
+	 * @throws IllegalStateException if the maximum number of sessions is open,
+	 *         or if the store is shut down
+	 */
+	public IssuanceSession open(String issuer, int keyCounter, BigInteger context, List<BigInteger> attributes) {
+		if (issuer == null) {
+			throw new IllegalArgumentException("Issuer of an issuance session must not be null");
+		}
+		if (!running) {
+			throw new IllegalStateException("Session store is shut down");
+		}
+		if (count.incrementAndGet() > maxSessions) {
+			count.decrementAndGet();
+			throw new IllegalStateException("Too many open issuance sessions");
+		}
+
+		long expiresAt = System.nanoTime() + ttlNanos;
+		IssuanceSession session;
+		do {
+			session = new IssuanceSession(new BigInteger(nonceBits, random), issuer, keyCounter,
+					context, attributes, expiresAt);
+		} while (sessions.putIfAbsent(session.getNonce1(), session) != null);
+
+		link(wheel[(int) (tickOf(expiresAt) % wheel.length)], session);
+		return session;
+	}
+
+	/**
+	 * Removes the session with the given nonce and returns it, so that it can
+	 * be used only once.
+	 *
+	 * @return the session, or null if there is no such session or it expired
+	 */
+	public IssuanceSession consume(BigInteger nonce1) {
+		IssuanceSession session = sessions.remove(nonce1);
+		if (session == null) {
+			return null;
+		}
+
+		count.decrementAndGet();
+		unlink(session);
+		return session.isExpired() ? null : session;
+	}
+
+	/**
+	 * Returns the session with the given nonce without consuming it. The
+	 * session may have been completed already.
+	 *
+	 * @return the session, or null if there is no such session or it expired
+	 */
+	public IssuanceSession get(BigInteger nonce1) {
+		IssuanceSession session = sessions.get(nonce1);
+		return session == null || session.isExpired() ? null : session;
+	}
+
+	/**
+	 * Completes the session with the given nonce with the response to the
+	 * request with the given key, unless another request completed it first.
+	 * The session stays in the store until it expires, so that the response
+	 * can be sent again for retries of the request.
+	 *
+	 * @return whether this call completed the session; false if there is no
+	 *         such session, it expired, or it was already completed (possibly
+	 *         by a concurrent retry of the same request, see
+	 *         {@link IssuanceSession#getResponse(BigInteger)})
+	 */
+	public boolean complete(BigInteger nonce1, BigInteger requestKey, IssueSignatureMessage response) {
+		IssuanceSession session = get(nonce1);
+		return session != null && session.complete(requestKey, response);
+	}
+
+	/**
+	 * The number of open sessions, including expired ones that have not been
+	 * removed yet.
+	 */
+	public int size() {
+		return count.get();
+	}
+
+	/**
+	 * Stops the timer thread and discards all sessions.
+	 */
+	public void shutdown() {
+		running = false;
+		timer.interrupt();
+		try {
+			timer.join();
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+		}
+		for (BigInteger nonce1 : sessions.keySet()) {
+			consume(nonce1);
+		}
+	}
+
+	/**
+	 * The tick in which the given time falls, rounded up.
+	 */
+	private long tickOf(long time) {
+		return (time - start + tickNanos - 1) / tickNanos;
+	}
+
+	private void run() {
+		while (running) {
+			try {
+				Thread.sleep(TimeUnit.NANOSECONDS.toMillis(tickNanos));
+			} catch (InterruptedException e) {
+				return;
+			}
+
+			long now = tickOf(System.nanoTime()) - 1;
+			while (processedTick < now) {
+				processedTick++;
+				expire(wheel[(int) (processedTick % wheel.length)]);
+			}
+		}
+	}
+
+	/**
+	 * Removes all sessions from the bucket. These have all expired, unless
+	 * the timer lagged so far behind that they were put in the bucket a turn
+	 * ahead; those are put back.
+	 */
+	private void expire(Bucket bucket) {
+		IssuanceSession session;
+		synchronized (bucket) {
+			session = bucket.head;
+			bucket.head = null;
+			for (IssuanceSession s = session; s != null; s = s.next) {
+				s.bucket = null;
+			}
+		}
+
+		while (session != null) {
+			IssuanceSession next = session.next;
+			if (!session.isExpired()) {
+				link(wheel[(int) (tickOf(session.expiresAt) % wheel.length)], session);
+			} else if (sessions.remove(session.getNonce1(), session)) {
+				count.decrementAndGet();
+			}
+			session = next;
+		}
+	}
+
+	private static void link(Bucket bucket, IssuanceSession session) {
+		synchronized (bucket) {
+			session.bucket = bucket;
+			session.prev = null;
+			session.next = bucket.head;
+			if (bucket.head != null) {
+				bucket.head.prev = session;
+			}
+			bucket.head = session;
+		}
+	}
+
+	private static void unlink(IssuanceSession session) {
+		Bucket bucket = session.bucket;
+		if (bucket == null) {
+			return;
+		}
+
+		synchronized (bucket) {
+			if (session.bucket != bucket) {
+				return;
+			}
+			if (session.prev != null) {
+				session.prev.next = session.next;
+			} else {
+				bucket.head = session.next;
+			}
+			if (session.next != null) {
+				session.next.prev = session.prev;
+			}
+			session.prev = session.next = null;
+			session.bucket = null;
+		}
+	}
+}
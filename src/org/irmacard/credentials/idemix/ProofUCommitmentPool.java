@@ -0,0 +1,217 @@
+/*
+ * Copyright (c) 2015, the IRMA Team
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ *
+ *  Redistributions of source code must retain the above copyright notice, this
+ *   list of conditions and the following disclaimer.
+ *
+ *  Redistributions in binary form must reproduce the above copyright notice,
+ *   this list of conditions and the following disclaimer in the documentation
+ *   and/or other materials provided with the distribution.
+ *
+ *  Neither the name of the IRMA project nor the names of its
+ *   contributors may be used to endorse or promote products derived from
+ *   this software without specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS"
+ * AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+ * IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE
+ * DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT HOLDER OR CONTRIBUTORS BE LIABLE
+ * FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL
+ * DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR
+ * SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER
+ * CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY,
+ * OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE
+ * OF THIS SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+
+package org.irmacard.credentials.idemix;
+
+import java.math.BigInteger;
+import java.util.Collections;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.Executor;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.irmacard.credentials.idemix.util.Crypto;
+
+/**
+ * A bounded pool of precomputed commitments for {@link CredentialBuilder}s
+ * receiving credentials from a single issuer key: the randomness v_prime,
+ * v_prime_commit and s_commit along with S^{v_prime}, S^{v_prime_commit} and
+ * R_0^{s_commit}. None of these depend on the nonce of the issuer, so with a
+ * precomputation the commitment U and the ProofU cost only multiplications
+ * and a hash once the nonce arrives. R_0^s is not part of this: builders
+ * take it from their {@link HolderSecret}, if any. See
+ * {@link CredentialBuilder#setCommitmentPool(ProofUCommitmentPool)}.
+ * <p>
+ * The pool is refilled on an executor (by default the common pool) whenever
+ * something is taken from it. Every precomputation is handed out at most
+ * once; when the pool is empty, builders compute their commitments as usual.
+ * Since a precomputed s_commit may end up as the commitment to the secret
+ * key shared by all proofs in a {@link org.irmacard.credentials.idemix.proofs.ProofListBuilder},
+ * it has the size of the commitments in disclosure proofs.
+ */
+public class ProofUCommitmentPool {
+	/** Default maximum number of precomputations kept in the pool */
+	public static final int DEFAULT_DEPTH = 8;
+
+	private final IdemixPublicKey pk;
+
+	private final BlockingQueue<Precomputation> precomputations;
+	private final Executor executor;
+	private final AtomicBoolean filling = new AtomicBoolean();
+
+	private final AtomicLong hits = new AtomicLong();
+	private final AtomicLong misses = new AtomicLong();
+
+	private volatile boolean running = true;
+
+	/**
+	 * The nonce-independent part of a commitment and its ProofU.
+	 */
+	static class Precomputation {
+		final BigInteger v_prime;
+		final BigInteger Sv_prime;
+		final BigInteger v_prime_commit;
+		final BigInteger Sv_prime_commit;
+		final BigInteger s_commit;
+		final BigInteger R0s_commit;
+
+		Precomputation(BigInteger v_prime, BigInteger Sv_prime, BigInteger v_prime_commit,
+				BigInteger Sv_prime_commit, BigInteger s_commit, BigInteger R0s_commit) {
+			this.v_prime = v_prime;
+			this.Sv_prime = Sv_prime;
+			this.v_prime_commit = v_prime_commit;
+			this.Sv_prime_commit = Sv_prime_commit;
+			this.s_commit = s_commit;
+			this.R0s_commit = R0s_commit;
+		}
+	}
+
+	/**
+	 * Creates a pool of {@link #DEFAULT_DEPTH} precomputations for the given
+	 * key, filled on the common pool.
+	 */
+	public ProofUCommitmentPool(IdemixPublicKey pk) {
+		this(pk, DEFAULT_DEPTH, ForkJoinPool.commonPool());
+	}
+
+	/**
+	 * Creates a pool and starts filling it.
+	 *
+	 * @param pk
+	 *            the public key of the issuer
+	 * @param depth
+	 *            the maximum number of precomputations kept in the pool
+	 * @param executor
+	 *            the executor on which the pool is filled
+	 */
+	public ProofUCommitmentPool(IdemixPublicKey pk, int depth, Executor executor) {
+		if (depth < 1) {
+			throw new IllegalArgumentException("Depth must be positive");
+		}
+
+		this.pk = pk;
+		this.precomputations = new ArrayBlockingQueue<>(depth);
+		this.executor = executor;
+		refill();
+	}
+
+	/**
+	 * Removes a precomputation from the pool, or returns null if the pool is
+	 * empty, and schedules a refill.
+	 */
+	Precomputation take() {
+		Precomputation precomputation = precomputations.poll();
+		if (precomputation != null) {
+			hits.incrementAndGet();
+		} else {
+			misses.incrementAndGet();
+		}
+		refill();
+		return precomputation;
+	}
+
+	private void refill() {
+		if (running && precomputations.remainingCapacity() > 0 && filling.compareAndSet(false, true)) {
+			executor.execute(this::fill);
+		}
+	}
+
+	private void fill() {
+		try {
+			while (running && precomputations.remainingCapacity() > 0) {
+				if (!precomputations.offer(precompute())) {
+					break;
+				}
+			}
+		} finally {
+			if (!running) {
+				precomputations.clear();
+			}
+			filling.set(false);
+		}
+
+		// Something may have been taken after our last check
+		refill();
+	}
+
+	private Precomputation precompute() {
+		IdemixSystemParameters params = pk.getSystemParameters();
+
+		// FIXME: Not according to protocol, only positives possible this way
+		// (see CredentialBuilder)
+		BigInteger v_prime = Crypto.randomUnsignedInteger(params.l_v_prime);
+		BigInteger v_prime_commit = Crypto.randomUnsignedInteger(params.l_v_prime_commit);
+		BigInteger s_commit = Crypto.randomUnsignedInteger(params.l_m_commit);
+
+		return new Precomputation(v_prime, power(pk.getGeneratorS(), v_prime),
+				v_prime_commit, power(pk.getGeneratorS(), v_prime_commit),
+				s_commit, power(pk.getGeneratorR(0), s_commit));
+	}
+
+	private BigInteger power(BigInteger base, BigInteger exponent) {
+		return Crypto.multiExp(Collections.singletonList(base), Collections.singletonList(exponent),
+				pk.getModulus(), pk.getFixedBaseTables());
+	}
+
+	/**
+	 * Stops refilling the pool and discards its contents.
+	 */
+	public void shutdown() {
+		running = false;
+		precomputations.clear();
+	}
+
+	public IdemixPublicKey getPublicKey() {
+		return pk;
+	}
+
+	/**
+	 * The number of precomputations currently in the pool.
+	 */
+	public int size() {
+		return precomputations.size();
+	}
+
+	/**
+	 * The number of builders that used a precomputation.
+	 */
+	public long getHits() {
+		return hits.get();
+	}
+
+	/**
+	 * The number of builders that found the pool empty.
+	 */
+	public long getMisses() {
+		return misses.get();
+	}
+}
@@ -0,0 +1,129 @@
+/*
+ * Copyright (c) 2015, the IRMA Team
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ *
+ *  Redistributions of source code must retain the above copyright notice, this
+ *   list of conditions and the following disclaimer.
+ *
+ *  Redistributions in binary form must reproduce the above copyright notice,
+ *   this list of conditions and the following disclaimer in the documentation
+ *   and/or other materials provided with the distribution.
+ *
+ *  Neither the name of the IRMA project nor the names of its
+ *   contributors may be used to endorse or promote products derived from
+ *   this software without specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS"
+ * AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+ * IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE
+ * DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT HOLDER OR CONTRIBUTORS BE LIABLE
+ * FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL
+ * DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR
+ * SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER
+ * CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY,
+ * OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE
+ * OF THIS SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+
+package org.irmacard.credentials.idemix;
+
+import java.math.BigInteger;
+import java.security.SecureRandom;
+
+import org.irmacard.credentials.idemix.util.Crypto;
+
+/**
+ * The part of a Camenisch-Lysyanskaya signature that does not depend on the
+ * messages being signed: the randomizer v, S^v, the prime e, its inverse
+ * e^{-1} mod p'q' and the exponents d_p = e^{-1} mod p - 1 and
+ * d_q = e^{-1} mod q - 1 with which A = Q^{1/e} is computed. Computing these is more than half of the work of signing,
+ * so they can be generated ahead of time (see {@link SigningTuplePool}) and
+ * passed to
+ * {@link CLSignature#signMessageBlockAndCommitment(IdemixSecretKey, IdemixPublicKey, BigInteger, java.util.List, SigningTuple, boolean)}.
+ * <p>
+ * A tuple must never be used for more than one signature: two signatures
+ * sharing e and v would reveal information about the secret key.
+ */
+public class SigningTuple {
+	private final BigInteger v;
+	private final BigInteger Sv;
+	private final BigInteger e;
+	private final BigInteger e_inverse;
+	private final BigInteger d_p;
+	private final BigInteger d_q;
+
+	public SigningTuple(BigInteger v, BigInteger Sv, BigInteger e, BigInteger e_inverse,
+			BigInteger d_p, BigInteger d_q) {
+		this.v = v;
+		this.Sv = Sv;
+		this.e = e;
+		this.e_inverse = e_inverse;
+		this.d_p = d_p;
+		this.d_q = d_q;
+	}
+
+	/**
+	 * Generates a new tuple for the given key pair. Note that we follow the
+	 * credential specification and pick v from a more restricted domain.
+	 *
+	 * @param sk
+	 *            an Idemix secret key
+	 * @param pk
+	 *            the corresponding Idemix public key
+	 */
+	public static SigningTuple generate(IdemixSecretKey sk, IdemixPublicKey pk) {
+		IdemixSystemParameters params = pk.getSystemParameters();
+		SecureRandom rnd = new SecureRandom();
+
+		BigInteger v_tilde = new BigInteger(params.l_v - 1, rnd);
+		BigInteger two_l_v = new BigInteger("2").pow(params.l_v - 1);
+		BigInteger v = two_l_v.add(v_tilde);
+
+		// We compute S^v using the factorization of n, which effectively
+		// reduces the exponent v modulo the group order.
+		BigInteger Sv = sk.modPow(pk.getGeneratorS(), v);
+
+		BigInteger e = Crypto.probablyPrimeInBitRange(params.l_e - 1,
+				params.l_e_prime - 1);
+		BigInteger e_inverse = e.modInverse(sk.get_p_prime_q_prime());
+		BigInteger[] d = sk.rootExponents(e);
+
+		return new SigningTuple(v, Sv, e, e_inverse, d[0], d[1]);
+	}
+
+	public BigInteger get_v() {
+		return v;
+	}
+
+	public BigInteger getSv() {
+		return Sv;
+	}
+
+	public BigInteger get_e() {
+		return e;
+	}
+
+	/**
+	 * Returns e^{-1} mod p'q'.
+	 */
+	public BigInteger get_e_inverse() {
+		return e_inverse;
+	}
+
+	/**
+	 * Returns e^{-1} mod p - 1.
+	 */
+	public BigInteger get_d_p() {
+		return d_p;
+	}
+
+	/**
+	 * Returns e^{-1} mod q - 1.
+	 */
+	public BigInteger get_d_q() {
+		return d_q;
+	}
+}
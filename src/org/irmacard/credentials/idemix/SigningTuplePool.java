@@ -0,0 +1,185 @@
+/*
+ * Copyright (c) 2015, the IRMA Team
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ *
+ *  Redistributions of source code must retain the above copyright notice, this
+ *   list of conditions and the following disclaimer.
+ *
+ *  Redistributions in binary form must reproduce the above copyright notice,
+ *   this list of conditions and the following disclaimer in the documentation
+ *   and/or other materials provided with the distribution.
+ *
+ *  Neither the name of the IRMA project nor the names of its
+ *   contributors may be used to endorse or promote products derived from
+ *   this software without specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS"
+ * AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+ * IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE
+ * DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT HOLDER OR CONTRIBUTORS BE LIABLE
+ * FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL
+ * DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR
+ * SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER
+ * CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY,
+ * OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE
+ * OF THIS SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+
+package org.irmacard.credentials.idemix;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * A bounded pool of precomputed {@link SigningTuple}s for a single issuer key
+ * pair, kept filled by a number of background threads. Issuing a signature
+ * using a tuple from the pool costs only the message-dependent part of the
+ * signing algorithm; when the pool is empty, {@link #take()} computes a tuple
+ * on the spot so that issuance never blocks on the pool.
+ * <p>
+ * Every tuple is handed out at most once.
+ */
+public class SigningTuplePool {
+	/** Default maximum number of tuples kept in the pool */
+	public static final int DEFAULT_DEPTH = 64;
+
+	private final IdemixSecretKey sk;
+	private final IdemixPublicKey pk;
+	private final BlockingQueue<SigningTuple> tuples;
+	private final List<Thread> threads;
+
+	private final AtomicLong hits = new AtomicLong();
+	private final AtomicLong misses = new AtomicLong();
+
+	private volatile boolean running = true;
+
+	/**
+	 * Creates a pool of {@link #DEFAULT_DEPTH} tuples, filled by a single
+	 * background thread.
+	 */
+	public SigningTuplePool(IdemixSecretKey sk, IdemixPublicKey pk) {
+		this(sk, pk, DEFAULT_DEPTH, 1);
+	}
+
+	/**
+	 * Creates a pool and starts filling it.
+	 *
+	 * @param sk
+	 *            the secret key of the issuer
+	 * @param pk
+	 *            the corresponding public key
+	 * @param depth
+	 *            the maximum number of tuples kept in the pool
+	 * @param threads
+	 *            the number of background threads filling the pool
+	 */
+	public SigningTuplePool(IdemixSecretKey sk, IdemixPublicKey pk, int depth, int threads) {
+		if (depth < 1 || threads < 1) {
+			throw new IllegalArgumentException("Depth and number of threads must be positive");
+		}
+
+		this.sk = sk;
+		this.pk = pk;
+		this.tuples = new ArrayBlockingQueue<>(depth);
+		this.threads = new ArrayList<>(threads);
+
+		for (int i = 0; i < threads; i++) {
+			Thread thread = new Thread(new Runnable() {
+				@Override
+				public void run() {
+					fill();
+				}
+			}, "SigningTuplePool-" + i);
+			thread.setDaemon(true);
+			this.threads.add(thread);
+			thread.start();
+		}
+	}
+
+	private void fill() {
+		try {
+			while (running) {
+				// put() blocks while the pool is full
+				tuples.put(SigningTuple.generate(sk, pk));
+			}
+		} catch (InterruptedException e) {
+			// We are being shut down
+		}
+	}
+
+	/**
+	 * Removes a tuple from the pool, or generates a new one if the pool is
+	 * empty.
+	 */
+	public SigningTuple take() {
+		SigningTuple tuple = tuples.poll();
+		if (tuple != null) {
+			hits.incrementAndGet();
+			return tuple;
+		}
+
+		misses.incrementAndGet();
+		return SigningTuple.generate(sk, pk);
+	}
+
+	public IdemixSecretKey getSecretKey() {
+		return sk;
+	}
+
+	public IdemixPublicKey getPublicKey() {
+		return pk;
+	}
+
+	/**
+	 * The number of tuples currently available in the pool.
+	 */
+	public int size() {
+		return tuples.size();
+	}
+
+	/**
+	 * The number of times {@link #take()} was served from the pool.
+	 */
+	public long getHits() {
+		return hits.get();
+	}
+
+	/**
+	 * The number of times {@link #take()} found the pool empty.
+	 */
+	public long getMisses() {
+		return misses.get();
+	}
+
+	/**
+	 * Stops the background threads and discards the remaining tuples. After
+	 * this, {@link #take()} generates every tuple on the spot. Waits for
+	 * tuples that are being generated to finish.
+	 */
+	public void shutdown() {
+		running = false;
+		for (Thread thread : threads) {
+			thread.interrupt();
+		}
+		boolean interrupted = false;
+		for (Thread thread : threads) {
+			while (thread.isAlive()) {
+				try {
+					thread.join();
+				} catch (InterruptedException e) {
+					interrupted = true;
+				}
+			}
+		}
+		tuples.clear();
+		if (interrupted) {
+			Thread.currentThread().interrupt();
+		}
+	}
+}
@@ -0,0 +1,485 @@
+/*
+ * Copyright (c) 2015, the IRMA Team
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ *
+ *  Redistributions of source code must retain the above copyright notice, this
+ *   list of conditions and the following disclaimer.
+ *
+ *  Redistributions in binary form must reproduce the above copyright notice,
+ *   this list of conditions and the following disclaimer in the documentation
+ *   and/or other materials provided with the distribution.
+ *
+ *  Neither the name of the IRMA project nor the names of its
+ *   contributors may be used to endorse or promote products derived from
+ *   this software without specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS"
+ * AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+ * IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE
+ * DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT HOLDER OR CONTRIBUTORS BE LIABLE
+ * FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL
+ * DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR
+ * SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER
+ * CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY,
+ * OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE
+ * OF THIS SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+
+package org.irmacard.credentials.idemix.journal;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.math.BigInteger;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.DirectoryStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+import java.util.concurrent.locks.LockSupport;
+import java.util.zip.CRC32;
+
+import org.irmacard.credentials.idemix.util.Crypto;
+
+/**
+ * An append-only audit trail of issued signatures, stored in memory-mapped
+ * segment files in a directory.
+ * <p>
+ * {@link #append(int, BigInteger, List)} only claims a slot in a bounded
+ * lock-free ring buffer and stores a reference to its arguments there; it
+ * does not hash, encode, allocate buffers or do I/O. A single background
+ * thread drains the ring, hashes the attributes, writes the records to the
+ * current segment and forces it to disk according to the {@link FsyncPolicy}.
+ * When the ring is full, producers wait until the flusher has made room, so
+ * no records are lost.
+ * <p>
+ * Each segment starts with a magic number and is followed by records of the
+ * form (length, payload, CRC-32 of payload); a length of zero marks the end.
+ * Segments are preallocated, and a new one is started when a record does not
+ * fit in the current one or when the journal is reopened. Records are read
+ * back using {@link #read(Path)}, which stops at the first torn record.
+ */
+public class IssuanceJournal implements Closeable {
+	/** Default number of slots in the ring buffer */
+	public static final int DEFAULT_CAPACITY = 4096;
+	/** Default size of a segment file, in bytes */
+	public static final int DEFAULT_SEGMENT_SIZE = 16 * 1024 * 1024;
+	/** Default interval for {@link FsyncPolicy#INTERVAL}, in milliseconds */
+	public static final long DEFAULT_FSYNC_INTERVAL_MILLIS = 100;
+
+	private static final int MAGIC = 0x49524a31; // "IRJ1"
+	private static final String PREFIX = "journal-";
+	private static final String SUFFIX = ".log";
+	private static final long IDLE_NANOS = TimeUnit.MICROSECONDS.toNanos(200);
+
+	/**
+	 * When the flusher forces written records to disk.
+	 */
+	public enum FsyncPolicy {
+		/** Leave writing back to the operating system */
+		NEVER,
+		/** At most once per configured interval, if there is anything to force */
+		INTERVAL,
+		/** After every batch of records drained from the ring */
+		ALWAYS
+	}
+
+	private static class Pending {
+		final long timestamp;
+		final int keyCounter;
+		final BigInteger e;
+		final List<BigInteger> attributes;
+
+		Pending(long timestamp, int keyCounter, BigInteger e, List<BigInteger> attributes) {
+			this.timestamp = timestamp;
+			this.keyCounter = keyCounter;
+			this.e = e;
+			this.attributes = attributes;
+		}
+	}
+
+	private final Path directory;
+	private final int segmentSize;
+	private final FsyncPolicy fsyncPolicy;
+	private final long fsyncIntervalNanos;
+
+	// Ring buffer: slot i is free for the producer of position p if
+	// sequences[i] == p, and holds the record at position p if sequences[i] == p + 1
+	private final int mask;
+	private final AtomicReferenceArray<Pending> slots;
+	private final AtomicLongArray sequences;
+	private final AtomicLong tail = new AtomicLong();
+	private long head = 0; // only accessed by the flusher
+	private volatile long written = 0;
+
+	private final AtomicLong producerWaits = new AtomicLong();
+
+	// Segment state, guarded by this
+	private long segmentIndex;
+	private FileChannel channel;
+	private MappedByteBuffer segment;
+	private boolean dirty = false;
+	private long lastForce = System.nanoTime();
+
+	private final Thread flusher;
+	private volatile boolean running = true;
+	private volatile Throwable failure;
+
+	/**
+	 * Opens a journal in the given directory with default settings, forcing
+	 * records to disk at most every {@link #DEFAULT_FSYNC_INTERVAL_MILLIS}.
+	 */
+	public IssuanceJournal(Path directory) throws IOException {
+		this(directory, DEFAULT_CAPACITY, DEFAULT_SEGMENT_SIZE, FsyncPolicy.INTERVAL,
+				DEFAULT_FSYNC_INTERVAL_MILLIS);
+	}
+
+	/**
+	 * Opens a journal in the given directory, creating it if necessary, and
+	 * starts its flusher thread. Existing segments are left untouched; records
+	 * are appended to a new segment.
+	 *
+	 * @param directory
+	 *            the directory holding the segment files
+	 * @param capacity
+	 *            the number of slots in the ring buffer, rounded up to a
+	 *            power of two
+	 * @param segmentSize
+	 *            the size of each segment file in bytes
+	 * @param fsyncPolicy
+	 *            when to force written records to disk
+	 * @param fsyncIntervalMillis
+	 *            the interval for {@link FsyncPolicy#INTERVAL}
+	 */
+	public IssuanceJournal(Path directory, int capacity, int segmentSize,
+			FsyncPolicy fsyncPolicy, long fsyncIntervalMillis) throws IOException {
+		if (capacity < 1 || capacity > (1 << 30) || segmentSize < 1024) {
+			throw new IllegalArgumentException("Invalid capacity or segment size");
+		}
+
+		this.directory = directory;
+		this.segmentSize = segmentSize;
+		this.fsyncPolicy = fsyncPolicy;
+		this.fsyncIntervalNanos = TimeUnit.MILLISECONDS.toNanos(fsyncIntervalMillis);
+
+		int size = Integer.highestOneBit(capacity);
+		if (size < capacity)
+			size <<= 1;
+		this.mask = size - 1;
+		this.slots = new AtomicReferenceArray<>(size);
+		this.sequences = new AtomicLongArray(size);
+		for (int i = 0; i < size; i++) {
+			sequences.set(i, i);
+		}
+
+		Files.createDirectories(directory);
+		List<Path> existing = segments(directory);
+		segmentIndex = existing.isEmpty() ? 0 : index(existing.get(existing.size() - 1));
+		openNextSegment();
+
+		flusher = new Thread(this::flushLoop, "IssuanceJournal flusher");
+		flusher.setDaemon(true);
+		flusher.start();
+	}
+
+	/**
+	 * Records that a signature with the given e was issued using the key with
+	 * the given counter, on the given attributes. The list of attributes is
+	 * hashed later by the flusher, so it must not be modified afterwards.
+	 *
+	 * @throws IllegalStateException if the journal is closed or failed
+	 */
+	public void append(int keyCounter, BigInteger e, List<BigInteger> attributes) {
+		Pending record = new Pending(System.currentTimeMillis(), keyCounter, e, attributes);
+
+		for (;;) {
+			if (!running || failure != null) {
+				throw new IllegalStateException("Journal is closed", failure);
+			}
+
+			long position = tail.get();
+			int index = (int) position & mask;
+			long sequence = sequences.get(index);
+			if (sequence == position) {
+				if (tail.compareAndSet(position, position + 1)) {
+					slots.lazySet(index, record);
+					sequences.set(index, position + 1);
+					return;
+				}
+			} else if (sequence < position) {
+				// The ring is full; wait for the flusher to catch up
+				producerWaits.incrementAndGet();
+				LockSupport.parkNanos(IDLE_NANOS);
+			}
+		}
+	}
+
+	/**
+	 * Waits until all records appended so far have been written and forces
+	 * them to disk, regardless of the fsync policy.
+	 *
+	 * @throws IOException if the journal failed
+	 */
+	public void flush() throws IOException {
+		long target = tail.get();
+		while (written < target) {
+			checkFailure();
+			if (!flusher.isAlive()) {
+				throw new IOException("Journal is closed");
+			}
+			LockSupport.parkNanos(IDLE_NANOS);
+		}
+
+		synchronized (this) {
+			checkFailure();
+			force();
+		}
+	}
+
+	/**
+	 * Stops accepting records, writes the remaining ones and forces them to
+	 * disk.
+	 */
+	@Override
+	public void close() throws IOException {
+		running = false;
+		LockSupport.unpark(flusher);
+		try {
+			flusher.join();
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+		}
+
+		synchronized (this) {
+			// Pick up records from producers that raced with us
+			if (failure == null && !flusher.isAlive()) {
+				drain();
+			}
+			force();
+			channel.close();
+		}
+		checkFailure();
+	}
+
+	private void checkFailure() throws IOException {
+		if (failure != null) {
+			throw new IOException("Journal failed", failure);
+		}
+	}
+
+	private void flushLoop() {
+		try {
+			while (running || written < tail.get()) {
+				int drained = drain();
+				synchronized (this) {
+					long now = System.nanoTime();
+					if (dirty && (fsyncPolicy == FsyncPolicy.ALWAYS
+							|| (fsyncPolicy == FsyncPolicy.INTERVAL && now - lastForce >= fsyncIntervalNanos))) {
+						force();
+					}
+				}
+				if (drained == 0) {
+					LockSupport.parkNanos(IDLE_NANOS);
+				}
+			}
+		} catch (Throwable t) {
+			failure = t;
+		}
+	}
+
+	/**
+	 * Writes all records currently in the ring, or until a slot is found that
+	 * was claimed but not filled yet.
+	 */
+	private int drain() throws IOException {
+		int drained = 0;
+		for (;;) {
+			int index = (int) head & mask;
+			if (sequences.get(index) != head + 1) {
+				break;
+			}
+
+			Pending record = slots.get(index);
+			slots.lazySet(index, null);
+			sequences.set(index, head + mask + 1);
+			head++;
+
+			write(record);
+			written = head;
+			drained++;
+		}
+		return drained;
+	}
+
+	private synchronized void write(Pending record) throws IOException {
+		byte[] e = record.e.toByteArray();
+		byte[] hash = Crypto.sha256Hash(Crypto.asn1Encode(
+				record.attributes.toArray(new BigInteger[record.attributes.size()]))).toByteArray();
+
+		int length = 8 + 4 + 4 + e.length + 4 + hash.length;
+		if (12 + length > segmentSize - 4) {
+			throw new IOException("Record does not fit in a segment");
+		}
+		if (segment.remaining() < 4 + length + 4 + 4) {
+			force();
+			openNextSegment();
+		}
+
+		int start = segment.position();
+		segment.putInt(length);
+		segment.putLong(record.timestamp);
+		segment.putInt(record.keyCounter);
+		segment.putInt(e.length);
+		segment.put(e);
+		segment.putInt(hash.length);
+		segment.put(hash);
+
+		ByteBuffer payload = segment.duplicate();
+		payload.position(start + 4);
+		payload.limit(start + 4 + length);
+		CRC32 crc = new CRC32();
+		crc.update(payload);
+		segment.putInt((int) crc.getValue());
+		dirty = true;
+	}
+
+	private void force() {
+		if (dirty) {
+			segment.force();
+			dirty = false;
+		}
+		lastForce = System.nanoTime();
+	}
+
+	private void openNextSegment() throws IOException {
+		if (channel != null) {
+			channel.close();
+		}
+
+		segmentIndex++;
+		Path path = directory.resolve(String.format("%s%016d%s", PREFIX, segmentIndex, SUFFIX));
+		channel = FileChannel.open(path, StandardOpenOption.CREATE_NEW,
+				StandardOpenOption.READ, StandardOpenOption.WRITE);
+		segment = channel.map(FileChannel.MapMode.READ_WRITE, 0, segmentSize);
+		segment.putInt(MAGIC);
+		dirty = true;
+	}
+
+	/**
+	 * Reads the records from a segment file, up to the end marker or the first
+	 * incomplete or corrupt record.
+	 */
+	public static List<JournalEntry> read(Path segment) throws IOException {
+		List<JournalEntry> entries = new ArrayList<>();
+		try (FileChannel channel = FileChannel.open(segment, StandardOpenOption.READ)) {
+			ByteBuffer buffer = channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size());
+			if (buffer.remaining() < 4 || buffer.getInt() != MAGIC) {
+				throw new IOException("Not a journal segment: " + segment);
+			}
+
+			while (buffer.remaining() >= 4) {
+				int length = buffer.getInt();
+				if (length <= 0 || buffer.remaining() < length + 4) {
+					break;
+				}
+
+				ByteBuffer payload = buffer.slice();
+				payload.limit(length);
+				CRC32 crc = new CRC32();
+				crc.update(payload.duplicate());
+				buffer.position(buffer.position() + length);
+				if (buffer.getInt() != (int) crc.getValue()) {
+					break;
+				}
+
+				long timestamp = payload.getLong();
+				int keyCounter = payload.getInt();
+				BigInteger e = new BigInteger(getBytes(payload));
+				BigInteger hash = new BigInteger(getBytes(payload));
+				entries.add(new JournalEntry(timestamp, keyCounter, e, hash));
+			}
+		}
+		return entries;
+	}
+
+	/**
+	 * Reads the records from all segment files in the given directory, in
+	 * order.
+	 */
+	public static List<JournalEntry> readAll(Path directory) throws IOException {
+		List<JournalEntry> entries = new ArrayList<>();
+		for (Path segment : segments(directory)) {
+			entries.addAll(read(segment));
+		}
+		return entries;
+	}
+
+	private static byte[] getBytes(ByteBuffer buffer) throws IOException {
+		int length = buffer.getInt();
+		if (length < 1 || length > buffer.remaining()) {
+			throw new IOException("Invalid field length");
+		}
+		byte[] bytes = new byte[length];
+		buffer.get(bytes);
+		return bytes;
+	}
+
+	/**
+	 * The segment files in the given directory, in order.
+	 */
+	private static List<Path> segments(Path directory) throws IOException {
+		List<Path> segments = new ArrayList<>();
+		try (DirectoryStream<Path> stream = Files.newDirectoryStream(directory, PREFIX + "*" + SUFFIX)) {
+			for (Path path : stream) {
+				segments.add(path);
+			}
+		}
+		Collections.sort(segments);
+		return segments;
+	}
+
+	private static long index(Path segment) {
+		String name = segment.getFileName().toString();
+		return Long.parseLong(name.substring(PREFIX.length(), name.length() - SUFFIX.length()));
+	}
+
+	/**
+	 * The number of records appended so far.
+	 */
+	public long getAppendedCount() {
+		return tail.get();
+	}
+
+	/**
+	 * The number of records written to the segments so far.
+	 */
+	public long getWrittenCount() {
+		return written;
+	}
+
+	/**
+	 * The number of times a producer had to wait because the ring was full.
+	 */
+	public long getProducerWaits() {
+		return producerWaits.get();
+	}
+
+	public FsyncPolicy getFsyncPolicy() {
+		return fsyncPolicy;
+	}
+
+	public Path getDirectory() {
+		return directory;
+	}
+}
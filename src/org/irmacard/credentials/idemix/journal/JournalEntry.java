@@ -0,0 +1,81 @@
+/*
+ * Copyright (c) 2015, the IRMA Team
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ *
+ *  Redistributions of source code must retain the above copyright notice, this
+ *   list of conditions and the following disclaimer.
+ *
+ *  Redistributions in binary form must reproduce the above copyright notice,
+ *   this list of conditions and the following disclaimer in the documentation
+ *   and/or other materials provided with the distribution.
+ *
+ *  Neither the name of the IRMA project nor the names of its
+ *   contributors may be used to endorse or promote products derived from
+ *   this software without specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS"
+ * AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+ * IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE
+ * DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT HOLDER OR CONTRIBUTORS BE LIABLE
+ * FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL
+ * DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR
+ * SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER
+ * CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY,
+ * OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE
+ * OF THIS SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+
+package org.irmacard.credentials.idemix.journal;
+
+import java.math.BigInteger;
+
+/**
+ * A record in the {@link IssuanceJournal}: a signature issued at some point in
+ * time, using the key with some counter, on attributes with some hash.
+ */
+public class JournalEntry {
+	private final long timestamp;
+	private final int keyCounter;
+	private final BigInteger e;
+	private final BigInteger attributeHash;
+
+	public JournalEntry(long timestamp, int keyCounter, BigInteger e, BigInteger attributeHash) {
+		this.timestamp = timestamp;
+		this.keyCounter = keyCounter;
+		this.e = e;
+		this.attributeHash = attributeHash;
+	}
+
+	/**
+	 * The time of issuance, in milliseconds since the epoch.
+	 */
+	public long getTimestamp() {
+		return timestamp;
+	}
+
+	public int getKeyCounter() {
+		return keyCounter;
+	}
+
+	/**
+	 * The prime e of the signature.
+	 */
+	public BigInteger get_e() {
+		return e;
+	}
+
+	/**
+	 * The SHA-256 hash of the ASN.1 encoding of the signed attributes.
+	 */
+	public BigInteger getAttributeHash() {
+		return attributeHash;
+	}
+
+	@Override
+	public String toString() {
+		return "[" + timestamp + ", " + keyCounter + ", " + e + ", " + attributeHash.toString(16) + "]";
+	}
+}
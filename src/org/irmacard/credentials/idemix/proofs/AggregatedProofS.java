@@ -0,0 +1,153 @@
+/*
+ * Copyright (c) 2015, the IRMA Team
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ *
+ *  Redistributions of source code must retain the above copyright notice, this
+ *   list of conditions and the following disclaimer.
+ *
+ *  Redistributions in binary form must reproduce the above copyright notice,
+ *   this list of conditions and the following disclaimer in the documentation
+ *   and/or other materials provided with the distribution.
+ *
+ *  Neither the name of the IRMA project nor the names of its
+ *   contributors may be used to endorse or promote products derived from
+ *   this software without specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS"
+ * AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+ * IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE
+ * DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT HOLDER OR CONTRIBUTORS BE LIABLE
+ * FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL
+ * DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR
+ * SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER
+ * CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY,
+ * OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE
+ * OF THIS SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+
+package org.irmacard.credentials.idemix.proofs;
+
+import java.math.BigInteger;
+import java.util.ArrayList;
+import java.util.List;
+
+import org.irmacard.credentials.idemix.CLSignature;
+import org.irmacard.credentials.idemix.IdemixPublicKey;
+import org.irmacard.credentials.idemix.util.Crypto;
+
+/**
+ * A proof of correctness of a number of signatures issued within one session:
+ * like a {@link ProofS} for each of them, it proves that the issuer knows
+ * e_i^{-1} such that A_i = Q_i^{e_i^{-1}}, with Q_i = A_i^{e_i}, but it does
+ * so using a single commitment and a single challenge.
+ * <p>
+ * The issuer commits to C = Q_1^{r_1} * ... * Q_k^{r_k}, computes the
+ * challenge c as the hash over the context, the nonce, the signatures and C,
+ * and answers with e_response_i = r_i - c_i * e_i^{-1} for each signature,
+ * where c_i is derived from c and i (see {@link #challenge(BigInteger, int)}).
+ * Since Q_i^{e_response_i} * A_i^{c_i} = A_i^{c_i + e_response_i * e_i}, the
+ * verifier reconstructs C with a single multi-exponentiation over the A_i.
+ * The challenges c_i must differ per signature: with a single c the proof
+ * would only show knowledge of a representation of the product of the A_i.
+ */
+public class AggregatedProofS {
+	private BigInteger c;
+	private List<BigInteger> e_responses;
+
+	public AggregatedProofS(BigInteger c, List<BigInteger> e_responses) {
+		this.c = c;
+		this.e_responses = e_responses;
+	}
+
+	public AggregatedProofS() {
+	}
+
+	/**
+	 * Verifies this proof against the given public key, signatures, context
+	 * and nonce.
+	 *
+	 * @param pk
+	 *            The public key of the signer
+	 * @param signatures
+	 *            The signatures by the signer, in the order in which they
+	 *            were proven
+	 * @param context
+	 *            The context used during issuance
+	 * @param nonce
+	 *            The nonce that was supplied when requesting the proof
+	 * @return Whether the proof verified
+	 */
+	public boolean verify(IdemixPublicKey pk, List<CLSignature> signatures,
+			BigInteger context, BigInteger nonce) {
+		if (c == null || e_responses == null || signatures.isEmpty()
+				|| e_responses.size() != signatures.size()) {
+			return false;
+		}
+
+		// Reconstruct the commitment
+		// C = prod_i A_i^{c_i + e_response_i * e_i}
+		List<BigInteger> bases = new ArrayList<>(signatures.size());
+		List<BigInteger> exponents = new ArrayList<>(signatures.size());
+		for (int i = 0; i < signatures.size(); i++) {
+			CLSignature signature = signatures.get(i);
+			bases.add(signature.getA());
+			exponents.add(challenge(c, i).add(e_responses.get(i).multiply(signature.get_e())));
+		}
+		BigInteger commitment = Crypto.multiExp(bases, exponents, pk.getModulus());
+
+		boolean matched = c.equals(challenge(context, nonce, signatures, commitment));
+
+		if (!matched) {
+			System.out.println("Hash doesn't match");
+		}
+
+		return matched;
+	}
+
+	/**
+	 * The challenge over the given signatures and commitment. Since Q_i is
+	 * determined by A_i and e_i, we hash the latter instead, which saves the
+	 * verifier an exponentiation per signature.
+	 */
+	public static BigInteger challenge(BigInteger context, BigInteger nonce,
+			List<CLSignature> signatures, BigInteger commitment) {
+		BigInteger[] values = new BigInteger[2 * signatures.size() + 4];
+		values[0] = context;
+		values[1] = nonce;
+		values[2] = BigInteger.valueOf(signatures.size());
+		for (int i = 0; i < signatures.size(); i++) {
+			values[2 * i + 3] = signatures.get(i).getA();
+			values[2 * i + 4] = signatures.get(i).get_e();
+		}
+		values[values.length - 1] = commitment;
+
+		return Crypto.sha256Hash(Crypto.asn1Encode(values));
+	}
+
+	/**
+	 * The challenge c_i for the i-th signature, derived from the overall
+	 * challenge c.
+	 */
+	public static BigInteger challenge(BigInteger c, int i) {
+		return Crypto.sha256Hash(Crypto.asn1Encode(c, BigInteger.valueOf(i)));
+	}
+
+	public void set_c(BigInteger c) {
+		this.c = c;
+	}
+
+	public void set_e_responses(List<BigInteger> e_responses) {
+		this.e_responses = e_responses;
+	}
+
+	public BigInteger get_c() {
+		return c;
+	}
+
+	public List<BigInteger> get_e_responses() {
+		return e_responses;
+	}
+}
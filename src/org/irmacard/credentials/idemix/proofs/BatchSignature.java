@@ -0,0 +1,112 @@
+/*
+ * Copyright (c) 2015, the IRMA Team
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ *
+ *  Redistributions of source code must retain the above copyright notice, this
+ *   list of conditions and the following disclaimer.
+ *
+ *  Redistributions in binary form must reproduce the above copyright notice,
+ *   this list of conditions and the following disclaimer in the documentation
+ *   and/or other materials provided with the distribution.
+ *
+ *  Neither the name of the IRMA project nor the names of its
+ *   contributors may be used to endorse or promote products derived from
+ *   this software without specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS"
+ * AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+ * IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE
+ * DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT HOLDER OR CONTRIBUTORS BE LIABLE
+ * FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL
+ * DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR
+ * SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER
+ * CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY,
+ * OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE
+ * OF THIS SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+
+package org.irmacard.credentials.idemix.proofs;
+
+import java.math.BigInteger;
+import java.util.List;
+
+/**
+ * <p>An attribute-based signature over many messages at once: a single signature-mode {@link ProofList} whose nonce
+ * is the root of a {@link MerkleTree} over the message hashes, together with the inclusion path of each message.
+ * Create instances using {@link ProofListBuilder#ProofListBuilder(BigInteger, List)} and
+ * {@link ProofListBuilder#buildBatch()}.</p>
+ *
+ * <p>Checking the signatures on all messages costs the verification of one proof list plus a few hashes per message.
+ * A single message can be checked with just its own path, see {@link #verify(BigInteger, BigInteger, int, boolean)}.
+ * As usual, the public keys of the proof list must be populated before verifying (see
+ * {@link ProofList#populatePublicKeyArray()}).</p>
+ */
+public class BatchSignature {
+	private ProofList proofs;
+	private List<MerkleTree.Path> paths;
+
+	public BatchSignature(ProofList proofs, List<MerkleTree.Path> paths) {
+		this.proofs = proofs;
+		this.paths = paths;
+	}
+
+	public ProofList getProofs() {
+		return proofs;
+	}
+
+	public MerkleTree.Path getPath(int index) {
+		return paths.get(index);
+	}
+
+	/**
+	 * The number of messages that are signed.
+	 */
+	public int size() {
+		return paths.size();
+	}
+
+	/**
+	 * Checks that the specified messages are exactly the ones that are signed, in this order, and that the proofs
+	 * verify with the root over them as nonce.
+	 * @throws RuntimeException if the proof list contains no proofs or no public keys
+	 */
+	public boolean verify(BigInteger context, List<BigInteger> messages, boolean shouldBeBound) {
+		if (messages.isEmpty() || messages.size() != paths.size())
+			return false;
+
+		BigInteger root = null;
+		for (int i = 0; i < messages.size(); i++) {
+			MerkleTree.Path path = paths.get(i);
+			if (path.getIndex() != i || path.getCount() != messages.size())
+				return false;
+
+			BigInteger computed = path.computeRoot(messages.get(i));
+			if (computed == null || (root != null && !root.equals(computed)))
+				return false;
+			root = computed;
+		}
+
+		return verifyProofs(context, root, shouldBeBound);
+	}
+
+	/**
+	 * Checks that the specified message is signed at the specified index.
+	 * @throws RuntimeException if the proof list contains no proofs or no public keys
+	 */
+	public boolean verify(BigInteger context, BigInteger message, int index, boolean shouldBeBound) {
+		if (index < 0 || index >= paths.size() || paths.get(index).getIndex() != index)
+			return false;
+
+		BigInteger root = paths.get(index).computeRoot(message);
+		return root != null && verifyProofs(context, root, shouldBeBound);
+	}
+
+	private boolean verifyProofs(BigInteger context, BigInteger root, boolean shouldBeBound) {
+		// The flag is not serialized, but these proofs are always a signature
+		proofs.setSig();
+		return proofs.verify(context, root, shouldBeBound);
+	}
+}
@@ -0,0 +1,198 @@
+/*
+ * Copyright (c) 2015, the IRMA Team
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ *
+ *  Redistributions of source code must retain the above copyright notice, this
+ *   list of conditions and the following disclaimer.
+ *
+ *  Redistributions in binary form must reproduce the above copyright notice,
+ *   this list of conditions and the following disclaimer in the documentation
+ *   and/or other materials provided with the distribution.
+ *
+ *  Neither the name of the IRMA project nor the names of its
+ *   contributors may be used to endorse or promote products derived from
+ *   this software without specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS"
+ * AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+ * IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE
+ * DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT HOLDER OR CONTRIBUTORS BE LIABLE
+ * FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL
+ * DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR
+ * SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER
+ * CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY,
+ * OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE
+ * OF THIS SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+
+package org.irmacard.credentials.idemix.proofs;
+
+import java.math.BigInteger;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+
+import org.irmacard.credentials.idemix.util.Crypto;
+
+/**
+ * <p>A Merkle tree over a list of message hashes, whose root is used as the nonce of a single signature over all
+ * of the messages (see {@link BatchSignature}). Leaves, inner nodes and the root are hashed with distinct tags, so
+ * that a leaf cannot be passed off as a node or vice versa, and the root also contains the number of leaves. On
+ * every level, a node without a sibling (the last one, if there is an odd number of nodes) moves up unchanged.</p>
+ *
+ * <p>The {@link Path} of a message contains the siblings of the nodes on the way from its leaf to the root, so that
+ * checking that a message is included costs at most log(N) + 2 hashes.</p>
+ */
+public class MerkleTree {
+	private static final BigInteger LEAF = BigInteger.ZERO;
+	private static final BigInteger NODE = BigInteger.ONE;
+	private static final BigInteger ROOT = BigInteger.valueOf(2);
+
+	// levels.get(0) are the leaves, the last level contains only the top node
+	private final List<BigInteger[]> levels = new ArrayList<>();
+	private final BigInteger root;
+
+	/**
+	 * The inclusion path of a single message in a tree.
+	 */
+	public static class Path {
+		private int index;
+		private int count;
+		private List<BigInteger> siblings;
+
+		public Path(int index, int count, List<BigInteger> siblings) {
+			this.index = index;
+			this.count = count;
+			this.siblings = siblings;
+		}
+
+		/**
+		 * The index of the message in the tree.
+		 */
+		public int getIndex() {
+			return index;
+		}
+
+		/**
+		 * The number of messages in the tree.
+		 */
+		public int getCount() {
+			return count;
+		}
+
+		public List<BigInteger> getSiblings() {
+			return Collections.unmodifiableList(siblings);
+		}
+
+		/**
+		 * Computes the root of the tree from the specified message and this path, or returns null if the path is
+		 * malformed.
+		 */
+		public BigInteger computeRoot(BigInteger message) {
+			if (count < 1 || index < 0 || index >= count || siblings == null)
+				return null;
+
+			BigInteger hash = hashLeaf(message);
+			int i = index, size = count, used = 0;
+			while (size > 1) {
+				if (i % 2 == 0 && i == size - 1) {
+					// No sibling, this node moves up unchanged
+				} else {
+					if (used == siblings.size())
+						return null;
+					BigInteger sibling = siblings.get(used++);
+					hash = i % 2 == 0 ? hashNode(hash, sibling) : hashNode(sibling, hash);
+				}
+				i /= 2;
+				size = (size + 1) / 2;
+			}
+
+			if (used != siblings.size())
+				return null;
+			return hashRoot(count, hash);
+		}
+
+		/**
+		 * Checks that the specified message is included in the tree with the specified root, at the index of
+		 * this path.
+		 */
+		public boolean verify(BigInteger message, BigInteger root) {
+			return root.equals(computeRoot(message));
+		}
+	}
+
+	/**
+	 * Builds the tree over the specified message hashes.
+	 * @throws IllegalArgumentException if there are no messages
+	 */
+	public MerkleTree(List<BigInteger> messages) {
+		if (messages.isEmpty())
+			throw new IllegalArgumentException("Can't build a tree over no messages");
+
+		BigInteger[] level = new BigInteger[messages.size()];
+		for (int i = 0; i < level.length; i++)
+			level[i] = hashLeaf(messages.get(i));
+		levels.add(level);
+
+		while (level.length > 1) {
+			BigInteger[] next = new BigInteger[(level.length + 1) / 2];
+			for (int i = 0; i < next.length; i++) {
+				if (2 * i + 1 < level.length)
+					next[i] = hashNode(level[2 * i], level[2 * i + 1]);
+				else
+					next[i] = level[2 * i];
+			}
+			levels.add(next);
+			level = next;
+		}
+
+		root = hashRoot(messages.size(), level[0]);
+	}
+
+	public BigInteger getRoot() {
+		return root;
+	}
+
+	/**
+	 * The number of messages in the tree.
+	 */
+	public int size() {
+		return levels.get(0).length;
+	}
+
+	/**
+	 * Returns the inclusion path of the message at the specified index.
+	 * @throws IndexOutOfBoundsException if there is no such message
+	 */
+	public Path getPath(int index) {
+		if (index < 0 || index >= size())
+			throw new IndexOutOfBoundsException("No message at index " + index);
+
+		List<BigInteger> siblings = new ArrayList<>(levels.size() - 1);
+		int i = index;
+		for (int l = 0; l < levels.size() - 1; l++) {
+			BigInteger[] level = levels.get(l);
+			int sibling = i ^ 1;
+			if (sibling < level.length)
+				siblings.add(level[sibling]);
+			i /= 2;
+		}
+
+		return new Path(index, size(), siblings);
+	}
+
+	private static BigInteger hashLeaf(BigInteger message) {
+		return Crypto.sha256Hash(Crypto.asn1Encode(LEAF, message));
+	}
+
+	private static BigInteger hashNode(BigInteger left, BigInteger right) {
+		return Crypto.sha256Hash(Crypto.asn1Encode(NODE, left, right));
+	}
+
+	private static BigInteger hashRoot(int count, BigInteger top) {
+		return Crypto.sha256Hash(Crypto.asn1Encode(ROOT, BigInteger.valueOf(count), top));
+	}
+}
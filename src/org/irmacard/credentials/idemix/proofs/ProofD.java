@@ -31,6 +31,7 @@
 package org.irmacard.credentials.idemix.proofs;
 
 import org.irmacard.credentials.Attributes;
+import org.irmacard.credentials.idemix.AttributePowerCache;
 import org.irmacard.credentials.idemix.IdemixPublicKey;
 import org.irmacard.credentials.idemix.IdemixSystemParameters;
 import org.irmacard.credentials.idemix.info.IdemixKeyStore;
@@ -39,6 +40,7 @@ import org.irmacard.credentials.info.CredentialIdentifier;
 import org.irmacard.credentials.info.InfoException;
 
 import java.math.BigInteger;
+import java.util.ArrayList;
 import java.util.Arrays;
 import java.util.HashMap;
 import java.util.List;
@@ -144,31 +146,42 @@ public class ProofD implements Proof {
 		IdemixSystemParameters params = pk.getSystemParameters();
 		BigInteger n = pk.getModulus();
 
-		// known = Z / ( prod_{disclosed} R_i^{a_i} * A^{2^{l_e - 1}} )
-		BigInteger numerator = A.modPow(Crypto.TWO.pow(params.l_e - 1), n);
+		// numerator = prod_{disclosed} R_i^{a_i} * A^{2^{l_e - 1}}
+		List<BigInteger> bases = new ArrayList<>(a_disclosed.size() + 1);
+		List<BigInteger> exps = new ArrayList<>(a_disclosed.size() + 1);
 		for(Entry<Integer, BigInteger> entry : a_disclosed.entrySet()) {
-			Integer idx = entry.getKey();
-			BigInteger attribute = entry.getValue();
-
-			BigInteger tmp = pk.getGeneratorR(idx).modPow(attribute, n);
-			numerator = numerator.multiply(tmp).mod(n);
+			bases.add(pk.getGeneratorR(entry.getKey()));
+			exps.add(entry.getValue());
+		}
+		BigInteger numerator;
+		AttributePowerCache cache = AttributePowerCache.getInstance();
+		if (cache != null) {
+			numerator = cache.multiExp(bases, exps, n, pk.getFixedBaseTables())
+					.multiply(A.modPow(Crypto.TWO.pow(params.l_e - 1), n)).mod(n);
+		} else {
+			bases.add(A);
+			exps.add(Crypto.TWO.pow(params.l_e - 1));
+			numerator = Crypto.multiExp(bases, exps, n, pk.getFixedBaseTables());
 		}
-		BigInteger known = pk.getGeneratorZ().multiply(numerator.modInverse(n));
-		BigInteger known_c = known.modPow(c.negate(), n);
 
-		BigInteger Ae = A.modPow(e_response, n);
-		BigInteger Sv = pk.getGeneratorS().modPow(v_response, n);
-		BigInteger Rs = BigInteger.ONE;
+		// Z = known^{-c} * A^{e_response} * S^{v_response} * prod_{undisclosed} R_i^{a_response_i},
+		// where known = Z / numerator, so that known^{-c} = Z^{-c} * numerator^c
+		bases = new ArrayList<>(a_responses.size() + 4);
+		exps = new ArrayList<>(a_responses.size() + 4);
+		bases.add(pk.getGeneratorZ());
+		exps.add(c.negate());
+		bases.add(numerator);
+		exps.add(c);
+		bases.add(A);
+		exps.add(e_response);
+		bases.add(pk.getGeneratorS());
+		exps.add(v_response);
 		for(Entry<Integer, BigInteger> entry : a_responses.entrySet()) {
-			Integer idx = entry.getKey();
-			BigInteger response = entry.getValue();
-
-			BigInteger tmp = pk.getGeneratorR(idx).modPow(response, n);
-			Rs = Rs.multiply(tmp).mod(n);
+			bases.add(pk.getGeneratorR(entry.getKey()));
+			exps.add(entry.getValue());
 		}
 
-		// Return Z
-		return known_c.multiply(Ae).multiply(Rs).multiply(Sv).mod(n);
+		return Crypto.multiExp(bases, exps, n, pk.getFixedBaseTables());
 	}
 
 	public BigInteger get_c() {
@@ -33,6 +33,10 @@ package org.irmacard.credentials.idemix.proofs;
 import java.math.BigInteger;
 import java.util.ArrayList;
 import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.Executor;
+import java.util.function.IntFunction;
 
 import org.irmacard.credentials.idemix.IdemixPublicKey;
 import org.irmacard.credentials.idemix.info.IdemixKeyStore;
@@ -117,43 +121,112 @@ public class ProofList extends ArrayList<Proof> {
 	 * @throws RuntimeException if the collection contains no proofs
 	 */
 	public boolean verify(BigInteger context, BigInteger nonce, boolean shouldBeBound) {
+		return verify(context, nonce, shouldBeBound, null);
+	}
+
+	/**
+	 * Checks the validity of all contained proofs as {@link #verify(BigInteger, BigInteger, boolean)} does, while
+	 * doing the expensive part of the verification of the separate proofs concurrently on the given executor.
+	 * @param executor The executor to use, or null to do everything on the calling thread
+	 * @throws RuntimeException if the collection contains no proofs
+	 */
+	public boolean verify(BigInteger context, BigInteger nonce, boolean shouldBeBound, Executor executor) {
+		try {
+			return verifyAsync(context, nonce, shouldBeBound, executor).join();
+		} catch (CompletionException e) {
+			if (e.getCause() instanceof RuntimeException)
+				throw (RuntimeException) e.getCause();
+			throw e;
+		}
+	}
+
+	/**
+	 * Checks the validity of all contained proofs as {@link #verify(BigInteger, BigInteger, boolean)} does,
+	 * asynchronously. The expensive part of the verification of the separate proofs (reconstructing the elements
+	 * over which their challenges are computed) runs concurrently on the given executor.
+	 * @param executor The executor to use, or null to do everything on the calling thread
+	 * @return A future that completes with whether or not the proofs are valid
+	 */
+	public CompletableFuture<Boolean> verifyAsync(final BigInteger context, final BigInteger nonce,
+	                                              final boolean shouldBeBound, final Executor executor) {
 		if (size() == 0)
-			return true;
+			return CompletableFuture.completedFuture(true);
 
 		if (publicKeys == null || (size() != publicKeys.size()))
 			throw new RuntimeException("No public keys to verify the proofs against");
+		for (int i = 0; i < size(); ++i)
+			if (publicKeys.get(i) == null)
+				throw new RuntimeException("Missing public key for proof " + i + " of " + size());
 
-		if (shouldBeBound && !isBound(context, nonce)) {
-			return false;
+		// If the challenges or secret key responses differ, the proofs are not bound and there is no need to
+		// compute the challenge over all of them
+		if (!haveSameChallengeAndResponse()) {
+			if (shouldBeBound)
+				return CompletableFuture.completedFuture(false);
+			return verifyUnbound(context, nonce, executor);
 		}
 
-		Proof proof;
-		IdemixPublicKey pk;
-
-		BigInteger challenge = null;
-		boolean bounded = isBound(context, nonce);
-		if (bounded) {
-			challenge = reconstructChallenge(context, nonce);
-		}
+		return reconstructChallengeAsync(context, nonce, executor).thenCompose(challenge -> {
+			if (!challenge.equals(get(0).get_c())) {
+				if (shouldBeBound)
+					return CompletableFuture.completedFuture(false);
+				return verifyUnbound(context, nonce, executor);
+			}
 
-		for (int i=0; i < size(); ++i) {
-			proof = get(i);
-			pk = publicKeys.get(i);
-			if (pk == null)
-				throw new RuntimeException("Missing public key for proof " + i + " of " + size());
+			for (int i = 0; i < size(); ++i)
+				if (!get(i).verify(publicKeys.get(i), context, nonce, challenge))
+					return CompletableFuture.completedFuture(false);
+			return CompletableFuture.completedFuture(true);
+		});
+	}
 
-			if (bounded) {
-				if (!proof.verify(pk, context, nonce, challenge))
-					return false;
-			} else {
-				if (!proof.verify(pk, context, nonce))
+	/**
+	 * Verifies all proofs separately, assuming that they are not bound.
+	 */
+	private CompletableFuture<Boolean> verifyUnbound(final BigInteger context, final BigInteger nonce,
+	                                                 Executor executor) {
+		return forEachProof(i -> get(i).verify(publicKeys.get(i), context, nonce), executor).thenApply(results -> {
+			for (boolean result : results)
+				if (!result)
 					return false;
-			}
+			return true;
+		});
+	}
+
+	private boolean haveSameChallengeAndResponse() {
+		BigInteger challenge = get(0).get_c();
+		BigInteger response = get(0).getSecretKeyResponse();
+
+		for (Proof proof : this) {
+			if (!challenge.equals(proof.get_c()) || !response.equals(proof.getSecretKeyResponse()))
+				return false;
 		}
 
 		return true;
 	}
 
+	/**
+	 * Applies the function to the indices of all proofs, on the given executor or on the calling thread if it is
+	 * null, and collects the results in order.
+	 */
+	private <T> CompletableFuture<List<T>> forEachProof(final IntFunction<T> function, Executor executor) {
+		final List<CompletableFuture<T>> futures = new ArrayList<>(size());
+		for (int i = 0; i < size(); ++i) {
+			final int index = i;
+			if (executor == null)
+				futures.add(CompletableFuture.completedFuture(function.apply(index)));
+			else
+				futures.add(CompletableFuture.supplyAsync(() -> function.apply(index), executor));
+		}
+
+		return CompletableFuture.allOf(futures.toArray(new CompletableFuture<?>[futures.size()])).thenApply(v -> {
+			List<T> results = new ArrayList<>(futures.size());
+			for (CompletableFuture<T> future : futures)
+				results.add(future.join());
+			return results;
+		});
+	}
+
 	/**
 	 * <p>Reconstruct the challenge that should have been used in the proofs if they had been cryptographically bound,
 	 * based on the commitments and group elements of which knowledge is being proved (along with the context and
@@ -168,24 +241,30 @@ public class ProofList extends ArrayList<Proof> {
 	 * otherwise have been used as the challenge.</p>
 	 */
 	private BigInteger reconstructChallenge(BigInteger context, BigInteger nonce) {
-		Proof proof;
-		IdemixPublicKey pk;
-		List<BigInteger> toHash = new ArrayList<>(2*size() + 2);
-
-		toHash.add(context);
-		for (int i = 0; i < size(); ++i) {
-			proof = get(i);
-			pk = publicKeys.get(i);
-			toHash.addAll(proof.getChallengeContribution(pk));
-		}
-		toHash.add(nonce);
+		return reconstructChallengeAsync(context, nonce, null).join();
+	}
 
-		BigInteger[] toHashArray = toHash.toArray(new BigInteger[toHash.size()]);
-		if (isSig) {
-			return Crypto.sha256Hash(Crypto.asn1SigEncode(toHashArray));
-		} else {
-			return Crypto.sha256Hash(Crypto.asn1Encode(toHashArray));
-		}
+	/**
+	 * Reconstructs the challenge as {@link #reconstructChallenge(BigInteger, BigInteger)} does, computing the
+	 * contributions of the separate proofs on the given executor.
+	 */
+	private CompletableFuture<BigInteger> reconstructChallengeAsync(final BigInteger context, final BigInteger nonce,
+	                                                                Executor executor) {
+		return forEachProof(i -> get(i).getChallengeContribution(publicKeys.get(i)), executor).thenApply(contributions -> {
+			List<BigInteger> toHash = new ArrayList<>(2*size() + 2);
+
+			toHash.add(context);
+			for (List<BigInteger> contribution : contributions)
+				toHash.addAll(contribution);
+			toHash.add(nonce);
+
+			BigInteger[] toHashArray = toHash.toArray(new BigInteger[toHash.size()]);
+			if (isSig) {
+				return Crypto.sha256Hash(Crypto.asn1SigEncode(toHashArray));
+			} else {
+				return Crypto.sha256Hash(Crypto.asn1Encode(toHashArray));
+			}
+		});
 	}
 
 	/**
@@ -254,6 +333,15 @@ public class ProofList extends ArrayList<Proof> {
 		return isSig;
 	}
 
+	public int getProofUCount() {
+		int i = 0;
+		for (Proof proof : this)
+			if (proof instanceof ProofU)
+				++i;
+
+		return i;
+	}
+
 	public int getProofDCount() {
 		int i = 0;
 		for (Proof proof : this)
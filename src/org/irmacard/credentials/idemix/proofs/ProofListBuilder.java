@@ -31,6 +31,7 @@
 package org.irmacard.credentials.idemix.proofs;
 
 import org.irmacard.credentials.idemix.CredentialBuilder;
+import org.irmacard.credentials.idemix.HolderSecret;
 import org.irmacard.credentials.idemix.IdemixCredential;
 import org.irmacard.credentials.idemix.IdemixSystemParameters;
 import org.irmacard.credentials.idemix.util.Crypto;
@@ -40,6 +41,9 @@ import java.security.SecureRandom;
 import java.util.ArrayList;
 import java.util.List;
 import java.util.Random;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.Executor;
 
 /**
  * <p>A builder for {@link ProofList}s, for creating cryptographically bound proofs of knowledge. It works as
@@ -56,55 +60,94 @@ import java.util.Random;
  *     calculated and a new {@link ProofList} is populated.</li>
  * </ul>
  * </p>
+ *
+ * <p>If an executor is set (see {@link #setExecutor(Executor)}), the commitments are computed concurrently on it,
+ * starting as soon as they are added; {@link #build()} waits for them and hashes them in the order in which they
+ * were added, so that the result is the same as when they are computed one after the other.</p>
  */
 public class ProofListBuilder {
 	private BigInteger context;
 	private BigInteger nonce;
 
 	private List<IdemixCredential> credentials = new ArrayList<>();
-	private List<BigInteger> toHash = new ArrayList<>();
-	private List<BigInteger> toHashU = new ArrayList<>();
-	private List<IdemixCredential.Commitment> commitments = new ArrayList<>();
-	private List<CredentialBuilder.Commitment> proofUcommitments = new ArrayList<>();
+	private List<CredentialBuilder> builders = new ArrayList<>();
+	private List<CompletableFuture<IdemixCredential.Commitment>> commitments = new ArrayList<>();
+	private List<CompletableFuture<CredentialBuilder.Commitment>> proofUcommitments = new ArrayList<>();
+
+	private Executor executor;
 
 	private BigInteger secret;
+	private HolderSecret holderSecret;
 	private BigInteger skCommitment;
 
 	private final boolean isSig;
+	private final MerkleTree tree;
 
 	public ProofListBuilder(BigInteger context, BigInteger nonce) {
 		this(context, nonce, false);
 	}
 
 	public ProofListBuilder(BigInteger context, BigInteger nonce, boolean isSig) {
+		this(context, nonce, isSig, null);
+	}
+
+	/**
+	 * Creates a builder for a signature over all of the specified message hashes at once, whose nonce is the root
+	 * of a {@link MerkleTree} over them. Use {@link #buildBatch()} to obtain the signature along with the inclusion
+	 * paths of the messages.
+	 * @throws IllegalArgumentException if there are no messages
+	 */
+	public ProofListBuilder(BigInteger context, List<BigInteger> messages) {
+		this(context, new MerkleTree(messages));
+	}
+
+	private ProofListBuilder(BigInteger context, MerkleTree tree) {
+		this(context, tree.getRoot(), true, tree);
+	}
+
+	private ProofListBuilder(BigInteger context, BigInteger nonce, boolean isSig, MerkleTree tree) {
 		this.context = context;
 		this.nonce = nonce;
 		this.skCommitment = new BigInteger(new IdemixSystemParameters().l_m_commit, new Random());
-
-		toHash.add(context);
 		this.isSig = isSig;
+		this.tree = tree;
 	}
 
 
 	/**
 	 * Add a proof for the specified credential and attributes.
 	 */
-	public ProofListBuilder addProofD(IdemixCredential credential, List<Integer> disclosed_attributes) {
-		IdemixCredential.Commitment commitment = credential.commit(disclosed_attributes, context, nonce, skCommitment);
+	public ProofListBuilder addProofD(final IdemixCredential credential, final List<Integer> disclosed_attributes) {
+		final BigInteger skCommitment = this.skCommitment;
+		if (executor == null) {
+			commitments.add(CompletableFuture.completedFuture(
+					credential.commit(disclosed_attributes, context, nonce, skCommitment)));
+		} else {
+			commitments.add(CompletableFuture.supplyAsync(
+					() -> credential.commit(disclosed_attributes, context, nonce, skCommitment), executor));
+		}
 
 		credentials.add(credential);
-		commitments.add(commitment);
-		toHash.add(commitment.getA());
-		toHash.add(commitment.getZ());
-
 		return this;
 	}
 
 	/**
 	 * Add a credential builder for a new credential, from which to construct a proof for the commitment to the secret
-	 * key and v_prime for issuing. If the builder does not yet have a secret key, we generate one.
+	 * key and v_prime for issuing. If the builder does not yet have a secret key, we generate one. If this is the
+	 * first proof and the builder has a precomputed commitment to its secret key, we adopt that as ours, so that
+	 * its commitment costs no exponentiations. If a holder secret context was set (see
+	 * {@link #setSecretKey(HolderSecret)}) or the first builder has one, builders with the same secret (or none)
+	 * use it for R_0^s.
 	 */
 	public ProofListBuilder addCredentialBuilder(CredentialBuilder builder) {
+		HolderSecret holderSecret = getHolderSecret();
+		if (holderSecret != null && builder.getHolderSecret() == null) {
+			BigInteger sk = builder.getSecret() != null ? builder.getSecret() : getSecretKey();
+			if (holderSecret.getSecret().equals(sk)) {
+				builder.setSecret(holderSecret);
+			}
+		}
+
 		if (builder.getSecret() == null) {
 			BigInteger sk = getSecretKey();
 			if (sk == null) {
@@ -113,17 +156,25 @@ public class ProofListBuilder {
 			builder.setSecret(sk);
 		}
 
-		return addProofU(builder.commit(nonce, skCommitment));
-	}
+		if (credentials.isEmpty() && proofUcommitments.isEmpty()) {
+			BigInteger precomputed = builder.getPrecomputedSecretKeyCommitment();
+			if (precomputed != null) {
+				skCommitment = precomputed;
+			}
+		}
 
-	/**
-	 * Add a proof for the commitment to the secret key and v_prime for issuing.
-	 */
-	private ProofListBuilder addProofU(CredentialBuilder.Commitment commitment) {
-		this.proofUcommitments.add(commitment);
-		toHashU.add(commitment.getU());
-		toHashU.add(commitment.getUcommit());
+		final BigInteger skCommitment = this.skCommitment;
+		if (executor == null) {
+			proofUcommitments.add(CompletableFuture.completedFuture(builder.commit(nonce, skCommitment)));
+		} else {
+			proofUcommitments.add(CompletableFuture.supplyAsync(() -> {
+				CredentialBuilder.Commitment commitment = builder.commit(nonce, skCommitment);
+				commitment.getU(); // Computes U if necessary
+				return commitment;
+			}, executor));
+		}
 
+		builders.add(builder);
 		return this;
 	}
 
@@ -136,7 +187,19 @@ public class ProofListBuilder {
 			throw new RuntimeException("No proofs have been added, can't build an empty proof collection");
 		}
 
-		toHash.addAll(toHashU);
+		List<IdemixCredential.Commitment> commitments = join(this.commitments);
+		List<CredentialBuilder.Commitment> proofUcommitments = join(this.proofUcommitments);
+
+		List<BigInteger> toHash = new ArrayList<>(2 * (commitments.size() + proofUcommitments.size()) + 2);
+		toHash.add(context);
+		for (IdemixCredential.Commitment commitment : commitments) {
+			toHash.add(commitment.getA());
+			toHash.add(commitment.getZ());
+		}
+		for (CredentialBuilder.Commitment commitment : proofUcommitments) {
+			toHash.add(commitment.getU());
+			toHash.add(commitment.getUcommit());
+		}
 		toHash.add(nonce);
 		BigInteger[] toHashArray = toHash.toArray(new BigInteger[toHash.size()]);
 
@@ -163,6 +226,56 @@ public class ProofListBuilder {
 		return proofs;
 	}
 
+	/**
+	 * Completes the proofs of a builder created for a batch of messages (see
+	 * {@link #ProofListBuilder(BigInteger, List)}), and returns the signature along with the inclusion path of each
+	 * message.
+	 * @throws RuntimeException if no proofs have been added yet, or if this builder is not for a batch of messages
+	 */
+	public BatchSignature buildBatch() {
+		if (tree == null) {
+			throw new RuntimeException("Not a builder for a batch of messages");
+		}
+
+		List<MerkleTree.Path> paths = new ArrayList<>(tree.size());
+		for (int i = 0; i < tree.size(); i++) {
+			paths.add(tree.getPath(i));
+		}
+		return new BatchSignature(build(), paths);
+	}
+
+	/**
+	 * Waits for the given commitments, rethrowing the first exception that
+	 * occurred while computing them.
+	 */
+	private static <T> List<T> join(List<CompletableFuture<T>> futures) {
+		List<T> results = new ArrayList<>(futures.size());
+		try {
+			for (CompletableFuture<T> future : futures) {
+				results.add(future.join());
+			}
+		} catch (CompletionException e) {
+			if (e.getCause() instanceof RuntimeException) {
+				throw (RuntimeException) e.getCause();
+			}
+			throw e;
+		}
+		return results;
+	}
+
+	/**
+	 * Sets the executor on which commitments are computed, or null (the
+	 * default) to compute them when they are added. Commitments added
+	 * before this call are not affected.
+	 */
+	public void setExecutor(Executor executor) {
+		this.executor = executor;
+	}
+
+	public Executor getExecutor() {
+		return executor;
+	}
+
 	public BigInteger getContext() {
 		return context;
 	}
@@ -173,6 +286,27 @@ public class ProofListBuilder {
 
 	public void setSecretKey(BigInteger secret) {
 		this.secret = secret;
+		this.holderSecret = null;
+	}
+
+	/**
+	 * Sets the secret key through a holder secret context, which credential builders that are added afterwards
+	 * use to look up R_0^s for their public key (see {@link CredentialBuilder#setSecret(HolderSecret)}).
+	 */
+	public void setSecretKey(HolderSecret secret) {
+		this.secret = secret.getSecret();
+		this.holderSecret = secret;
+	}
+
+	/**
+	 * Gets the holder secret context that was set, or else that of the first credential builder. If there is
+	 * none, returns null.
+	 */
+	public HolderSecret getHolderSecret() {
+		if (holderSecret == null && builders.size() > 0)
+			return builders.get(0).getHolderSecret();
+
+		return holderSecret;
 	}
 
 	/**
@@ -183,8 +317,8 @@ public class ProofListBuilder {
 		if (secret == null) {
 			if (credentials != null && credentials.size() > 0)
 				secret = credentials.get(0).getAttribute(0);
-			if (proofUcommitments != null && proofUcommitments.size() > 0)
-				secret = proofUcommitments.get(0).getSecretKey();
+			if (builders != null && builders.size() > 0)
+				secret = builders.get(0).getSecret();
 		}
 
 		return secret;
@@ -107,11 +107,10 @@ public class ProofU implements Proof {
 
 		// Reconstruct U_commit
 		// U_commit = U^{-c} * S^{v_prime_response} * R_0^{s_response}
-		BigInteger Uc = U.modPow(this.c.negate(), n);
-		BigInteger Sv = pk.getGeneratorS().modPow(this.v_prime_response, n);
-		BigInteger R0s = pk.getGeneratorR(0).modPow(this.s_response, n);
-
-		return Uc.multiply(Sv).multiply(R0s).mod(n);
+		return Crypto.multiExp(
+				Arrays.asList(U, pk.getGeneratorS(), pk.getGeneratorR(0)),
+				Arrays.asList(this.c.negate(), this.v_prime_response, this.s_response),
+				n, pk.getFixedBaseTables());
 	}
 
 	public BigInteger getU() { return U; }
@@ -0,0 +1,184 @@
+/*
+ * Copyright (c) 2015, the IRMA Team
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ *
+ *  Redistributions of source code must retain the above copyright notice, this
+ *   list of conditions and the following disclaimer.
+ *
+ *  Redistributions in binary form must reproduce the above copyright notice,
+ *   this list of conditions and the following disclaimer in the documentation
+ *   and/or other materials provided with the distribution.
+ *
+ *  Neither the name of the IRMA project nor the names of its
+ *   contributors may be used to endorse or promote products derived from
+ *   this software without specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS"
+ * AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+ * IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE
+ * DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT HOLDER OR CONTRIBUTORS BE LIABLE
+ * FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL
+ * DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR
+ * SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER
+ * CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY,
+ * OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE
+ * OF THIS SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+
+package org.irmacard.credentials.idemix.server;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.Closeable;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.net.Socket;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.irmacard.credentials.CredentialsException;
+import org.irmacard.credentials.idemix.messages.IssueSignatureMessage;
+
+/**
+ * A client for an {@link IssuanceServer}. Requests are pipelined: any number
+ * of threads may send requests over the same connection without waiting for
+ * earlier responses. A background thread reads the responses and completes
+ * the corresponding futures.
+ */
+public class IssuanceClient implements Closeable {
+	private final Socket socket;
+	private final DataOutputStream out;
+	private final DataInputStream in;
+	private final Thread reader;
+
+	private final AtomicInteger nextRequestId = new AtomicInteger();
+	private final Map<Integer, CompletableFuture<IssueSignatureMessage>> pending = new ConcurrentHashMap<>();
+	private volatile IOException failure;
+
+	/**
+	 * Connects to the server at the given host and port.
+	 */
+	public IssuanceClient(String host, int port) throws IOException {
+		this(new Socket(host, port));
+	}
+
+	/**
+	 * Uses the given connected socket to talk to the server.
+	 */
+	public IssuanceClient(Socket socket) throws IOException {
+		this.socket = socket;
+		socket.setTcpNoDelay(true);
+		this.out = new DataOutputStream(new BufferedOutputStream(socket.getOutputStream()));
+		this.in = new DataInputStream(new BufferedInputStream(socket.getInputStream()));
+
+		reader = new Thread(new Runnable() {
+			@Override
+			public void run() {
+				read();
+			}
+		}, "IssuanceClient");
+		reader.setDaemon(true);
+		reader.start();
+	}
+
+	/**
+	 * Sends a request to the server.
+	 *
+	 * @return a future that completes with the response of the issuer, or
+	 *         exceptionally with a {@link CredentialsException} if the server
+	 *         refused the request or with an {@link IOException} if the
+	 *         connection failed
+	 */
+	public CompletableFuture<IssueSignatureMessage> issue(IssuanceRequest request) {
+		CompletableFuture<IssueSignatureMessage> future = new CompletableFuture<>();
+		int requestId = nextRequestId.getAndIncrement();
+
+		try {
+			byte[] frame = IssuanceCodec.encodeRequest(requestId, request);
+			pending.put(requestId, future);
+			if (failure != null) {
+				throw failure;
+			}
+			synchronized (out) {
+				IssuanceCodec.writeFrame(out, frame);
+			}
+		} catch (IOException e) {
+			pending.remove(requestId);
+			future.completeExceptionally(e);
+		}
+
+		return future;
+	}
+
+	/**
+	 * Sends a request to the server and waits for the response.
+	 *
+	 * @throws CredentialsException if the server refused the request
+	 * @throws IOException if the connection failed
+	 */
+	public IssueSignatureMessage issueSync(IssuanceRequest request) throws CredentialsException, IOException {
+		try {
+			return issue(request).join();
+		} catch (CompletionException e) {
+			if (e.getCause() instanceof CredentialsException)
+				throw (CredentialsException) e.getCause();
+			if (e.getCause() instanceof IOException)
+				throw (IOException) e.getCause();
+			throw e;
+		}
+	}
+
+	private void read() {
+		try {
+			byte[] frame;
+			while ((frame = IssuanceCodec.readFrame(in, Integer.MAX_VALUE)) != null) {
+				CompletableFuture<IssueSignatureMessage> future = pending.remove(IssuanceCodec.getRequestId(frame));
+				if (future == null) {
+					continue;
+				}
+
+				if (IssuanceCodec.getType(frame) == IssuanceCodec.ERROR) {
+					future.completeExceptionally(new CredentialsException(IssuanceCodec.decodeError(frame)));
+				} else {
+					future.complete(IssuanceCodec.decodeResponse(frame));
+				}
+			}
+			fail(new IOException("Connection closed by server"));
+		} catch (IOException e) {
+			fail(e);
+		}
+	}
+
+	private void fail(IOException e) {
+		failure = e;
+		for (Integer requestId : pending.keySet()) {
+			CompletableFuture<IssueSignatureMessage> future = pending.remove(requestId);
+			if (future != null) {
+				future.completeExceptionally(e);
+			}
+		}
+	}
+
+	/**
+	 * The number of requests that have been sent but not yet answered.
+	 */
+	public int getPendingCount() {
+		return pending.size();
+	}
+
+	/**
+	 * Closes the connection. Requests that have not been answered yet
+	 * complete exceptionally with an {@link IOException}.
+	 */
+	@Override
+	public void close() throws IOException {
+		socket.close();
+	}
+}
@@ -0,0 +1,338 @@
+/*
+ * Copyright (c) 2015, the IRMA Team
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ *
+ *  Redistributions of source code must retain the above copyright notice, this
+ *   list of conditions and the following disclaimer.
+ *
+ *  Redistributions in binary form must reproduce the above copyright notice,
+ *   this list of conditions and the following disclaimer in the documentation
+ *   and/or other materials provided with the distribution.
+ *
+ *  Neither the name of the IRMA project nor the names of its
+ *   contributors may be used to endorse or promote products derived from
+ *   this software without specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS"
+ * AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+ * IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE
+ * DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT HOLDER OR CONTRIBUTORS BE LIABLE
+ * FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL
+ * DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR
+ * SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER
+ * CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY,
+ * OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE
+ * OF THIS SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+
+package org.irmacard.credentials.idemix.server;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.IOException;
+import java.math.BigInteger;
+import java.util.HashMap;
+import java.util.Map;
+
+import org.irmacard.credentials.idemix.CLSignature;
+import org.irmacard.credentials.idemix.messages.IssueCommitmentMessage;
+import org.irmacard.credentials.idemix.messages.IssueSignatureMessage;
+import org.irmacard.credentials.idemix.proofs.Proof;
+import org.irmacard.credentials.idemix.proofs.ProofD;
+import org.irmacard.credentials.idemix.proofs.ProofList;
+import org.irmacard.credentials.idemix.proofs.ProofS;
+import org.irmacard.credentials.idemix.proofs.ProofU;
+
+/**
+ * The binary protocol spoken between {@link IssuanceServer} and
+ * {@link IssuanceClient}. Every frame consists of a 4-byte big-endian length
+ * followed by that many bytes of payload. A payload starts with a type byte
+ * and a 4-byte request identifier, chosen by the client and echoed by the
+ * server, so that a client can have many requests in flight on one
+ * connection and responses can be returned out of order.
+ * <p>
+ * Integers are encoded as a 4-byte length followed by their two's-complement
+ * big-endian representation (see {@link BigInteger#toByteArray()}); a length
+ * of -1 denotes null. Strings are encoded as in
+ * {@link DataOutputStream#writeUTF(String)}.
+ */
+public class IssuanceCodec {
+	/** Frame type of a request, carrying an {@link IssuanceRequest} */
+	public static final byte ISSUE_REQUEST = 1;
+	/** Frame type of a successful response, carrying an {@link IssueSignatureMessage} */
+	public static final byte ISSUE_RESPONSE = 2;
+	/** Frame type of a failed request, carrying an error message */
+	public static final byte ERROR = 3;
+
+	/** Default maximum size of a frame in bytes */
+	public static final int DEFAULT_MAX_FRAME_LENGTH = 1 << 20;
+
+	private static final byte PROOF_U = 1;
+	private static final byte PROOF_D = 2;
+
+	private static final byte COMMITMENT_PROOF = 0;
+	private static final byte COMBINED_PROOFS = 1;
+
+	private IssuanceCodec() {
+	}
+
+	/**
+	 * Reads the payload of one frame.
+	 *
+	 * @return the payload, or null if the stream ended before the frame
+	 * @throws IOException if the stream ends halfway through the frame, or if the
+	 *         frame is larger than allowed
+	 */
+	public static byte[] readFrame(DataInputStream in, int maxLength) throws IOException {
+		int length;
+		try {
+			length = in.readInt();
+		} catch (EOFException e) {
+			return null;
+		}
+
+		if (length < 0 || length > maxLength) {
+			throw new IOException("Invalid frame length " + length);
+		}
+
+		byte[] payload = new byte[length];
+		in.readFully(payload);
+		return payload;
+	}
+
+	/**
+	 * Writes the payload as one frame, and flushes the stream.
+	 */
+	public static void writeFrame(DataOutputStream out, byte[] payload) throws IOException {
+		out.writeInt(payload.length);
+		out.write(payload);
+		out.flush();
+	}
+
+	public static byte[] encodeRequest(int requestId, IssuanceRequest request) throws IOException {
+		ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+		DataOutputStream out = new DataOutputStream(bytes);
+
+		out.writeByte(ISSUE_REQUEST);
+		out.writeInt(requestId);
+		out.writeUTF(request.getIssuer());
+		out.writeInt(request.getKeyCounter());
+		writeBigInteger(out, request.getNonce1());
+		out.writeInt(request.getIndex());
+		writeCommitmentMessage(out, request.getMessage());
+
+		out.flush();
+		return bytes.toByteArray();
+	}
+
+	public static byte[] encodeResponse(int requestId, IssueSignatureMessage msg) throws IOException {
+		ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+		DataOutputStream out = new DataOutputStream(bytes);
+
+		out.writeByte(ISSUE_RESPONSE);
+		out.writeInt(requestId);
+		writeBigInteger(out, msg.getSignature().getA());
+		writeBigInteger(out, msg.getSignature().get_e());
+		writeBigInteger(out, msg.getSignature().get_v());
+		writeBigInteger(out, msg.getProofS().get_c());
+		writeBigInteger(out, msg.getProofS().get_e_response());
+
+		out.flush();
+		return bytes.toByteArray();
+	}
+
+	public static byte[] encodeError(int requestId, String message) throws IOException {
+		ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+		DataOutputStream out = new DataOutputStream(bytes);
+
+		out.writeByte(ERROR);
+		out.writeInt(requestId);
+		out.writeUTF(message == null ? "" : message);
+
+		out.flush();
+		return bytes.toByteArray();
+	}
+
+	public static byte getType(byte[] payload) throws IOException {
+		if (payload.length < 5) {
+			throw new IOException("Frame too short");
+		}
+		return payload[0];
+	}
+
+	public static int getRequestId(byte[] payload) throws IOException {
+		if (payload.length < 5) {
+			throw new IOException("Frame too short");
+		}
+		return ((payload[1] & 0xff) << 24) | ((payload[2] & 0xff) << 16)
+				| ((payload[3] & 0xff) << 8) | (payload[4] & 0xff);
+	}
+
+	public static IssuanceRequest decodeRequest(byte[] payload) throws IOException {
+		DataInputStream in = body(payload, ISSUE_REQUEST);
+
+		String issuer = in.readUTF();
+		int counter = in.readInt();
+		BigInteger nonce1 = readBigInteger(in);
+		int index = in.readInt();
+		IssueCommitmentMessage msg = readCommitmentMessage(in);
+
+		return new IssuanceRequest(issuer, counter, nonce1, index, msg);
+	}
+
+	public static IssueSignatureMessage decodeResponse(byte[] payload) throws IOException {
+		DataInputStream in = body(payload, ISSUE_RESPONSE);
+
+		CLSignature signature = new CLSignature(readBigInteger(in), readBigInteger(in), readBigInteger(in));
+		ProofS proof = new ProofS(readBigInteger(in), readBigInteger(in));
+		return new IssueSignatureMessage(signature, proof);
+	}
+
+	public static String decodeError(byte[] payload) throws IOException {
+		return body(payload, ERROR).readUTF();
+	}
+
+	private static DataInputStream body(byte[] payload, byte type) throws IOException {
+		if (getType(payload) != type) {
+			throw new IOException("Unexpected frame type " + getType(payload));
+		}
+		DataInputStream in = new DataInputStream(new ByteArrayInputStream(payload));
+		in.skipBytes(5);
+		return in;
+	}
+
+	private static void writeCommitmentMessage(DataOutputStream out, IssueCommitmentMessage msg) throws IOException {
+		writeBigInteger(out, msg.getNonce2());
+
+		if (msg.getCombinedProofs() == null) {
+			out.writeByte(COMMITMENT_PROOF);
+			writeProofU(out, msg.getCommitmentProof());
+			return;
+		}
+
+		out.writeByte(COMBINED_PROOFS);
+		ProofList proofs = msg.getCombinedProofs();
+		out.writeInt(proofs.size());
+		for (Proof proof : proofs) {
+			if (proof instanceof ProofU) {
+				out.writeByte(PROOF_U);
+				writeProofU(out, (ProofU) proof);
+			} else if (proof instanceof ProofD) {
+				out.writeByte(PROOF_D);
+				writeProofD(out, (ProofD) proof);
+			} else {
+				throw new IOException("Cannot encode proof of type " + proof.getClass().getName());
+			}
+		}
+	}
+
+	private static IssueCommitmentMessage readCommitmentMessage(DataInputStream in) throws IOException {
+		BigInteger n_2 = readBigInteger(in);
+
+		byte kind = in.readByte();
+		if (kind == COMMITMENT_PROOF) {
+			return new IssueCommitmentMessage(readProofU(in), n_2);
+		}
+		if (kind != COMBINED_PROOFS) {
+			throw new IOException("Unknown commitment message kind " + kind);
+		}
+
+		int count = readCount(in);
+		ProofList proofs = new ProofList();
+		for (int i = 0; i < count; i++) {
+			byte type = in.readByte();
+			if (type == PROOF_U) {
+				proofs.add(readProofU(in));
+			} else if (type == PROOF_D) {
+				proofs.add(readProofD(in));
+			} else {
+				throw new IOException("Unknown proof type " + type);
+			}
+		}
+		return new IssueCommitmentMessage(proofs, n_2);
+	}
+
+	private static void writeProofU(DataOutputStream out, ProofU proof) throws IOException {
+		writeBigInteger(out, proof.getU());
+		writeBigInteger(out, proof.get_c());
+		writeBigInteger(out, proof.get_v_prime_response());
+		writeBigInteger(out, proof.get_s_response());
+	}
+
+	private static ProofU readProofU(DataInputStream in) throws IOException {
+		return new ProofU(readBigInteger(in), readBigInteger(in), readBigInteger(in), readBigInteger(in));
+	}
+
+	private static void writeProofD(DataOutputStream out, ProofD proof) throws IOException {
+		writeBigInteger(out, proof.get_c());
+		writeBigInteger(out, proof.getA());
+		writeBigInteger(out, proof.get_e_response());
+		writeBigInteger(out, proof.get_v_response());
+		writeMap(out, proof.get_a_responses());
+		writeMap(out, proof.get_a_disclosed());
+	}
+
+	private static ProofD readProofD(DataInputStream in) throws IOException {
+		return new ProofD(readBigInteger(in), readBigInteger(in), readBigInteger(in), readBigInteger(in),
+				readMap(in), readMap(in));
+	}
+
+	private static void writeMap(DataOutputStream out, Map<Integer, BigInteger> map) throws IOException {
+		out.writeInt(map.size());
+		for (Map.Entry<Integer, BigInteger> entry : map.entrySet()) {
+			out.writeInt(entry.getKey());
+			writeBigInteger(out, entry.getValue());
+		}
+	}
+
+	private static HashMap<Integer, BigInteger> readMap(DataInputStream in) throws IOException {
+		int count = readCount(in);
+		HashMap<Integer, BigInteger> map = new HashMap<>(count * 2);
+		for (int i = 0; i < count; i++) {
+			int key = in.readInt();
+			map.put(key, readBigInteger(in));
+		}
+		return map;
+	}
+
+	private static void writeBigInteger(DataOutputStream out, BigInteger value) throws IOException {
+		if (value == null) {
+			out.writeInt(-1);
+			return;
+		}
+		byte[] bytes = value.toByteArray();
+		out.writeInt(bytes.length);
+		out.write(bytes);
+	}
+
+	private static BigInteger readBigInteger(DataInputStream in) throws IOException {
+		int length = in.readInt();
+		if (length == -1) {
+			return null;
+		}
+		if (length <= 0 || length > in.available()) {
+			throw new IOException("Invalid integer length " + length);
+		}
+		byte[] bytes = new byte[length];
+		in.readFully(bytes);
+		return new BigInteger(bytes);
+	}
+
+	/**
+	 * Reads the number of elements of a list or map; every element takes at
+	 * least four bytes, which bounds the count by the remaining input.
+	 */
+	private static int readCount(DataInputStream in) throws IOException {
+		int count = in.readInt();
+		if (count < 0 || count > in.available() / 4) {
+			throw new IOException("Invalid element count " + count);
+		}
+		return count;
+	}
+}
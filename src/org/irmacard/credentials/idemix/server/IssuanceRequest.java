@@ -0,0 +1,92 @@
+/*
+ * Copyright (c) 2015, the IRMA Team
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ *
+ *  Redistributions of source code must retain the above copyright notice, this
+ *   list of conditions and the following disclaimer.
+ *
+ *  Redistributions in binary form must reproduce the above copyright notice,
+ *   this list of conditions and the following disclaimer in the documentation
+ *   and/or other materials provided with the distribution.
+ *
+ *  Neither the name of the IRMA project nor the names of its
+ *   contributors may be used to endorse or promote products derived from
+ *   this software without specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS"
+ * AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+ * IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE
+ * DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT HOLDER OR CONTRIBUTORS BE LIABLE
+ * FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL
+ * DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR
+ * SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER
+ * CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY,
+ * OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE
+ * OF THIS SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+
+package org.irmacard.credentials.idemix.server;
+
+import java.math.BigInteger;
+
+import org.irmacard.credentials.idemix.messages.IssueCommitmentMessage;
+
+/**
+ * A request to an {@link IssuanceServer} to issue a credential: the second
+ * message of the issuance protocol, along with the key to sign with and the
+ * nonce that was sent to the recipient. The context and the attributes to
+ * sign are not part of the request; they are those of the issuance session
+ * that the nonce belongs to.
+ */
+public class IssuanceRequest {
+	private final String issuer;
+	private final int keyCounter;
+	private final BigInteger nonce1;
+	private final int index;
+	private final IssueCommitmentMessage message;
+
+	/**
+	 * @param issuer
+	 *            the identifier of the issuer whose key to sign with, e.g.
+	 *            "irma-demo.MijnOverheid"
+	 * @param keyCounter
+	 *            the counter of the key to sign with
+	 * @param nonce1
+	 *            the nonce that was sent to the recipient
+	 * @param index
+	 *            the index of the commitment to sign in the message
+	 * @param message
+	 *            the message from the recipient
+	 */
+	public IssuanceRequest(String issuer, int keyCounter, BigInteger nonce1, int index,
+			IssueCommitmentMessage message) {
+		this.issuer = issuer;
+		this.keyCounter = keyCounter;
+		this.nonce1 = nonce1;
+		this.index = index;
+		this.message = message;
+	}
+
+	public String getIssuer() {
+		return issuer;
+	}
+
+	public int getKeyCounter() {
+		return keyCounter;
+	}
+
+	public BigInteger getNonce1() {
+		return nonce1;
+	}
+
+	public int getIndex() {
+		return index;
+	}
+
+	public IssueCommitmentMessage getMessage() {
+		return message;
+	}
+}
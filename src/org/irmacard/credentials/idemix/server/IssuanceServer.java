@@ -0,0 +1,483 @@
+/*
+ * Copyright (c) 2015, the IRMA Team
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ *
+ *  Redistributions of source code must retain the above copyright notice, this
+ *   list of conditions and the following disclaimer.
+ *
+ *  Redistributions in binary form must reproduce the above copyright notice,
+ *   this list of conditions and the following disclaimer in the documentation
+ *   and/or other materials provided with the distribution.
+ *
+ *  Neither the name of the IRMA project nor the names of its
+ *   contributors may be used to endorse or promote products derived from
+ *   this software without specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS"
+ * AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+ * IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE
+ * DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT HOLDER OR CONTRIBUTORS BE LIABLE
+ * FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL
+ * DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR
+ * SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER
+ * CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY,
+ * OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE
+ * OF THIS SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+
+package org.irmacard.credentials.idemix.server;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.Closeable;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.math.BigInteger;
+import java.net.InetAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executor;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.Semaphore;
+
+import org.irmacard.credentials.CredentialsException;
+import org.irmacard.credentials.idemix.IdemixIssuer;
+import org.irmacard.credentials.idemix.IdemixPublicKey;
+import org.irmacard.credentials.idemix.IdemixSecretKey;
+import org.irmacard.credentials.idemix.IssuanceResponseCache;
+import org.irmacard.credentials.idemix.IssuanceSession;
+import org.irmacard.credentials.idemix.IssuanceSessionStore;
+import org.irmacard.credentials.idemix.info.IdemixKeyStore;
+import org.irmacard.credentials.idemix.journal.IssuanceJournal;
+import org.irmacard.credentials.idemix.messages.IssueCommitmentMessage;
+import org.irmacard.credentials.idemix.messages.IssueSignatureMessage;
+import org.irmacard.credentials.idemix.proofs.Proof;
+import org.irmacard.credentials.idemix.proofs.ProofList;
+import org.irmacard.credentials.idemix.proofs.ProofU;
+import org.irmacard.credentials.info.InfoException;
+import org.irmacard.credentials.info.IssuerIdentifier;
+
+/**
+ * A TCP server that issues credentials, speaking the framed binary protocol
+ * of {@link IssuanceCodec}. Each connection is served by its own thread, which
+ * reads requests and hands them to a work executor, so that a client may have
+ * many requests in flight on one connection (up to
+ * {@link #getMaxPipelinedRequests()}; beyond that we stop reading from the
+ * connection until responses have been sent). Responses are sent as soon as
+ * they are ready, possibly out of order.
+ * <p>
+ * The server does not authenticate its clients, so requests do not carry
+ * the attributes or the context to issue. Instead, the application opens a
+ * session for each credential in the {@link IssuanceSessionStore} that the
+ * server is created with, and sends its nonce1 to the recipient; a request
+ * is only served for an open session of the same issuer and key, which is
+ * signed with the key, attributes and context of that session. Knowing
+ * nonce1 is thus what entitles a client to its credential. The session is
+ * completed only once the credential has been issued; a retry of the same
+ * request then gets the same response, while other requests for the
+ * session are refused. By default the server only listens on the loopback
+ * interface; when binding it to another address, make sure that only
+ * trusted backends can reach it.
+ * <p>
+ * Keys are looked up in the {@link IdemixKeyStore} once and then shared
+ * between all connections; keys can also be registered directly using
+ * {@link #addKeys(String, int, IdemixPublicKey, IdemixSecretKey)}.
+ * <p>
+ * Both executors are pluggable: connections are served on new daemon threads
+ * by default, but any executor will do (on Java 21 and up, for example
+ * Executors.newVirtualThreadPerTaskExecutor()), and issuance runs on the
+ * common pool unless another executor (such as an
+ * {@link org.irmacard.credentials.idemix.IssuanceExecutor}-backed one) is set.
+ */
+public class IssuanceServer implements Closeable {
+	/** Default maximum number of requests in flight per connection */
+	public static final int DEFAULT_MAX_PIPELINED_REQUESTS = 64;
+
+	private final ServerSocket serverSocket;
+	private final ConcurrentHashMap<String, Keys> keys = new ConcurrentHashMap<>();
+	private final Set<Socket> connections = ConcurrentHashMap.newKeySet();
+
+	private Executor connectionExecutor;
+	private Executor workExecutor = ForkJoinPool.commonPool();
+	private int maxPipelinedRequests = DEFAULT_MAX_PIPELINED_REQUESTS;
+	private int maxFrameLength = IssuanceCodec.DEFAULT_MAX_FRAME_LENGTH;
+	private IssuanceResponseCache responseCache;
+	private IssuanceJournal journal;
+	private final IssuanceSessionStore sessionStore;
+
+	private volatile boolean running = false;
+	private Thread acceptor;
+
+	private static class Keys {
+		final IdemixPublicKey pk;
+		final IdemixSecretKey sk;
+
+		Keys(IdemixPublicKey pk, IdemixSecretKey sk) {
+			this.pk = pk;
+			this.sk = sk;
+		}
+	}
+
+	/**
+	 * Creates a server listening on the given port on the loopback interface;
+	 * use port 0 to pick a free port (see {@link #getPort()}).
+	 *
+	 * @param sessionStore
+	 *            the store of the sessions the server may issue for
+	 */
+	public IssuanceServer(int port, IssuanceSessionStore sessionStore) throws IOException {
+		this(port, InetAddress.getLoopbackAddress(), sessionStore);
+	}
+
+	/**
+	 * Creates a server listening on the given port on the given address.
+	 *
+	 * @param sessionStore
+	 *            the store of the sessions the server may issue for
+	 */
+	public IssuanceServer(int port, InetAddress address, IssuanceSessionStore sessionStore) throws IOException {
+		this(bind(port, address, sessionStore), sessionStore);
+	}
+
+	/**
+	 * Creates a server accepting connections on the given socket.
+	 *
+	 * @param sessionStore
+	 *            the store of the sessions the server may issue for
+	 */
+	public IssuanceServer(ServerSocket serverSocket, IssuanceSessionStore sessionStore) {
+		checkSessionStore(sessionStore);
+		this.serverSocket = serverSocket;
+		this.sessionStore = sessionStore;
+	}
+
+	private static ServerSocket bind(int port, InetAddress address, IssuanceSessionStore sessionStore)
+			throws IOException {
+		checkSessionStore(sessionStore);
+		return new ServerSocket(port, 50, address);
+	}
+
+	/**
+	 * @throws IllegalArgumentException if the session store is null
+	 */
+	private static void checkSessionStore(IssuanceSessionStore sessionStore) {
+		if (sessionStore == null) {
+			throw new IllegalArgumentException("An issuance server needs a session store");
+		}
+	}
+
+	/**
+	 * Registers the key pair to use for requests for the given issuer and key
+	 * counter, instead of looking it up in the {@link IdemixKeyStore}.
+	 */
+	public void addKeys(String issuer, int counter, IdemixPublicKey pk, IdemixSecretKey sk) {
+		keys.put(keyName(issuer, counter), new Keys(pk, sk));
+	}
+
+	/**
+	 * Starts accepting connections.
+	 */
+	public synchronized void start() {
+		if (running) {
+			return;
+		}
+
+		running = true;
+		acceptor = new Thread(new Runnable() {
+			@Override
+			public void run() {
+				accept();
+			}
+		}, "IssuanceServer-" + getPort());
+		acceptor.setDaemon(true);
+		acceptor.start();
+	}
+
+	/**
+	 * Stops accepting connections and closes all open connections. Requests
+	 * that are being processed are finished, but their responses are lost.
+	 */
+	@Override
+	public void close() throws IOException {
+		running = false;
+		serverSocket.close();
+		for (Socket connection : connections) {
+			try {
+				connection.close();
+			} catch (IOException e) {
+				// Closing anyway
+			}
+		}
+	}
+
+	private void accept() {
+		while (running) {
+			final Socket connection;
+			try {
+				connection = serverSocket.accept();
+			} catch (IOException e) {
+				if (serverSocket.isClosed()) {
+					return;
+				}
+				// Accepting this connection failed; try the next one
+				continue;
+			}
+
+			connections.add(connection);
+			Runnable serve = new Runnable() {
+				@Override
+				public void run() {
+					serve(connection);
+				}
+			};
+
+			if (connectionExecutor != null) {
+				connectionExecutor.execute(serve);
+			} else {
+				Thread thread = new Thread(serve, "IssuanceServer-connection");
+				thread.setDaemon(true);
+				thread.start();
+			}
+		}
+	}
+
+	private void serve(Socket connection) {
+		final Semaphore inFlight = new Semaphore(maxPipelinedRequests);
+
+		try {
+			connection.setTcpNoDelay(true);
+			DataInputStream in = new DataInputStream(new BufferedInputStream(connection.getInputStream()));
+			final DataOutputStream out = new DataOutputStream(new BufferedOutputStream(connection.getOutputStream()));
+
+			byte[] frame;
+			while ((frame = IssuanceCodec.readFrame(in, maxFrameLength)) != null) {
+				final int requestId = IssuanceCodec.getRequestId(frame);
+				final IssuanceRequest request;
+				try {
+					request = IssuanceCodec.decodeRequest(frame);
+				} catch (IOException e) {
+					send(out, IssuanceCodec.encodeError(requestId, "Malformed request: " + e.getMessage()));
+					continue;
+				}
+
+				inFlight.acquireUninterruptibly();
+				Runnable work = new Runnable() {
+					@Override
+					public void run() {
+						try {
+							send(out, respond(requestId, request));
+						} catch (IOException e) {
+							// The connection is gone; nothing to respond to
+						} finally {
+							inFlight.release();
+						}
+					}
+				};
+
+				try {
+					workExecutor.execute(work);
+				} catch (RejectedExecutionException e) {
+					inFlight.release();
+					send(out, IssuanceCodec.encodeError(requestId, "Server overloaded"));
+				}
+			}
+		} catch (IOException e) {
+			// Broken connection or a protocol violation; close it
+		} finally {
+			connections.remove(connection);
+			try {
+				connection.close();
+			} catch (IOException e) {
+				// Closing anyway
+			}
+		}
+	}
+
+	private static void send(DataOutputStream out, byte[] frame) throws IOException {
+		synchronized (out) {
+			IssuanceCodec.writeFrame(out, frame);
+		}
+	}
+
+	/**
+	 * Processes a request, returning the frame to send in response.
+	 */
+	private byte[] respond(int requestId, IssuanceRequest request) throws IOException {
+		try {
+			IssueSignatureMessage msg = issue(request);
+			return IssuanceCodec.encodeResponse(requestId, msg);
+		} catch (CredentialsException|InfoException|RuntimeException e) {
+			return IssuanceCodec.encodeError(requestId, e.getMessage());
+		}
+	}
+
+	/**
+	 * Issues a signature for the given request, with the key, attributes and
+	 * context of its session; the key named in the request must match. The
+	 * session is completed with the response once the signature has been
+	 * issued. If the session was already completed by the same request, the
+	 * response is sent again.
+	 */
+	protected IssueSignatureMessage issue(IssuanceRequest request)
+			throws CredentialsException, InfoException {
+		IssuanceSession session = sessionStore.get(request.getNonce1());
+		if (session == null) {
+			throw new CredentialsException("Unknown or expired issuance session");
+		}
+		if (session.getKeyCounter() != request.getKeyCounter()
+				|| !session.getIssuer().equals(request.getIssuer())) {
+			throw new CredentialsException("Issuer or key does not match issuance session");
+		}
+		List<BigInteger> attributes = session.getAttributes();
+		BigInteger context = session.getContext();
+
+		Keys keys = getKeys(session.getIssuer(), session.getKeyCounter());
+		IssueCommitmentMessage msg = request.getMessage();
+
+		// The public keys of the proofs are not sent over the wire: the ProofUs are
+		// against our own key, and the keys of the disclosure proofs follow from
+		// their metadata attributes
+		ProofList proofs = msg.getCombinedProofs();
+		if (proofs != null) {
+			List<IdemixPublicKey> pks = new ArrayList<>(proofs.size());
+			for (Proof proof : proofs) {
+				pks.add(proof instanceof ProofU ? keys.pk : proof.extractPublicKey());
+			}
+			proofs.setPublicKeys(pks);
+		}
+
+		BigInteger requestKey = IssuanceResponseCache.key(keys.pk, context, msg, attributes,
+				request.getIndex(), request.getNonce1());
+		IssueSignatureMessage response = session.getResponse(requestKey);
+		if (response != null) {
+			return response;
+		}
+		if (session.isCompleted()) {
+			throw new CredentialsException("Issuance session was already used");
+		}
+
+		// Concurrent duplicates of this request are served once by the response cache
+		IdemixIssuer issuer = new IdemixIssuer(keys.pk, keys.sk, context);
+		issuer.setResponseCache(responseCache);
+		response = issuer.issueSignature(msg, attributes, request.getIndex(), request.getNonce1());
+
+		if (!sessionStore.complete(request.getNonce1(), requestKey, response)) {
+			// A concurrent retry of this request may have completed the session first
+			response = session.getResponse(requestKey);
+			if (response == null) {
+				throw new CredentialsException("Issuance session was already used or expired");
+			}
+			return response;
+		}
+
+		// Only now is the signature handed out
+		if (journal != null) {
+			journal.append(keys.pk.getCounter(), response.getSignature().get_e(), new ArrayList<>(attributes));
+		}
+		return response;
+	}
+
+	private Keys getKeys(String issuer, int counter) throws InfoException {
+		String name = keyName(issuer, counter);
+		Keys result = keys.get(name);
+		if (result != null) {
+			return result;
+		}
+
+		IssuerIdentifier id = new IssuerIdentifier(issuer);
+		IdemixKeyStore store = IdemixKeyStore.getInstance();
+		result = new Keys(store.getPublicKey(id, counter), store.getSecretKey(id, counter));
+		Keys existing = keys.putIfAbsent(name, result);
+		return existing != null ? existing : result;
+	}
+
+	private static String keyName(String issuer, int counter) {
+		return issuer + "#" + counter;
+	}
+
+	public int getPort() {
+		return serverSocket.getLocalPort();
+	}
+
+	public boolean isRunning() {
+		return running;
+	}
+
+	/**
+	 * Sets the executor on which connections are served, or null (the default)
+	 * to serve each connection on a new daemon thread. Each connection
+	 * occupies a thread of this executor for as long as it is open.
+	 */
+	public void setConnectionExecutor(Executor connectionExecutor) {
+		this.connectionExecutor = connectionExecutor;
+	}
+
+	/**
+	 * Sets the executor on which requests are processed (default: the common
+	 * pool).
+	 */
+	public void setWorkExecutor(Executor workExecutor) {
+		this.workExecutor = workExecutor;
+	}
+
+	public int getMaxPipelinedRequests() {
+		return maxPipelinedRequests;
+	}
+
+	public void setMaxPipelinedRequests(int maxPipelinedRequests) {
+		this.maxPipelinedRequests = maxPipelinedRequests;
+	}
+
+	public int getMaxFrameLength() {
+		return maxFrameLength;
+	}
+
+	public void setMaxFrameLength(int maxFrameLength) {
+		this.maxFrameLength = maxFrameLength;
+	}
+
+	/**
+	 * Sets a cache in which responses are remembered, so that clients that
+	 * retry a request (e.g. after a dropped connection) get the same
+	 * response back; or null (the default) to process every request anew.
+	 */
+	public void setResponseCache(IssuanceResponseCache responseCache) {
+		this.responseCache = responseCache;
+	}
+
+	public IssuanceResponseCache getResponseCache() {
+		return responseCache;
+	}
+
+	/**
+	 * Sets a journal in which every signature sent by this server is
+	 * recorded, or null (the default) to keep no record. A signature is
+	 * recorded once it has completed its session, so signatures for requests
+	 * that lose the race for a session are not.
+	 */
+	public void setJournal(IssuanceJournal journal) {
+		this.journal = journal;
+	}
+
+	public IssuanceJournal getJournal() {
+		return journal;
+	}
+
+	/**
+	 * The store of sessions opened by the application. A request is only
+	 * served if its nonce1 belongs to an open session for the same issuer and
+	 * key, which it completes.
+	 */
+	public IssuanceSessionStore getSessionStore() {
+		return sessionStore;
+	}
+}
@@ -34,6 +34,8 @@ import java.io.IOException;
 import java.math.BigInteger;
 import java.security.MessageDigest;
 import java.security.NoSuchAlgorithmException;
+import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.List;
 import java.security.SecureRandom;
 
@@ -213,15 +215,133 @@ public class Crypto {
 			throw new RuntimeException("Not enough bases to represent exponents");
 		}
 
-		BigInteger r = BigInteger.ONE;
-		BigInteger tmp;
+		return multiExp(bases.subList(0, exps.size()), exps, modulus);
+	}
+
+	/**
+	 * Computes the product bases[1]^{exps[1]}*...*bases[k]^{exps[k]} (mod modulus).
+	 * Exponents may be negative: the powers with a negative exponent are first
+	 * multiplied together and then inverted once, instead of inverting every
+	 * such base separately (which is what {@link BigInteger#modPow} would do).
+	 * Zero exponents are skipped.
+	 *
+	 * Note that the powers themselves are computed with {@link BigInteger#modPow}
+	 * instead of with an interleaved (Straus-style) square-and-multiply loop: the
+	 * JVM's modPow runs on an intrinsified Montgomery multiplication that is about
+	 * three times faster per step than anything we can write in Java, which more
+	 * than cancels out the squarings saved by interleaving.
+	 *
+	 * @param bases		the bases
+	 * @param exps		the exponents, one for each base
+	 * @param modulus	the modulus
+	 * @return			the product of the powers
+	 * @throws RuntimeException if the number of bases and exponents differ
+	 */
+	public static BigInteger multiExp(List<BigInteger> bases,
+			List<BigInteger> exps, BigInteger modulus) {
+		return multiExp(bases, exps, modulus, null);
+	}
+
+	/**
+	 * Computes the product bases[1]^{exps[1]}*...*bases[k]^{exps[k]} (mod modulus)
+	 * as {@link #multiExp(List, List, BigInteger)} does, except that the powers of
+	 * those bases for which the specified tables contain precomputed powers are
+	 * computed all at once using these tables.
+	 *
+	 * @param bases		the bases
+	 * @param exps		the exponents, one for each base
+	 * @param modulus	the modulus
+	 * @param tables	precomputed powers of some of the bases modulo the modulus,
+	 *                  may be null
+	 * @return			the product of the powers
+	 * @throws RuntimeException if the number of bases and exponents differ
+	 */
+	public static BigInteger multiExp(List<BigInteger> bases,
+			List<BigInteger> exps, BigInteger modulus, FixedBaseTables tables) {
+		if (bases.size() != exps.size()) {
+			throw new RuntimeException("Number of bases and exponents differ");
+		}
+		if (tables != null && !tables.getModulus().equals(modulus)) {
+			tables = null;
+		}
+
+		BigInteger positive = BigInteger.ONE;
+		BigInteger negative = BigInteger.ONE;
+		List<BigInteger> fixedPositiveBases = new ArrayList<>();
+		List<BigInteger> fixedPositiveExps = new ArrayList<>();
+		List<BigInteger> fixedNegativeBases = new ArrayList<>();
+		List<BigInteger> fixedNegativeExps = new ArrayList<>();
+
 		for (int i = 0; i < exps.size(); i++) {
-			// tmp = bases_i ^ exps_i (mod modulus)
-			tmp = bases.get(i).modPow(exps.get(i), modulus);
+			BigInteger base = bases.get(i);
+			BigInteger exp = exps.get(i);
+			boolean fixed = tables != null && tables.covers(base, exp);
+			switch (exp.signum()) {
+				case 1:
+					if (fixed) {
+						fixedPositiveBases.add(base);
+						fixedPositiveExps.add(exp);
+					} else {
+						positive = positive.multiply(base.modPow(exp, modulus)).mod(modulus);
+					}
+					break;
+				case -1:
+					if (fixed) {
+						fixedNegativeBases.add(base);
+						fixedNegativeExps.add(exp.negate());
+					} else {
+						negative = negative.multiply(base.modPow(exp.negate(), modulus)).mod(modulus);
+					}
+					break;
+			}
+		}
+
+		if (!fixedPositiveBases.isEmpty()) {
+			positive = positive.multiply(tables.multiExp(fixedPositiveBases, fixedPositiveExps)).mod(modulus);
+		}
+		if (!fixedNegativeBases.isEmpty()) {
+			negative = negative.multiply(tables.multiExp(fixedNegativeBases, fixedNegativeExps)).mod(modulus);
+		}
 
-			// r = r * tmp (mod modulus)
-			r = r.multiply(tmp).mod(modulus);
+		if (negative.equals(BigInteger.ONE)) {
+			return positive;
 		}
-		return r;
+		return positive.multiply(negative.modInverse(modulus)).mod(modulus);
+	}
+
+	/**
+	 * Inverts all of the given values modulo the modulus using a single
+	 * modular inversion (Montgomery's trick): we invert the product of all
+	 * values, after which each separate inverse follows using two
+	 * multiplications.
+	 *
+	 * @param values	the values to invert
+	 * @param modulus	the modulus
+	 * @return			the inverses, in the same order as the values
+	 * @throws ArithmeticException if one of the values is not invertible
+	 */
+	public static List<BigInteger> batchModInverse(List<BigInteger> values, BigInteger modulus) {
+		int k = values.size();
+		if (k == 0) {
+			return new ArrayList<>();
+		}
+
+		// prefix[i] = values[0] * ... * values[i]
+		BigInteger[] prefix = new BigInteger[k];
+		prefix[0] = values.get(0).mod(modulus);
+		for (int i = 1; i < k; i++) {
+			prefix[i] = prefix[i - 1].multiply(values.get(i)).mod(modulus);
+		}
+
+		BigInteger inverse = prefix[k - 1].modInverse(modulus);
+		BigInteger[] inverses = new BigInteger[k];
+		for (int i = k - 1; i > 0; i--) {
+			// inverse = (values[0] * ... * values[i])^{-1}
+			inverses[i] = inverse.multiply(prefix[i - 1]).mod(modulus);
+			inverse = inverse.multiply(values.get(i)).mod(modulus);
+		}
+		inverses[0] = inverse;
+
+		return new ArrayList<>(Arrays.asList(inverses));
 	}
 }
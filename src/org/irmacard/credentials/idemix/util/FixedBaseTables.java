@@ -0,0 +1,215 @@
+/*
+ * Copyright (c) 2015, the IRMA Team
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ *
+ *  Redistributions of source code must retain the above copyright notice, this
+ *   list of conditions and the following disclaimer.
+ *
+ *  Redistributions in binary form must reproduce the above copyright notice,
+ *   this list of conditions and the following disclaimer in the documentation
+ *   and/or other materials provided with the distribution.
+ *
+ *  Neither the name of the IRMA project nor the names of its
+ *   contributors may be used to endorse or promote products derived from
+ *   this software without specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS"
+ * AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+ * IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE
+ * DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT HOLDER OR CONTRIBUTORS BE LIABLE
+ * FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL
+ * DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR
+ * SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER
+ * CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY,
+ * OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE
+ * OF THIS SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+
+package org.irmacard.credentials.idemix.util;
+
+import java.math.BigInteger;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+
+/**
+ * <p>Precomputed powers of a number of fixed bases modulo a fixed (odd) modulus, for fast
+ * exponentiation with these bases. For each base g we store g^{2^{w*j}} for all j such that
+ * w*j is less than the maximum exponent size, where w is the window size. A product of powers
+ * of the bases is then computed using Yao's method: every power g^{2^{w*j}} is put in the
+ * bucket of the j-th w-bit digit of its exponent, after which the product of all buckets to
+ * the power of their digit costs only two multiplications per bucket. No squarings are
+ * needed at all, so that a product of powers costs roughly (total exponent size) / w + 2^{w+1}
+ * multiplications.</p>
+ *
+ * <p>All arithmetic is done in Montgomery representation, which saves us a long division per
+ * multiplication. Instances are immutable and may be shared between threads.</p>
+ */
+public class FixedBaseTables {
+	/** Default window size, in bits */
+	public static final int WINDOW = 6;
+
+	private final BigInteger modulus;
+	private final int maxBits;
+	private final int window;
+
+	// Montgomery parameters: R = 2^k with k the bitlength of the modulus, mask = R - 1,
+	// modulusInverse = -modulus^{-1} mod R
+	private final int k;
+	private final BigInteger mask;
+	private final BigInteger modulusInverse;
+
+	private final HashMap<BigInteger, BigInteger[]> tables = new HashMap<>();
+
+	/**
+	 * Precomputes tables for the given bases.
+	 *
+	 * @param modulus	the modulus, must be odd
+	 * @param bases		the bases to precompute powers of
+	 * @param maxBits	the maximum bitlength of exponents that the tables should support
+	 */
+	public FixedBaseTables(BigInteger modulus, List<BigInteger> bases, int maxBits) {
+		this(modulus, bases, maxBits, WINDOW);
+	}
+
+	/**
+	 * Precomputes tables for the given bases, using the specified window size. Each table
+	 * contains maxBits / window entries; the cost of exponentiating is discussed above.
+	 *
+	 * @param modulus	the modulus, must be odd
+	 * @param bases		the bases to precompute powers of
+	 * @param maxBits	the maximum bitlength of exponents that the tables should support
+	 * @param window	the window size in bits
+	 */
+	public FixedBaseTables(BigInteger modulus, List<BigInteger> bases, int maxBits, int window) {
+		if (!modulus.testBit(0)) {
+			throw new IllegalArgumentException("Modulus must be odd");
+		}
+
+		this.modulus = modulus;
+		this.maxBits = maxBits;
+		this.window = window;
+
+		this.k = modulus.bitLength();
+		BigInteger R = BigInteger.ONE.shiftLeft(k);
+		this.mask = R.subtract(BigInteger.ONE);
+		this.modulusInverse = modulus.negate().modInverse(R);
+
+		int size = (maxBits + window - 1) / window;
+		for (BigInteger base : bases) {
+			BigInteger[] table = new BigInteger[size];
+			table[0] = toMontgomery(base.mod(modulus));
+			for (int j = 1; j < size; j++) {
+				BigInteger power = table[j - 1];
+				for (int i = 0; i < window; i++) {
+					power = multiply(power, power);
+				}
+				table[j] = power;
+			}
+			tables.put(base, table);
+		}
+	}
+
+	public BigInteger getModulus() {
+		return modulus;
+	}
+
+	/**
+	 * Whether or not base^exponent can be computed using these tables; that is, whether the
+	 * base is one of our fixed bases and the absolute value of the exponent has at most the
+	 * maximum number of bits.
+	 */
+	public boolean covers(BigInteger base, BigInteger exponent) {
+		return exponent.abs().bitLength() <= maxBits && tables.containsKey(base);
+	}
+
+	/**
+	 * Computes bases[1]^{exps[1]}*...*bases[k]^{exps[k]} (mod modulus) using the precomputed
+	 * tables.
+	 *
+	 * @param bases	the bases, which must all be covered by these tables
+	 * @param exps	nonnegative exponents, one for each base
+	 * @return		the product of the powers
+	 * @throws IllegalArgumentException if one of the bases or exponents is not covered by these
+	 *         tables or if an exponent is negative
+	 */
+	public BigInteger multiExp(List<BigInteger> bases, List<BigInteger> exps) {
+		int digitMask = (1 << window) - 1;
+		BigInteger[] buckets = new BigInteger[1 << window];
+
+		for (int i = 0; i < bases.size(); i++) {
+			BigInteger exp = exps.get(i);
+			BigInteger[] table = tables.get(bases.get(i));
+			if (table == null || exp.signum() < 0 || exp.bitLength() > maxBits) {
+				throw new IllegalArgumentException("Base or exponent not covered by the tables");
+			}
+
+			int digits = (exp.bitLength() + window - 1) / window;
+			for (int j = 0; j < digits; j++) {
+				int digit = digit(exp, j * window) & digitMask;
+				if (digit != 0) {
+					buckets[digit] = buckets[digit] == null ? table[j] : multiply(buckets[digit], table[j]);
+				}
+			}
+		}
+
+		// result = prod_d buckets[d]^d, computed as the product of the partial products
+		// buckets[max] * ... * buckets[d] for all d
+		BigInteger partial = null;
+		BigInteger result = null;
+		for (int d = digitMask; d > 0; d--) {
+			if (buckets[d] != null) {
+				partial = partial == null ? buckets[d] : multiply(partial, buckets[d]);
+			}
+			if (partial != null) {
+				result = result == null ? partial : multiply(result, partial);
+			}
+		}
+
+		if (result == null) {
+			return BigInteger.ONE;
+		}
+		return reduce(result);
+	}
+
+	/**
+	 * Computes base^exponent (mod modulus) using the precomputed tables.
+	 * @see #multiExp(List, List)
+	 */
+	public BigInteger modPow(BigInteger base, BigInteger exponent) {
+		return multiExp(Collections.singletonList(base), Collections.singletonList(exponent));
+	}
+
+	/**
+	 * The window-bit digit of the specified exponent starting at the specified bit.
+	 */
+	private int digit(BigInteger exp, int start) {
+		int digit = 0;
+		for (int i = window - 1; i >= 0; i--) {
+			digit <<= 1;
+			if (exp.testBit(start + i))
+				digit |= 1;
+		}
+		return digit;
+	}
+
+	private BigInteger toMontgomery(BigInteger x) {
+		return x.shiftLeft(k).mod(modulus);
+	}
+
+	private BigInteger multiply(BigInteger a, BigInteger b) {
+		return reduce(a.multiply(b));
+	}
+
+	/**
+	 * Montgomery reduction: returns t / R (mod modulus), for 0 <= t < modulus * R.
+	 */
+	private BigInteger reduce(BigInteger t) {
+		BigInteger m = t.and(mask).multiply(modulusInverse).and(mask);
+		BigInteger u = t.add(m.multiply(modulus)).shiftRight(k);
+		return u.compareTo(modulus) >= 0 ? u.subtract(modulus) : u;
+	}
+}
@@ -0,0 +1,467 @@
+/*
+ * Copyright (c) 2015, the IRMA Team
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ *
+ *  Redistributions of source code must retain the above copyright notice, this
+ *   list of conditions and the following disclaimer.
+ *
+ *  Redistributions in binary form must reproduce the above copyright notice,
+ *   this list of conditions and the following disclaimer in the documentation
+ *   and/or other materials provided with the distribution.
+ *
+ *  Neither the name of the IRMA project nor the names of its
+ *   contributors may be used to endorse or promote products derived from
+ *   this software without specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS"
+ * AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+ * IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE
+ * DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT HOLDER OR CONTRIBUTORS BE LIABLE
+ * FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL
+ * DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR
+ * SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER
+ * CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY,
+ * OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE
+ * OF THIS SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+
+package org.irmacard.credentials.idemix.wallet;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.math.BigInteger;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Deque;
+import java.util.List;
+
+import org.irmacard.credentials.idemix.CLSignature;
+import org.irmacard.credentials.idemix.IdemixCredential;
+import org.irmacard.credentials.idemix.IdemixPublicKey;
+import org.irmacard.credentials.idemix.IdemixSystemParameters;
+import org.irmacard.credentials.idemix.info.IdemixKeyStore;
+import org.irmacard.credentials.info.InfoException;
+import org.irmacard.credentials.info.IssuerIdentifier;
+
+/**
+ * A persistent store of credentials in fixed-width binary records, kept in
+ * memory-mapped segment files in a directory. A record holds the issuer name,
+ * key counter, signature (A, e, v) and attributes of a credential, with field
+ * widths derived from the {@link IdemixSystemParameters}; records are
+ * addressed by a numeric id, from which the segment and offset follow
+ * directly. Opening a store maps its segments but reads nothing else, and a
+ * credential is only turned into an {@link IdemixCredential} when
+ * {@link #get(long)} is called, e.g. right before a proof is built.
+ * <p>
+ * Deleted records are reused by later insertions. The first insertion after
+ * opening a store scans the status byte of each record to find them.
+ * <p>
+ * All methods are thread-safe.
+ */
+public class CredentialStore implements Closeable {
+	/** Default number of records per segment file */
+	public static final int DEFAULT_RECORDS_PER_SEGMENT = 65536;
+	/** Default maximum number of attributes per credential, including the secret key */
+	public static final int DEFAULT_MAX_ATTRIBUTES = 12;
+	/** Maximum length of an issuer name, in bytes */
+	public static final int ISSUER_WIDTH = 64;
+
+	private static final int MAGIC = 0x49524353; // "IRCS"
+	private static final int HEADER_SIZE = 32;
+	private static final String PREFIX = "credentials-";
+	private static final String SUFFIX = ".dat";
+
+	private static final byte EMPTY = 0;
+	private static final byte LIVE = 1;
+
+	/**
+	 * Looks up the public key of an issuer when a credential is materialised.
+	 */
+	public interface PublicKeyResolver {
+		IdemixPublicKey getPublicKey(String issuer, int counter) throws InfoException;
+	}
+
+	private final Path directory;
+	private final int recordsPerSegment;
+	private final int maxAttributes;
+	private final PublicKeyResolver resolver;
+
+	// Field widths and offsets within a record:
+	// status (1) | number of attributes (1) | key counter (4) | issuer length (1) | issuer |
+	// A (unsigned) | e (unsigned) | v (signed) | attributes (unsigned)
+	private final int widthA;
+	private final int widthE;
+	private final int widthV;
+	private final int widthM;
+	private final int offsetA;
+	private final int offsetE;
+	private final int offsetV;
+	private final int offsetM;
+	private final int recordSize;
+
+	private final List<FileChannel> channels = new ArrayList<>();
+	private final List<MappedByteBuffer> segments = new ArrayList<>();
+	private Deque<Long> free;
+	private long size = -1;
+
+	/**
+	 * Opens a store with default settings, looking up public keys in the
+	 * {@link IdemixKeyStore}.
+	 */
+	public CredentialStore(Path directory) throws IOException {
+		this(directory, new IdemixSystemParameters(), DEFAULT_MAX_ATTRIBUTES, DEFAULT_RECORDS_PER_SEGMENT,
+				(issuer, counter) -> IdemixKeyStore.getInstance().getPublicKey(new IssuerIdentifier(issuer), counter));
+	}
+
+	/**
+	 * Opens the store in the given directory, creating it if necessary.
+	 *
+	 * @param directory
+	 *            the directory holding the segment files
+	 * @param params
+	 *            the system parameters from which the field widths follow
+	 * @param maxAttributes
+	 *            the maximum number of attributes per credential, including
+	 *            the secret key
+	 * @param recordsPerSegment
+	 *            the number of records per segment file
+	 * @param resolver
+	 *            looks up the public keys of issuers
+	 * @throws IOException if the existing segments have a different layout
+	 */
+	public CredentialStore(Path directory, IdemixSystemParameters params, int maxAttributes,
+			int recordsPerSegment, PublicKeyResolver resolver) throws IOException {
+		if (maxAttributes < 1 || maxAttributes > 255 || recordsPerSegment < 1) {
+			throw new IllegalArgumentException("Invalid number of attributes or records");
+		}
+
+		this.directory = directory;
+		this.recordsPerSegment = recordsPerSegment;
+		this.maxAttributes = maxAttributes;
+		this.resolver = resolver;
+
+		this.widthA = params.size_n;
+		this.widthE = params.size_e;
+		this.widthV = params.size_v + 1;
+		this.widthM = params.size_m;
+		this.offsetA = 7 + ISSUER_WIDTH;
+		this.offsetE = offsetA + widthA;
+		this.offsetV = offsetE + widthE;
+		this.offsetM = offsetV + widthV;
+		this.recordSize = offsetM + maxAttributes * widthM;
+
+		if ((long) recordSize * recordsPerSegment + HEADER_SIZE > Integer.MAX_VALUE) {
+			throw new IllegalArgumentException("Segments too large");
+		}
+
+		Files.createDirectories(directory);
+		for (int i = 0; Files.exists(segmentPath(i)); i++) {
+			openSegment(i, false);
+		}
+	}
+
+	/**
+	 * Stores a credential.
+	 *
+	 * @param credential
+	 *            the credential, including its secret key
+	 * @param issuer
+	 *            the name of its issuer, used to look up the public key when
+	 *            it is materialised
+	 * @return the id of the record
+	 * @throws IllegalArgumentException if the credential does not fit in a record
+	 */
+	public synchronized long put(IdemixCredential credential, String issuer) throws IOException {
+		byte[] name = issuer.getBytes(StandardCharsets.UTF_8);
+		int count = credential.getNrAttributes();
+		if (name.length > ISSUER_WIDTH || count > maxAttributes) {
+			throw new IllegalArgumentException("Issuer name or number of attributes too large");
+		}
+
+		byte[] record = new byte[recordSize];
+		ByteBuffer buffer = ByteBuffer.wrap(record);
+		buffer.put(LIVE);
+		buffer.put((byte) count);
+		buffer.putInt(credential.getPublicKey().getCounter());
+		buffer.put((byte) name.length);
+		buffer.put(name);
+
+		CLSignature signature = credential.getSignature();
+		putUnsigned(record, offsetA, widthA, signature.getA());
+		putUnsigned(record, offsetE, widthE, signature.get_e());
+		putSigned(record, offsetV, widthV, signature.get_v());
+		for (int i = 0; i < count; i++) {
+			putUnsigned(record, offsetM + i * widthM, widthM, credential.getAttribute(i));
+		}
+
+		long id = allocate();
+		ByteBuffer segment = segment(id);
+		int offset = offset(id);
+		// Write the status byte last, so that a torn write leaves an empty record
+		for (int i = 1; i < recordSize; i++) {
+			segment.put(offset + i, record[i]);
+		}
+		segment.put(offset, LIVE);
+		size++;
+
+		return id;
+	}
+
+	/**
+	 * Materialises the credential with the given id.
+	 *
+	 * @return the credential, or null if there is no such record
+	 * @throws InfoException if the public key of its issuer cannot be found
+	 */
+	public IdemixCredential get(long id) throws InfoException {
+		byte[] record = read(id);
+		if (record == null) {
+			return null;
+		}
+
+		ByteBuffer buffer = ByteBuffer.wrap(record);
+		buffer.get();
+		int count = buffer.get() & 0xff;
+		int counter = buffer.getInt();
+		String issuer = new String(record, 7, buffer.get() & 0xff, StandardCharsets.UTF_8);
+
+		CLSignature signature = new CLSignature(getUnsigned(record, offsetA, widthA),
+				getUnsigned(record, offsetE, widthE), new BigInteger(slice(record, offsetV, widthV)));
+		List<BigInteger> attributes = new ArrayList<>(count);
+		for (int i = 0; i < count; i++) {
+			attributes.add(getUnsigned(record, offsetM + i * widthM, widthM));
+		}
+
+		return new IdemixCredential(resolver.getPublicKey(issuer, counter), attributes, signature);
+	}
+
+	/**
+	 * The name of the issuer of the credential with the given id, without
+	 * materialising the credential; or null if there is no such record.
+	 */
+	public synchronized String getIssuer(long id) {
+		if (!contains(id)) {
+			return null;
+		}
+		ByteBuffer segment = segment(id);
+		int offset = offset(id);
+		byte[] name = new byte[segment.get(offset + 6) & 0xff];
+		for (int i = 0; i < name.length; i++) {
+			name[i] = segment.get(offset + 7 + i);
+		}
+		return new String(name, StandardCharsets.UTF_8);
+	}
+
+	/**
+	 * The key counter of the credential with the given id, without
+	 * materialising the credential; or -1 if there is no such record.
+	 */
+	public synchronized int getKeyCounter(long id) {
+		return contains(id) ? segment(id).getInt(offset(id) + 2) : -1;
+	}
+
+	/**
+	 * Deletes the credential with the given id, overwriting its record.
+	 *
+	 * @return whether there was such a record
+	 */
+	public synchronized boolean delete(long id) {
+		if (!contains(id)) {
+			return false;
+		}
+
+		ByteBuffer segment = segment(id);
+		int offset = offset(id);
+		segment.put(offset, EMPTY);
+		for (int i = 1; i < recordSize; i++) {
+			segment.put(offset + i, (byte) 0);
+		}
+		if (free != null) {
+			free.push(id);
+			size--;
+		}
+		return true;
+	}
+
+	public synchronized boolean contains(long id) {
+		return id >= 0 && id < capacity() && segment(id).get(offset(id)) == LIVE;
+	}
+
+	/**
+	 * The ids of all stored credentials, in increasing order. This scans the
+	 * status byte of every record.
+	 */
+	public synchronized List<Long> ids() {
+		List<Long> ids = new ArrayList<>();
+		for (long id = 0; id < capacity(); id++) {
+			if (segment(id).get(offset(id)) == LIVE) {
+				ids.add(id);
+			}
+		}
+		return ids;
+	}
+
+	/**
+	 * The number of stored credentials.
+	 */
+	public synchronized long size() {
+		scan();
+		return size;
+	}
+
+	/**
+	 * Forces all changes to disk.
+	 */
+	public synchronized void flush() {
+		for (MappedByteBuffer segment : segments) {
+			segment.force();
+		}
+	}
+
+	@Override
+	public synchronized void close() throws IOException {
+		flush();
+		for (FileChannel channel : channels) {
+			channel.close();
+		}
+		channels.clear();
+		segments.clear();
+	}
+
+	private synchronized byte[] read(long id) {
+		if (!contains(id)) {
+			return null;
+		}
+		ByteBuffer segment = segment(id).duplicate();
+		segment.position(offset(id));
+		byte[] record = new byte[recordSize];
+		segment.get(record);
+		return record;
+	}
+
+	/**
+	 * Returns the id of a free record, adding a segment if there is none.
+	 */
+	private long allocate() throws IOException {
+		scan();
+		if (free.isEmpty()) {
+			long first = capacity();
+			openSegment(segments.size(), true);
+			for (long id = capacity() - 1; id >= first; id--) {
+				free.push(id);
+			}
+		}
+		return free.pop();
+	}
+
+	/**
+	 * Finds the free records, if we have not done so yet.
+	 */
+	private void scan() {
+		if (free != null) {
+			return;
+		}
+
+		free = new ArrayDeque<>();
+		size = 0;
+		for (long id = capacity() - 1; id >= 0; id--) {
+			if (segment(id).get(offset(id)) == LIVE) {
+				size++;
+			} else {
+				free.push(id);
+			}
+		}
+	}
+
+	private void openSegment(int index, boolean create) throws IOException {
+		Path path = segmentPath(index);
+		FileChannel channel = create
+				? FileChannel.open(path, StandardOpenOption.CREATE_NEW, StandardOpenOption.READ, StandardOpenOption.WRITE)
+				: FileChannel.open(path, StandardOpenOption.READ, StandardOpenOption.WRITE);
+		try {
+			MappedByteBuffer segment = channel.map(FileChannel.MapMode.READ_WRITE, 0,
+					HEADER_SIZE + (long) recordSize * recordsPerSegment);
+			if (create) {
+				segment.putInt(0, MAGIC);
+				segment.putInt(4, recordSize);
+				segment.putInt(8, recordsPerSegment);
+				segment.putInt(12, widthA);
+				segment.putInt(16, widthE);
+				segment.putInt(20, widthV);
+				segment.putInt(24, widthM);
+				segment.putInt(28, maxAttributes);
+			} else if (segment.getInt(0) != MAGIC || segment.getInt(4) != recordSize
+					|| segment.getInt(8) != recordsPerSegment || segment.getInt(12) != widthA
+					|| segment.getInt(16) != widthE || segment.getInt(20) != widthV
+					|| segment.getInt(24) != widthM || segment.getInt(28) != maxAttributes) {
+				throw new IOException("Segment " + path + " has a different layout");
+			}
+			channels.add(channel);
+			segments.add(segment);
+		} catch (IOException|RuntimeException e) {
+			channel.close();
+			throw e;
+		}
+	}
+
+	private Path segmentPath(int index) {
+		return directory.resolve(String.format("%s%08d%s", PREFIX, index, SUFFIX));
+	}
+
+	private long capacity() {
+		return (long) segments.size() * recordsPerSegment;
+	}
+
+	private ByteBuffer segment(long id) {
+		return segments.get((int) (id / recordsPerSegment));
+	}
+
+	private int offset(long id) {
+		return HEADER_SIZE + (int) (id % recordsPerSegment) * recordSize;
+	}
+
+	private static void putUnsigned(byte[] record, int offset, int width, BigInteger value) {
+		if (value.signum() < 0) {
+			throw new IllegalArgumentException("Value must be nonnegative");
+		}
+		byte[] bytes = value.toByteArray();
+		int start = bytes[0] == 0 ? 1 : 0;
+		int length = bytes.length - start;
+		if (length > width) {
+			throw new IllegalArgumentException("Value does not fit in " + width + " bytes");
+		}
+		System.arraycopy(bytes, start, record, offset + width - length, length);
+	}
+
+	private static void putSigned(byte[] record, int offset, int width, BigInteger value) {
+		byte[] bytes = value.toByteArray();
+		if (bytes.length > width) {
+			throw new IllegalArgumentException("Value does not fit in " + width + " bytes");
+		}
+		byte sign = value.signum() < 0 ? (byte) 0xff : 0;
+		for (int i = 0; i < width - bytes.length; i++) {
+			record[offset + i] = sign;
+		}
+		System.arraycopy(bytes, 0, record, offset + width - bytes.length, bytes.length);
+	}
+
+	private static BigInteger getUnsigned(byte[] record, int offset, int width) {
+		return new BigInteger(1, slice(record, offset, width));
+	}
+
+	private static byte[] slice(byte[] record, int offset, int width) {
+		byte[] bytes = new byte[width];
+		System.arraycopy(record, offset, bytes, 0, width);
+		return bytes;
+	}
+}
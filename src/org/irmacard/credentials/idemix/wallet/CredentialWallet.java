@@ -0,0 +1,334 @@
+/*
+ * Copyright (c) 2015, the IRMA Team
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ *
+ *  Redistributions of source code must retain the above copyright notice, this
+ *   list of conditions and the following disclaimer.
+ *
+ *  Redistributions in binary form must reproduce the above copyright notice,
+ *   this list of conditions and the following disclaimer in the documentation
+ *   and/or other materials provided with the distribution.
+ *
+ *  Neither the name of the IRMA project nor the names of its
+ *   contributors may be used to endorse or promote products derived from
+ *   this software without specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS"
+ * AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+ * IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE
+ * DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT HOLDER OR CONTRIBUTORS BE LIABLE
+ * FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL
+ * DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR
+ * SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER
+ * CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY,
+ * OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE
+ * OF THIS SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+
+package org.irmacard.credentials.idemix.wallet;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.Date;
+import java.util.HashMap;
+import java.util.IdentityHashMap;
+import java.util.Iterator;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.NavigableSet;
+import java.util.Set;
+import java.util.TreeSet;
+
+import org.irmacard.credentials.Attributes;
+import org.irmacard.credentials.idemix.IdemixCredential;
+import org.irmacard.credentials.idemix.proofs.ProofListBuilder;
+import org.irmacard.credentials.info.CredentialIdentifier;
+import org.irmacard.credentials.info.IssuerIdentifier;
+
+/**
+ * A collection of credentials of a holder, indexed by credential type, by
+ * issuer and key counter, and by expiry date.
+ * <p>
+ * For each type, the credentials are kept in order of preference: those
+ * under the most recent key of their issuer (the highest key counter in the
+ * wallet) first, then those whose key has the smallest modulus, which are
+ * the cheapest to disclose from, and then those that expire last. A
+ * disclosure request, mapping credential types to the attributes to
+ * disclose from them, is answered by {@link #select(Map, Date)} by taking
+ * the first valid credential of each requested type; the wallet does not
+ * map attributes to credential types itself. Apart from skipping expired
+ * credentials, the cost of a query is proportional to the number of
+ * requested types, not to the number of credentials in the wallet.
+ * {@link #removeExpired(Date)} only touches the credentials it removes.
+ * <p>
+ * All methods are thread-safe.
+ */
+public class CredentialWallet {
+	/**
+	 * Highest key counter first, then smallest modulus, then latest expiry;
+	 * among equals, most recently added first
+	 */
+	private static final Comparator<WalletEntry> BY_PREFERENCE = (a, b) -> {
+		int result = Integer.compare(b.getKeyCounter(), a.getKeyCounter());
+		if (result == 0)
+			result = Integer.compare(a.getModulusBits(), b.getModulusBits());
+		if (result == 0)
+			result = Long.compare(b.getExpiry(), a.getExpiry());
+		return result != 0 ? result : Long.compare(b.sequence, a.sequence);
+	};
+
+	/** Earliest expiry first */
+	private static final Comparator<WalletEntry> BY_EXPIRY_ASCENDING = (a, b) -> {
+		int result = Long.compare(a.getExpiry(), b.getExpiry());
+		return result != 0 ? result : Long.compare(a.sequence, b.sequence);
+	};
+
+	private final Map<IdemixCredential, WalletEntry> entries = new IdentityHashMap<>();
+	private final Map<CredentialIdentifier, NavigableSet<WalletEntry>> byType = new HashMap<>();
+	private final Map<IssuerIdentifier, Map<Integer, Set<WalletEntry>>> byIssuer = new HashMap<>();
+	private final NavigableSet<WalletEntry> byExpiry = new TreeSet<>(BY_EXPIRY_ASCENDING);
+	private long sequence = 0;
+
+	/**
+	 * Adds a credential, indexing it by the type, key counter and expiry date
+	 * in its metadata attribute. This requires the
+	 * {@link org.irmacard.credentials.info.DescriptionStore} to be initialized.
+	 *
+	 * @return the entry of the credential
+	 */
+	public WalletEntry add(IdemixCredential credential) {
+		Attributes attributes = credential.getAllAttributes();
+		return add(credential, attributes.getCredentialIdentifier(), attributes.getKeyCounter(),
+				attributes.getExpiryDate());
+	}
+
+	/**
+	 * Adds a credential with the given properties.
+	 *
+	 * @param credential
+	 *            the credential
+	 * @param type
+	 *            its type
+	 * @param keyCounter
+	 *            the counter of the key of its issuer
+	 * @param expiry
+	 *            its expiry date, or null if it does not expire
+	 * @return the entry of the credential
+	 */
+	public synchronized WalletEntry add(IdemixCredential credential, CredentialIdentifier type,
+			int keyCounter, Date expiry) {
+		if (type == null) {
+			throw new IllegalArgumentException("Credential type unknown");
+		}
+		if (entries.containsKey(credential)) {
+			throw new IllegalArgumentException("Credential already in wallet");
+		}
+
+		WalletEntry entry = new WalletEntry(credential, type, type.getIssuerIdentifier(), keyCounter,
+				expiry == null ? Long.MAX_VALUE : expiry.getTime(), sequence++);
+
+		entries.put(credential, entry);
+		NavigableSet<WalletEntry> ofType = byType.get(type);
+		if (ofType == null) {
+			ofType = new TreeSet<>(BY_PREFERENCE);
+			byType.put(type, ofType);
+		}
+		ofType.add(entry);
+		Map<Integer, Set<WalletEntry>> ofIssuer = byIssuer.get(entry.getIssuer());
+		if (ofIssuer == null) {
+			ofIssuer = new HashMap<>();
+			byIssuer.put(entry.getIssuer(), ofIssuer);
+		}
+		Set<WalletEntry> ofKey = ofIssuer.get(keyCounter);
+		if (ofKey == null) {
+			ofKey = new LinkedHashSet<>();
+			ofIssuer.put(keyCounter, ofKey);
+		}
+		ofKey.add(entry);
+		byExpiry.add(entry);
+
+		return entry;
+	}
+
+	/**
+	 * Removes a credential.
+	 *
+	 * @return whether the credential was in this wallet
+	 */
+	public synchronized boolean remove(IdemixCredential credential) {
+		WalletEntry entry = entries.remove(credential);
+		if (entry == null) {
+			return false;
+		}
+
+		NavigableSet<WalletEntry> ofType = byType.get(entry.getType());
+		ofType.remove(entry);
+		if (ofType.isEmpty()) {
+			byType.remove(entry.getType());
+		}
+		Map<Integer, Set<WalletEntry>> ofIssuer = byIssuer.get(entry.getIssuer());
+		Set<WalletEntry> ofKey = ofIssuer.get(entry.getKeyCounter());
+		ofKey.remove(entry);
+		if (ofKey.isEmpty()) {
+			ofIssuer.remove(entry.getKeyCounter());
+			if (ofIssuer.isEmpty()) {
+				byIssuer.remove(entry.getIssuer());
+			}
+		}
+		byExpiry.remove(entry);
+
+		return true;
+	}
+
+	/**
+	 * Removes all credentials that are no longer valid on the given date.
+	 *
+	 * @return the removed entries
+	 */
+	public synchronized List<WalletEntry> removeExpired(Date now) {
+		List<WalletEntry> expired = new ArrayList<>();
+		Iterator<WalletEntry> iterator = byExpiry.iterator();
+		while (iterator.hasNext()) {
+			WalletEntry entry = iterator.next();
+			if (entry.isValidOn(now)) {
+				break;
+			}
+			expired.add(entry);
+		}
+		for (WalletEntry entry : expired) {
+			remove(entry.getCredential());
+		}
+		return expired;
+	}
+
+	/**
+	 * Selects a credential for each requested type, such that all requested
+	 * attributes of a type are disclosed in a single proof. Of the credentials
+	 * of a type, the most preferred valid one is chosen (see
+	 * {@link #getPreferred(CredentialIdentifier, Date)}), so that credentials
+	 * under a superseded key are only used if there is no other.
+	 *
+	 * @param requested
+	 *            the indices of the attributes to disclose, per credential
+	 *            type
+	 * @param now
+	 *            the date on which the credentials must be valid
+	 * @return the disclosures, in the iteration order of the request; or null
+	 *         if there is no valid credential of some requested type
+	 * @throws IllegalArgumentException if a requested attribute does not exist
+	 */
+	public synchronized List<Disclosure> select(Map<CredentialIdentifier, ? extends Collection<Integer>> requested,
+			Date now) {
+		List<Disclosure> disclosures = new ArrayList<>(requested.size());
+		for (Map.Entry<CredentialIdentifier, ? extends Collection<Integer>> request : requested.entrySet()) {
+			WalletEntry entry = getPreferred(request.getKey(), now);
+			if (entry == null) {
+				return null;
+			}
+
+			List<Integer> disclosed = new ArrayList<>(new TreeSet<>(request.getValue()));
+			for (Integer i : disclosed) {
+				if (i < 1 || i >= entry.getCredential().getNrAttributes()) {
+					throw new IllegalArgumentException("Attribute " + i + " does not exist in "
+							+ request.getKey());
+				}
+			}
+			disclosures.add(new Disclosure(entry.getCredential(), disclosed));
+		}
+		return disclosures;
+	}
+
+	/**
+	 * Adds the given disclosures to the builder.
+	 */
+	public static ProofListBuilder addTo(ProofListBuilder builder, List<Disclosure> disclosures) {
+		for (Disclosure disclosure : disclosures) {
+			builder.addProofD(disclosure.getCredential(), disclosure.getDisclosedAttributes());
+		}
+		return builder;
+	}
+
+	/**
+	 * The valid credential of the given type that is preferred for
+	 * disclosure: the one under the most recent key, with the smallest
+	 * modulus, that expires last. Returns null if there is none.
+	 */
+	public synchronized WalletEntry getPreferred(CredentialIdentifier type, Date now) {
+		NavigableSet<WalletEntry> ofType = byType.get(type);
+		if (ofType == null) {
+			return null;
+		}
+		for (WalletEntry entry : ofType) {
+			if (entry.isValidOn(now)) {
+				return entry;
+			}
+		}
+		return null;
+	}
+
+	/**
+	 * The valid credential of the given type that expires last, regardless of
+	 * its key, or null if there is none.
+	 */
+	public synchronized WalletEntry getLatest(CredentialIdentifier type, Date now) {
+		NavigableSet<WalletEntry> ofType = byType.get(type);
+		WalletEntry latest = null;
+		if (ofType != null) {
+			for (WalletEntry entry : ofType) {
+				if (entry.isValidOn(now) && (latest == null || BY_EXPIRY_ASCENDING.compare(entry, latest) > 0)) {
+					latest = entry;
+				}
+			}
+		}
+		return latest;
+	}
+
+	/**
+	 * The credentials of the given type, in order of preference.
+	 */
+	public synchronized List<WalletEntry> getEntries(CredentialIdentifier type) {
+		NavigableSet<WalletEntry> ofType = byType.get(type);
+		return ofType == null ? Collections.<WalletEntry>emptyList() : new ArrayList<>(ofType);
+	}
+
+	/**
+	 * The credentials issued by the given issuer, with any key.
+	 */
+	public synchronized List<WalletEntry> getEntries(IssuerIdentifier issuer) {
+		Map<Integer, Set<WalletEntry>> ofIssuer = byIssuer.get(issuer);
+		List<WalletEntry> result = new ArrayList<>();
+		if (ofIssuer != null) {
+			for (Set<WalletEntry> ofKey : ofIssuer.values()) {
+				result.addAll(ofKey);
+			}
+		}
+		return result;
+	}
+
+	/**
+	 * The credentials issued by the given issuer with the key with the given
+	 * counter, e.g. to find the credentials affected by a key rollover.
+	 */
+	public synchronized List<WalletEntry> getEntries(IssuerIdentifier issuer, int keyCounter) {
+		Map<Integer, Set<WalletEntry>> ofIssuer = byIssuer.get(issuer);
+		Set<WalletEntry> ofKey = ofIssuer == null ? null : ofIssuer.get(keyCounter);
+		return ofKey == null ? Collections.<WalletEntry>emptyList() : new ArrayList<>(ofKey);
+	}
+
+	/**
+	 * The entry of the given credential, or null if it is not in this wallet.
+	 */
+	public synchronized WalletEntry getEntry(IdemixCredential credential) {
+		return entries.get(credential);
+	}
+
+	public synchronized int size() {
+		return entries.size();
+	}
+}
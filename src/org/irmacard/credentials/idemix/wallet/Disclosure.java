@@ -0,0 +1,62 @@
+/*
+ * Copyright (c) 2015, the IRMA Team
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ *
+ *  Redistributions of source code must retain the above copyright notice, this
+ *   list of conditions and the following disclaimer.
+ *
+ *  Redistributions in binary form must reproduce the above copyright notice,
+ *   this list of conditions and the following disclaimer in the documentation
+ *   and/or other materials provided with the distribution.
+ *
+ *  Neither the name of the IRMA project nor the names of its
+ *   contributors may be used to endorse or promote products derived from
+ *   this software without specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS"
+ * AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+ * IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE
+ * DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT HOLDER OR CONTRIBUTORS BE LIABLE
+ * FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL
+ * DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR
+ * SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER
+ * CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY,
+ * OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE
+ * OF THIS SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+
+package org.irmacard.credentials.idemix.wallet;
+
+import java.util.Collections;
+import java.util.List;
+
+import org.irmacard.credentials.idemix.IdemixCredential;
+
+/**
+ * A credential selected by {@link CredentialWallet#select(java.util.Map, java.util.Date)},
+ * along with the attributes to disclose from it, as arguments for
+ * {@link org.irmacard.credentials.idemix.proofs.ProofListBuilder#addProofD(IdemixCredential, List)}.
+ */
+public class Disclosure {
+	private final IdemixCredential credential;
+	private final List<Integer> disclosed;
+
+	public Disclosure(IdemixCredential credential, List<Integer> disclosed) {
+		this.credential = credential;
+		this.disclosed = Collections.unmodifiableList(disclosed);
+	}
+
+	public IdemixCredential getCredential() {
+		return credential;
+	}
+
+	/**
+	 * The indices of the attributes to disclose, in increasing order.
+	 */
+	public List<Integer> getDisclosedAttributes() {
+		return disclosed;
+	}
+}
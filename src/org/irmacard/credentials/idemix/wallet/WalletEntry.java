@@ -0,0 +1,101 @@
+/*
+ * Copyright (c) 2015, the IRMA Team
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ *
+ *  Redistributions of source code must retain the above copyright notice, this
+ *   list of conditions and the following disclaimer.
+ *
+ *  Redistributions in binary form must reproduce the above copyright notice,
+ *   this list of conditions and the following disclaimer in the documentation
+ *   and/or other materials provided with the distribution.
+ *
+ *  Neither the name of the IRMA project nor the names of its
+ *   contributors may be used to endorse or promote products derived from
+ *   this software without specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS"
+ * AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+ * IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE
+ * DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT HOLDER OR CONTRIBUTORS BE LIABLE
+ * FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL
+ * DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR
+ * SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER
+ * CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY,
+ * OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE
+ * OF THIS SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+
+package org.irmacard.credentials.idemix.wallet;
+
+import java.util.Date;
+
+import org.irmacard.credentials.idemix.IdemixCredential;
+import org.irmacard.credentials.info.CredentialIdentifier;
+import org.irmacard.credentials.info.IssuerIdentifier;
+
+/**
+ * A credential in a {@link CredentialWallet}, along with the properties by
+ * which it is indexed.
+ */
+public class WalletEntry {
+	private final IdemixCredential credential;
+	private final CredentialIdentifier type;
+	private final IssuerIdentifier issuer;
+	private final int keyCounter;
+	private final long expiry;
+	private final int modulusBits;
+	final long sequence;
+
+	WalletEntry(IdemixCredential credential, CredentialIdentifier type, IssuerIdentifier issuer,
+			int keyCounter, long expiry, long sequence) {
+		this.credential = credential;
+		this.type = type;
+		this.issuer = issuer;
+		this.keyCounter = keyCounter;
+		this.expiry = expiry;
+		this.modulusBits = credential.getPublicKey().getModulus().bitLength();
+		this.sequence = sequence;
+	}
+
+	public IdemixCredential getCredential() {
+		return credential;
+	}
+
+	public CredentialIdentifier getType() {
+		return type;
+	}
+
+	public IssuerIdentifier getIssuer() {
+		return issuer;
+	}
+
+	public int getKeyCounter() {
+		return keyCounter;
+	}
+
+	/**
+	 * The size of the modulus of the issuer key, which determines the cost of
+	 * disclosing from the credential.
+	 */
+	public int getModulusBits() {
+		return modulusBits;
+	}
+
+	/**
+	 * The expiry date, or null if the credential does not expire.
+	 */
+	public Date getExpiryDate() {
+		return expiry == Long.MAX_VALUE ? null : new Date(expiry);
+	}
+
+	long getExpiry() {
+		return expiry;
+	}
+
+	public boolean isValidOn(Date date) {
+		return date.getTime() < expiry;
+	}
+}
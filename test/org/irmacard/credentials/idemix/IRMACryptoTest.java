@@ -24,20 +24,40 @@ import org.irmacard.credentials.Attributes;
 import org.irmacard.credentials.CredentialsException;
 import org.irmacard.credentials.idemix.info.IdemixKeyStore;
 import org.irmacard.credentials.idemix.info.IdemixKeyStoreDeserializer;
+import org.irmacard.credentials.idemix.journal.IssuanceJournal;
+import org.irmacard.credentials.idemix.journal.JournalEntry;
 import org.irmacard.credentials.idemix.messages.IssueCommitmentMessage;
+import org.irmacard.credentials.idemix.messages.IssueSignatureBundleMessage;
 import org.irmacard.credentials.idemix.messages.IssueSignatureMessage;
 import org.irmacard.credentials.idemix.proofs.*;
+import org.irmacard.credentials.idemix.server.IssuanceClient;
+import org.irmacard.credentials.idemix.server.IssuanceCodec;
+import org.irmacard.credentials.idemix.server.IssuanceRequest;
+import org.irmacard.credentials.idemix.server.IssuanceServer;
 import org.irmacard.credentials.idemix.util.Crypto;
+import org.irmacard.credentials.idemix.util.FixedBaseTables;
+import org.irmacard.credentials.idemix.wallet.CredentialStore;
+import org.irmacard.credentials.idemix.wallet.CredentialWallet;
+import org.irmacard.credentials.idemix.wallet.Disclosure;
 import org.irmacard.credentials.info.CredentialIdentifier;
 import org.irmacard.credentials.info.DescriptionStore;
 import org.irmacard.credentials.info.DescriptionStoreDeserializer;
 import org.irmacard.credentials.info.InfoException;
+import org.irmacard.credentials.info.IssuerIdentifier;
 import org.junit.Test;
 
 import java.io.File;
 import java.math.BigInteger;
 import java.net.URI;
+import java.nio.file.Files;
+import java.nio.file.Path;
 import java.util.*;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.TimeUnit;
 
 import static org.junit.Assert.*;
 
@@ -105,6 +125,202 @@ public class IRMACryptoTest {
 		assertTrue("Signature is not valid", sig_randomized.verify(pk, ms));
 	}
 
+	@Test
+	public void testSecretKeyCRT() {
+		Random rnd = new Random();
+		BigInteger x = Crypto.randomElementMultiplicativeGroup(n).mod(n);
+		BigInteger exp = new BigInteger(pk.getSystemParameters().l_v, rnd);
+		assertEquals(x.modPow(exp, n), sk.modPow(x, exp));
+		assertEquals(x.modPow(exp.negate(), n), sk.modPow(x, exp.negate()));
+
+		BigInteger e = Crypto.probablyPrimeInBitRange(pk.getSystemParameters().l_e - 1,
+				pk.getSystemParameters().l_e_prime - 1);
+		assertEquals(x, sk.modRoot(x, e).modPow(e, n));
+		BigInteger[] d = sk.rootExponents(e);
+		assertEquals(sk.modRoot(x, e), sk.modRoot(x, d[0], d[1]));
+
+		// For quadratic residues the root is the same as the one using e^{-1} mod p'q'
+		BigInteger y = x.modPow(Crypto.TWO, n);
+		assertEquals(y.modPow(e.modInverse(sk.get_p_prime_q_prime()), n), sk.modRoot(y, e));
+	}
+
+	@Test
+	public void testCLSignatureVerifyAfterSign() {
+		BigInteger U = pk.getGeneratorS().modPow(BigInteger.TEN, n);
+		CLSignature sig = CLSignature.signMessageBlockAndCommitment(sk, pk, U, attributes, true);
+
+		List<BigInteger> ms = new Vector<>();
+		ms.add(BigInteger.ZERO);
+		ms.addAll(attributes);
+		sig = new CLSignature(sig.getA(), sig.get_e(), sig.get_v().add(BigInteger.TEN));
+		assertTrue("Signature is not valid", sig.verify(pk, ms));
+	}
+
+	@Test
+	public void testSigningTuplePool() {
+		SigningTuplePool pool = new SigningTuplePool(sk, pk, 2, 1);
+		try {
+			BigInteger U = pk.getGeneratorS().modPow(BigInteger.TEN, n);
+			List<BigInteger> ms = new Vector<>();
+			ms.add(BigInteger.ZERO);
+			ms.addAll(attributes);
+
+			SigningTuple previous = null;
+			for (int i = 0; i < 3; i++) {
+				SigningTuple tuple = pool.take();
+				assertTrue("Tuple was handed out twice", tuple != previous);
+				previous = tuple;
+
+				CLSignature sig = CLSignature.signMessageBlockAndCommitment(sk, pk, U, attributes, tuple, true);
+				assertEquals(tuple.get_e(), sig.get_e());
+				sig = new CLSignature(sig.getA(), sig.get_e(), sig.get_v().add(BigInteger.TEN));
+				assertTrue("Signature is not valid", sig.verify(pk, ms));
+			}
+			assertEquals(3, pool.getHits() + pool.getMisses());
+		} finally {
+			pool.shutdown();
+		}
+		assertEquals(0, pool.size());
+	}
+
+	@Test
+	public void testBatchCLSigner() {
+		BatchCLSigner signer = new BatchCLSigner(sk, pk);
+		signer.setVerifyAfterSign(true);
+
+		List<BigInteger> Us = new Vector<>();
+		List<List<BigInteger>> mss = new Vector<>();
+		for (int i = 0; i < 3; i++) {
+			Us.add(pk.getGeneratorS().modPow(BigInteger.valueOf(i + 1), n));
+			List<BigInteger> ms = new Vector<>(attributes);
+			ms.set(0, BigInteger.valueOf(i));
+			mss.add(ms);
+		}
+
+		List<CLSignature> sigs = signer.signMessageBlocksAndCommitments(Us, mss);
+		assertEquals(3, sigs.size());
+		for (int i = 0; i < 3; i++) {
+			CLSignature sig = sigs.get(i);
+			List<BigInteger> ms = new Vector<>();
+			ms.add(BigInteger.ZERO);
+			ms.addAll(mss.get(i));
+			sig = new CLSignature(sig.getA(), sig.get_e(), sig.get_v().add(BigInteger.valueOf(i + 1)));
+			assertTrue("Signature is not valid", sig.verify(pk, ms));
+		}
+	}
+
+	@Test
+	public void testBatchModInverse() {
+		List<BigInteger> values = new Vector<>(R);
+		List<BigInteger> inverses = Crypto.batchModInverse(values, n);
+		for (int i = 0; i < values.size(); i++) {
+			assertEquals(values.get(i).modInverse(n), inverses.get(i));
+		}
+	}
+
+	@Test
+	public void testAttributePowerCache() {
+		AttributePowerCache cache = new AttributePowerCache(100, 4);
+		AttributePowerCache.setInstance(cache);
+		try {
+			List<BigInteger> ms = new Vector<>();
+			ms.add(BigInteger.ZERO);
+			ms.addAll(attributes);
+
+			for (int i = 0; i < 2; i++) {
+				BigInteger U = pk.getGeneratorS().modPow(BigInteger.TEN, n);
+				CLSignature sig = CLSignature.signMessageBlockAndCommitment(sk, pk, U, attributes);
+				sig = new CLSignature(sig.getA(), sig.get_e(), sig.get_v().add(BigInteger.TEN));
+				assertTrue("Signature is not valid", sig.verify(pk, ms));
+
+				IdemixCredential cred = new IdemixCredential(pk, ms, sig);
+				ProofD proof = cred.createDisclosureProof(Arrays.asList(1, 2), BigInteger.ONE, BigInteger.TEN);
+				assertTrue("Proof of disclosure should verify", proof.verify(pk, BigInteger.ONE, BigInteger.TEN));
+			}
+
+			// Only the first signature computed powers; the disclosure proofs use the same
+			// generators and attributes
+			assertEquals(attributes.size(), cache.getMisses());
+			assertEquals(attributes.size() + 4, cache.getHits());
+			assertEquals((attributes.size() + 4.0) / (2 * attributes.size() + 4), cache.getHitRate(), 1e-9);
+
+			// The cache is bounded
+			AttributePowerCache small = new AttributePowerCache(4, 2);
+			for (int i = 1; i <= 10; i++) {
+				assertEquals(R.get(0).modPow(BigInteger.valueOf(i), n),
+						small.modPow(R.get(0), BigInteger.valueOf(i), n));
+			}
+			assertTrue(small.size() <= 4);
+
+			// Misses are computed using the fixed base tables
+			FixedBaseTables tables = new FixedBaseTables(n, R, pk.getSystemParameters().l_m);
+			assertEquals(Crypto.multiExp(R.subList(0, ms.size()), ms, n),
+					small.multiExp(R.subList(0, ms.size()), ms, n, tables));
+		} finally {
+			AttributePowerCache.setInstance(null);
+		}
+	}
+
+	@Test
+	public void testMultiExp() {
+		Random rnd = new Random();
+		List<BigInteger> bases = new Vector<>(R);
+		List<BigInteger> exps = new Vector<>();
+		for (int i = 0; i < bases.size(); i++) {
+			exps.add(new BigInteger(pk.getSystemParameters().l_m_commit, rnd));
+		}
+		exps.set(1, exps.get(1).negate());
+		exps.set(2, BigInteger.ZERO);
+		exps.set(4, exps.get(4).negate());
+
+		BigInteger expected = BigInteger.ONE;
+		for (int i = 0; i < bases.size(); i++) {
+			expected = expected.multiply(bases.get(i).modPow(exps.get(i), n)).mod(n);
+		}
+
+		assertEquals(expected, Crypto.multiExp(bases, exps, n));
+		assertEquals(expected, Crypto.representToBases(bases, exps, n));
+	}
+
+	@Test
+	public void testFixedBaseTables() {
+		Random rnd = new Random();
+		List<BigInteger> bases = new Vector<>();
+		List<BigInteger> exps = new Vector<>();
+		bases.add(S);
+		exps.add(new BigInteger(pk.getSystemParameters().l_v_commit, rnd).negate());
+		bases.add(Z);
+		exps.add(new BigInteger(pk.getSystemParameters().l_h, rnd));
+		for (BigInteger Ri : R) {
+			bases.add(Ri);
+			exps.add(new BigInteger(pk.getSystemParameters().l_m_commit, rnd));
+		}
+
+		FixedBaseTables tables = new FixedBaseTables(n, R, pk.getSystemParameters().l_v_commit + 1);
+		assertFalse(tables.covers(S, BigInteger.ONE));
+		assertTrue(tables.covers(R.get(0), exps.get(2)));
+		assertEquals(R.get(1).modPow(exps.get(3), n), tables.modPow(R.get(1), exps.get(3)));
+		assertEquals(Crypto.multiExp(bases, exps, n), Crypto.multiExp(bases, exps, n, tables));
+
+		// -2^maxBits has maxBits + 1 bits in absolute value
+		BigInteger edge = Crypto.TWO.pow(pk.getSystemParameters().l_v_commit + 1).negate();
+		assertFalse(tables.covers(R.get(0), edge));
+		assertEquals(R.get(0).modPow(edge, n), Crypto.multiExp(Collections.singletonList(R.get(0)),
+				Collections.singletonList(edge), n, tables));
+
+		IdemixPublicKey.setFixedBasePrecomputation(true);
+		try {
+			IdemixPublicKey key = new IdemixPublicKey(n, Z, S, R);
+			assertEquals(Crypto.multiExp(bases, exps, n), Crypto.multiExp(bases, exps, n, key.getFixedBaseTables()));
+
+			CLSignature sig = CLSignature.signMessageBlock(sk, key, attributes);
+			assertTrue("Signature is not valid", sig.verify(pk, attributes));
+			assertTrue("Signature is not valid", sig.randomize(key).verify(key, attributes));
+		} finally {
+			IdemixPublicKey.setFixedBasePrecomputation(false);
+		}
+	}
+
 	@Test
 	public void testASN1Encoding1() {
 		byte[] enc = Crypto.asn1Encode(new BigInteger("1"),
@@ -209,6 +425,22 @@ public class IRMACryptoTest {
 		assertFalse(proof.verify(pk, sig, BigInteger.TEN, nonce));
 	}
 
+	@Test
+	public void testProofSFromSigningResult() {
+		Random rnd = new Random();
+		BigInteger U = pk.getGeneratorS().modPow(BigInteger.TEN, pk.getModulus());
+		BigInteger context = new BigInteger(pk.getSystemParameters().l_h, rnd);
+		BigInteger nonce = new BigInteger(pk.getSystemParameters().l_statzk, rnd);
+
+		IdemixIssuer issuer = new IdemixIssuer(pk, sk, context);
+		SigningResult result = issuer.signWithIntermediates(U, attributes);
+		CLSignature sig = result.getSignature();
+		assertEquals(sig.getA().modPow(sig.get_e(), pk.getModulus()), result.getQ());
+
+		ProofS proof = issuer.proveSignature(result, nonce);
+		assertTrue(proof.verify(pk, sig, issuer.getContext(), nonce));
+	}
+
 	@Test
 	public void testProofSLogged() {
 		BigInteger context = new BigInteger("34911926065354700717429826907189165808787187263593066036316982805908526740809");
@@ -263,6 +495,431 @@ public class IRMACryptoTest {
 		cb.constructCredential(msg);
 	}
 
+	@Test
+	public void fullIssuanceScheduled() throws Exception {
+		Random rnd = new Random();
+		IdemixSystemParameters params = pk.getSystemParameters();
+
+		BigInteger context = new BigInteger(params.l_h, rnd);
+		IdemixIssuer issuer = new IdemixIssuer(pk, sk, context);
+		IssuanceScheduler scheduler = new IssuanceScheduler(issuer, 4, 50);
+
+		try {
+			List<CredentialBuilder> builders = new Vector<>();
+			List<CompletableFuture<IssueSignatureMessage>> futures = new Vector<>();
+			for (int i = 0; i < 3; i++) {
+				BigInteger n_1 = new BigInteger(params.l_statzk, rnd);
+				BigInteger secret = new BigInteger(params.l_m, rnd);
+				CredentialBuilder cb = new CredentialBuilder(pk, attributes, context);
+				IssueCommitmentMessage commit_msg = cb.commitToSecretAndProve(secret, n_1);
+				builders.add(cb);
+				// The last request uses the wrong nonce, so its proof does not verify
+				futures.add(scheduler.submit(commit_msg, attributes, i < 2 ? n_1 : BigInteger.TEN));
+			}
+
+			for (int i = 0; i < 2; i++) {
+				builders.get(i).constructCredential(futures.get(i).get());
+			}
+
+			try {
+				futures.get(2).get();
+				fail("Issuance with an invalid proof succeeded");
+			} catch (ExecutionException e) {
+				assertTrue(e.getCause() instanceof CredentialsException);
+			}
+		} finally {
+			scheduler.shutdown();
+		}
+	}
+
+	@Test
+	public void fullIssuanceScheduledOnSharedExecutor() throws Exception {
+		Random rnd = new Random();
+		IdemixSystemParameters params = pk.getSystemParameters();
+
+		// The issuer and the scheduler share a single thread, which must never
+		// block waiting for itself
+		ExecutorService executor = Executors.newFixedThreadPool(1);
+		BigInteger context = new BigInteger(params.l_h, rnd);
+		IdemixIssuer issuer = new IdemixIssuer(pk, sk, context);
+		issuer.setExecutor(executor);
+		IssuanceScheduler scheduler = new IssuanceScheduler(issuer, 4, 50, executor);
+
+		try {
+			// Combined proofs are verified concurrently on the executor of the issuer
+			BigInteger n_1 = new BigInteger(params.l_statzk, rnd);
+			BigInteger n_2 = CredentialBuilder.createReceiverNonce(pk);
+			CredentialBuilder cb = new CredentialBuilder(pk, attributes, context, n_2);
+			ProofListBuilder builder = new ProofListBuilder(context, n_1);
+			builder.setSecretKey(new BigInteger(params.l_m, rnd));
+			builder.addCredentialBuilder(cb);
+			IssueCommitmentMessage commit_msg = new IssueCommitmentMessage(builder.build(), n_2);
+			cb.constructCredential(scheduler.submit(commit_msg, attributes, n_1).get(30, TimeUnit.SECONDS));
+		} finally {
+			scheduler.shutdown();
+			executor.shutdown();
+		}
+	}
+
+	@Test
+	public void fullIssuanceAdmissionControlled() throws Exception {
+		Random rnd = new Random();
+		IdemixSystemParameters params = pk.getSystemParameters();
+
+		BigInteger context = new BigInteger(params.l_h, rnd);
+		IdemixIssuer issuer = new IdemixIssuer(pk, sk, context);
+		IssuerIdentifier issuerId = new IssuerIdentifier("irma-demo.Test");
+		IssuanceExecutor executor = new IssuanceExecutor(1, 10, 1);
+
+		try {
+			List<CredentialBuilder> builders = new Vector<>();
+			List<IssueCommitmentMessage> msgs = new Vector<>();
+			List<BigInteger> nonces = new Vector<>();
+			for (int i = 0; i < 4; i++) {
+				BigInteger n_1 = new BigInteger(params.l_statzk, rnd);
+				BigInteger secret = new BigInteger(params.l_m, rnd);
+				CredentialBuilder cb = new CredentialBuilder(pk, attributes, context);
+				msgs.add(cb.commitToSecretAndProve(secret, n_1));
+				nonces.add(n_1);
+				builders.add(cb);
+			}
+
+			// Submit all requests at once
+			List<CompletableFuture<IssueSignatureMessage>> futures = new Vector<>();
+			for (int i = 0; i < 4; i++) {
+				futures.add(executor.submit(issuerId, issuer, msgs.get(i), attributes, nonces.get(i), 0));
+			}
+
+			// At most one request is being processed and one is queued; the others are rejected
+			int issued = 0;
+			for (int i = 0; i < 4; i++) {
+				try {
+					builders.get(i).constructCredential(futures.get(i).get());
+					issued++;
+				} catch (ExecutionException e) {
+					assertTrue(e.getCause() instanceof RejectedExecutionException);
+				}
+			}
+			assertTrue(issued >= 1);
+			assertTrue(executor.getRejectedCount() >= 2);
+			assertEquals(4, executor.getSubmittedCount());
+			assertEquals(issued, executor.getCompletedCount());
+			assertEquals(0, executor.getQueueDepth());
+		} finally {
+			executor.shutdown();
+		}
+
+		try {
+			executor.submit(issuerId, issuer, null, attributes, BigInteger.ONE, 0).get();
+			fail("Request was admitted after shutdown");
+		} catch (ExecutionException e) {
+			assertTrue(e.getCause() instanceof RejectedExecutionException);
+		}
+	}
+
+	@Test
+	public void fullIssuanceAsync() throws Exception {
+		Random rnd = new Random();
+		IdemixSystemParameters params = pk.getSystemParameters();
+
+		BigInteger context = new BigInteger(params.l_h, rnd);
+		BigInteger n_1 = new BigInteger(params.l_statzk, rnd);
+
+		// Show a credential while issuing, so that the ProofList contains two proofs
+		IdemixCredential cred1 = new IdemixCredential(pk, attributes, CLSignature.signMessageBlock(sk, pk, attributes));
+		CredentialBuilder cb = new CredentialBuilder(pk, attributes, context);
+		ProofListBuilder builder = new ProofListBuilder(context, n_1)
+				.addProofD(cred1, Arrays.asList(1, 2))
+				.addCredentialBuilder(cb);
+		IssueCommitmentMessage commit_msg = new IssueCommitmentMessage(builder.build(), cb.getNonce2());
+
+		ExecutorService executor = Executors.newFixedThreadPool(2);
+		try {
+			IdemixIssuer issuer = new IdemixIssuer(pk, sk, context);
+			issuer.setExecutor(executor);
+			cb.setExecutor(executor);
+
+			IssueSignatureMessage msg = issuer.issueSignatureAsync(commit_msg, attributes, n_1).get();
+			IdemixCredential cred2 = cb.constructCredentialAsync(msg).get();
+			assertEquals(attributes.get(0), cred2.getAttribute(1));
+
+			try {
+				issuer.issueSignatureAsync(commit_msg, attributes, BigInteger.TEN).get();
+				fail("Issuance with an invalid proof succeeded");
+			} catch (ExecutionException e) {
+				assertTrue(e.getCause() instanceof CredentialsException);
+			}
+		} finally {
+			executor.shutdown();
+		}
+	}
+
+	@Test
+	public void testIssuanceCodec() throws Exception {
+		Random rnd = new Random();
+		IdemixSystemParameters params = pk.getSystemParameters();
+		BigInteger context = new BigInteger(params.l_h, rnd);
+		BigInteger n_1 = new BigInteger(params.l_statzk, rnd);
+
+		IdemixCredential cred1 = new IdemixCredential(pk, attributes, CLSignature.signMessageBlock(sk, pk, attributes));
+		CredentialBuilder cb = new CredentialBuilder(pk, attributes, context);
+		ProofList proofs = new ProofListBuilder(context, n_1)
+				.addProofD(cred1, Arrays.asList(1, 2))
+				.addCredentialBuilder(cb)
+				.build();
+		IssuanceRequest request = new IssuanceRequest("irma-demo.Test", 2, n_1, 0,
+				new IssueCommitmentMessage(proofs, cb.getNonce2()));
+
+		byte[] frame = IssuanceCodec.encodeRequest(42, request);
+		assertEquals(IssuanceCodec.ISSUE_REQUEST, IssuanceCodec.getType(frame));
+		assertEquals(42, IssuanceCodec.getRequestId(frame));
+
+		IssuanceRequest decoded = IssuanceCodec.decodeRequest(frame);
+		assertEquals("irma-demo.Test", decoded.getIssuer());
+		assertEquals(2, decoded.getKeyCounter());
+		assertEquals(n_1, decoded.getNonce1());
+		assertEquals(cb.getNonce2(), decoded.getMessage().getNonce2());
+
+		ProofList decodedProofs = decoded.getMessage().getCombinedProofs();
+		assertEquals(2, decodedProofs.size());
+		decodedProofs.setPublicKeys(Arrays.asList(pk, pk));
+		assertTrue("Decoded proofs should verify", decodedProofs.verify(context, n_1, true));
+
+		IdemixIssuer issuer = new IdemixIssuer(pk, sk, context);
+		IssueSignatureMessage msg = issuer.issueSignature(decoded.getMessage(), attributes, n_1);
+		cb.constructCredential(IssuanceCodec.decodeResponse(IssuanceCodec.encodeResponse(42, msg)));
+
+		assertEquals("Oops", IssuanceCodec.decodeError(IssuanceCodec.encodeError(7, "Oops")));
+	}
+
+	@Test
+	public void fullIssuanceOverServer() throws Exception {
+		Random rnd = new Random();
+		IdemixSystemParameters params = pk.getSystemParameters();
+		BigInteger context = new BigInteger(params.l_h, rnd);
+
+		IssuanceSessionStore store = new IssuanceSessionStore(params);
+		IssuanceServer server = new IssuanceServer(0, store);
+		server.addKeys("irma-demo.Test", 2, pk, sk);
+		server.start();
+		IssuanceClient client = new IssuanceClient("localhost", server.getPort());
+
+		try {
+			List<CredentialBuilder> builders = new Vector<>();
+			List<CompletableFuture<IssueSignatureMessage>> futures = new Vector<>();
+			for (int i = 0; i < 3; i++) {
+				BigInteger n_1 = store.open("irma-demo.Test", 2, context, attributes).getNonce1();
+				CredentialBuilder cb = new CredentialBuilder(pk, attributes, context);
+				// The last proof uses the wrong nonce, so it does not verify
+				IssueCommitmentMessage commit_msg = new IssueCommitmentMessage(
+						new ProofListBuilder(context, i < 2 ? n_1 : BigInteger.TEN).addCredentialBuilder(cb).build(),
+						cb.getNonce2());
+				builders.add(cb);
+				futures.add(client.issue(new IssuanceRequest("irma-demo.Test", 2, n_1, 0, commit_msg)));
+			}
+
+			for (int i = 0; i < 2; i++) {
+				builders.get(i).constructCredential(futures.get(i).get());
+			}
+
+			try {
+				futures.get(2).get();
+				fail("Issuance with an invalid proof succeeded");
+			} catch (ExecutionException e) {
+				assertTrue(e.getCause() instanceof CredentialsException);
+			}
+			assertEquals(0, client.getPendingCount());
+		} finally {
+			client.close();
+			server.close();
+			store.shutdown();
+		}
+	}
+
+	@Test
+	public void testIssuanceSessionStore() throws Exception {
+		IdemixSystemParameters params = pk.getSystemParameters();
+		IssuanceSessionStore store = new IssuanceSessionStore(params.l_statzk, 50, 10, 2);
+		try {
+			IssuanceSession session = store.open("irma-demo.Test", 2, BigInteger.ONE, attributes);
+			assertEquals(params.l_statzk, session.getNonce1().bitLength(), 8);
+			assertSame(session, store.get(session.getNonce1()));
+			assertSame(session, store.consume(session.getNonce1()));
+			assertNull(store.consume(session.getNonce1()));
+			assertEquals(0, store.size());
+
+			// A session must fix the key that signs in it
+			try {
+				store.open(null, 2, BigInteger.ONE, attributes);
+				fail("Store accepted a session without an issuer");
+			} catch (IllegalArgumentException e) {
+				// Expected
+			}
+
+			store.open("irma-demo.Test", 2, BigInteger.ONE, attributes);
+			session = store.open("irma-demo.Test", 2, BigInteger.ONE, attributes);
+			try {
+				store.open("irma-demo.Test", 2, BigInteger.ONE, attributes);
+				fail("Store accepted more sessions than its maximum");
+			} catch (IllegalStateException e) {
+				// Expected
+			}
+
+			// Expired sessions are removed by the timer
+			Thread.sleep(200);
+			assertEquals(0, store.size());
+			assertNull(store.consume(session.getNonce1()));
+		} finally {
+			store.shutdown();
+		}
+	}
+
+	@Test
+	public void fullIssuanceWithSessions() throws Exception {
+		Random rnd = new Random();
+		IdemixSystemParameters params = pk.getSystemParameters();
+		BigInteger context = new BigInteger(params.l_h, rnd);
+
+		IssuanceSessionStore store = new IssuanceSessionStore(params);
+		IssuanceServer server = new IssuanceServer(0, store);
+		server.addKeys("irma-demo.Test", 2, pk, sk);
+		Path directory = Files.createTempDirectory("journal");
+		IssuanceJournal journal = new IssuanceJournal(directory);
+		server.setJournal(journal);
+		server.start();
+		IssuanceClient client = new IssuanceClient("localhost", server.getPort());
+
+		try {
+			IssuanceSession session = store.open("irma-demo.Test", 2, context, attributes);
+			BigInteger n_1 = session.getNonce1();
+			CredentialBuilder cb = new CredentialBuilder(pk, attributes, context);
+			IssueCommitmentMessage commit_msg = new IssueCommitmentMessage(
+					new ProofListBuilder(context, n_1).addCredentialBuilder(cb).build(), cb.getNonce2());
+			IssuanceRequest request = new IssuanceRequest("irma-demo.Test", 2, n_1, 0, commit_msg);
+
+			// The request must name the key of the session
+			try {
+				client.issueSync(new IssuanceRequest("irma-demo.Other", 2, n_1, 0, commit_msg));
+				fail("Issuance with another key than that of the session succeeded");
+			} catch (CredentialsException e) {
+				// Expected
+			}
+
+			// A request with an invalid proof does not use up the session
+			CredentialBuilder other = new CredentialBuilder(pk, attributes, context);
+			IssuanceRequest invalid = new IssuanceRequest("irma-demo.Test", 2, n_1, 0,
+					new IssueCommitmentMessage(new ProofListBuilder(context, BigInteger.TEN)
+							.addCredentialBuilder(other).build(), other.getNonce2()));
+			try {
+				client.issueSync(invalid);
+				fail("Issuance with an invalid proof succeeded");
+			} catch (CredentialsException e) {
+				// Expected
+			}
+
+			IssueSignatureMessage response = client.issueSync(request);
+			cb.constructCredential(response);
+			assertTrue(store.get(n_1).isCompleted());
+
+			// A retry gets the same response, but other requests can't use the session
+			cb.constructCredential(client.issueSync(request));
+			other = new CredentialBuilder(pk, attributes, context);
+			IssuanceRequest second = new IssuanceRequest("irma-demo.Test", 2, n_1, 0,
+					new IssueCommitmentMessage(new ProofListBuilder(context, n_1)
+							.addCredentialBuilder(other).build(), other.getNonce2()));
+			try {
+				client.issueSync(second);
+				fail("Issuance session was used twice");
+			} catch (CredentialsException e) {
+				// Expected
+			}
+
+			// Only the signature that completed the session was recorded
+			journal.flush();
+			List<JournalEntry> entries = IssuanceJournal.readAll(directory);
+			assertEquals(1, entries.size());
+			assertEquals(response.getSignature().get_e(), entries.get(0).get_e());
+		} finally {
+			client.close();
+			server.close();
+			store.shutdown();
+			journal.close();
+		}
+	}
+
+	@Test
+	public void fullIssuanceIdempotent() throws Exception {
+		Random rnd = new Random();
+		IdemixSystemParameters params = pk.getSystemParameters();
+
+		BigInteger context = new BigInteger(params.l_h, rnd);
+		BigInteger n_1 = new BigInteger(params.l_statzk, rnd);
+		BigInteger secret = new BigInteger(params.l_m, rnd);
+
+		CredentialBuilder cb = new CredentialBuilder(pk, attributes, context);
+		IssueCommitmentMessage commit_msg = cb.commitToSecretAndProve(secret, n_1);
+
+		IssuanceResponseCache cache = new IssuanceResponseCache(10, 60000);
+		IdemixIssuer issuer = new IdemixIssuer(pk, sk, context);
+		issuer.setResponseCache(cache);
+
+		IssueSignatureMessage msg = issuer.issueSignature(commit_msg, attributes, n_1);
+		IssueSignatureMessage retry = issuer.issueSignature(commit_msg, attributes, n_1);
+		assertSame(msg, retry);
+		assertEquals(1, cache.getHits());
+		cb.constructCredential(retry);
+
+		// Different attributes mean a different request
+		List<BigInteger> attributes2 = new Vector<>(attributes);
+		attributes2.set(0, BigInteger.TEN);
+		assertNotSame(msg, issuer.issueSignature(commit_msg, attributes2, n_1));
+
+		// Failures are not remembered
+		for (int i = 0; i < 2; i++) {
+			try {
+				issuer.issueSignature(commit_msg, attributes, BigInteger.TEN);
+				fail("Issuance with an invalid proof succeeded");
+			} catch (CredentialsException e) {
+				// Expected
+			}
+		}
+		assertEquals(1, cache.getHits());
+		assertEquals(2, cache.size());
+
+		// Responses expire
+		IssuanceResponseCache shortCache = new IssuanceResponseCache(10, 1);
+		issuer.setResponseCache(shortCache);
+		msg = issuer.issueSignature(commit_msg, attributes, n_1);
+		Thread.sleep(5);
+		assertNotSame(msg, issuer.issueSignature(commit_msg, attributes, n_1));
+		assertEquals(0, shortCache.getHits());
+	}
+
+	@Test
+	public void fullIssuanceSpeculative() throws CredentialsException {
+		Random rnd = new Random();
+		IdemixSystemParameters params = pk.getSystemParameters();
+
+		BigInteger context = new BigInteger(params.l_h, rnd);
+		BigInteger n_1 = new BigInteger(params.l_statzk, rnd);
+		BigInteger secret = new BigInteger(params.l_m, rnd);
+
+		CredentialBuilder cb = new CredentialBuilder(pk, attributes, context);
+		IssueCommitmentMessage commit_msg = cb.commitToSecretAndProve(secret, n_1);
+
+		IdemixIssuer issuer = new IdemixIssuer(pk, sk, context);
+		issuer.setSpeculativeSigning(true);
+		IssueSignatureMessage msg = issuer.issueSignature(commit_msg, attributes, n_1);
+		cb.constructCredential(msg);
+
+		try {
+			issuer.issueSignature(commit_msg, attributes, BigInteger.TEN);
+			fail("Speculative issuance with an invalid proof returned a signature");
+		} catch (CredentialsException e) {
+			// Expected
+		}
+	}
+
 	@Test
 	public void testShowingProof() {
 		CLSignature signature = CLSignature.signMessageBlock(sk, pk, attributes);
@@ -280,6 +937,48 @@ public class IRMACryptoTest {
 		assertTrue("Proof of disclosure should verify", proof.verify(pk, context, nonce1));
 	}
 
+	@Test
+	public void testPrecomputedShowingProof() {
+		CLSignature signature1 = CLSignature.signMessageBlock(sk, pk, attributes);
+		IdemixCredential cred1 = new IdemixCredential(pk, attributes, signature1);
+		CLSignature signature2 = CLSignature.signMessageBlock(sk, pk, attributes);
+		IdemixCredential cred2 = new IdemixCredential(pk, attributes, signature2);
+
+		// Fill the pools synchronously, so that every disclosure uses a precomputation
+		DisclosureCommitmentPool pool1 = new DisclosureCommitmentPool(cred1, 2, Runnable::run);
+		DisclosureCommitmentPool pool2 = new DisclosureCommitmentPool(cred2, 2, Runnable::run);
+		assertEquals(2, pool1.size());
+		cred1.setDisclosureCommitmentPool(pool1);
+		cred2.setDisclosureCommitmentPool(pool2);
+
+		Random rnd = new Random();
+		IdemixSystemParameters params = pk.getSystemParameters();
+		BigInteger context = new BigInteger(params.l_h, rnd);
+		BigInteger nonce1 = new BigInteger(params.l_statzk, rnd);
+
+		ProofD proof1 = cred1.createDisclosureProof(Arrays.asList(1, 2), context, nonce1);
+		ProofD proof2 = cred1.createDisclosureProof(Arrays.asList(1, 2), context, nonce1);
+		assertTrue("Proof of disclosure should verify", proof1.verify(pk, context, nonce1));
+		assertTrue("Proof of disclosure should verify", proof2.verify(pk, context, nonce1));
+		assertFalse("Randomizations should not be reused", proof1.getA().equals(proof2.getA()));
+
+		// Bound proofs, for which the commitment to the secret key is computed online
+		ProofList collection = new ProofListBuilder(context, nonce1)
+				.addProofD(cred1, Arrays.asList(1, 2))
+				.addProofD(cred2, Arrays.asList(1, 3))
+				.build();
+		assertTrue("Combined disclosure proofs should verify", collection.verify(context, nonce1, true));
+
+		assertEquals(3, pool1.getHits());
+		assertEquals(1, pool2.getHits());
+		assertEquals(0, pool1.getMisses());
+
+		pool1.shutdown();
+		assertEquals(0, pool1.size());
+		cred1.createDisclosureProof(Arrays.asList(1, 2), context, nonce1);
+		assertEquals(1, pool1.getMisses());
+	}
+
 	@Test
 	public void testCombinedShowingProof() {
 		CLSignature signature1 = CLSignature.signMessageBlock(sk, pk, attributes);
@@ -301,6 +1000,141 @@ public class IRMACryptoTest {
 		assertTrue("Combined disclosure proofs should verify", collection.verify(context, nonce1, true));
 	}
 
+	@Test
+	public void testParallelProofListBuilder() throws CredentialsException {
+		Random rnd = new Random();
+		IdemixSystemParameters params = pk.getSystemParameters();
+		BigInteger context = new BigInteger(params.l_h, rnd);
+		BigInteger nonce1 = new BigInteger(params.l_statzk, rnd);
+		BigInteger n_2 = CredentialBuilder.createReceiverNonce(pk);
+
+		List<IdemixCredential> creds = new ArrayList<>();
+		for (int i = 0; i < 3; i++) {
+			creds.add(new IdemixCredential(pk, attributes, CLSignature.signMessageBlock(sk, pk, attributes)));
+		}
+		CredentialBuilder cb = new CredentialBuilder(pk, attributes, context, n_2);
+
+		ExecutorService executor = Executors.newFixedThreadPool(4);
+		try {
+			ProofListBuilder builder = new ProofListBuilder(context, nonce1);
+			builder.setExecutor(executor);
+			builder.addProofD(creds.get(0), Arrays.asList(1, 2))
+					.addCredentialBuilder(cb)
+					.addProofD(creds.get(1), Arrays.asList(1, 3))
+					.addProofD(creds.get(2), Arrays.asList(2));
+			ProofList proofs = builder.build();
+
+			// Disclosure proofs first, in the order in which they were added
+			assertEquals(4, proofs.size());
+			assertEquals(new HashSet<>(Arrays.asList(1, 3)), ((ProofD) proofs.get(1)).get_a_disclosed().keySet());
+			assertTrue(proofs.get(3) instanceof ProofU);
+			assertTrue("Combined proofs should verify", proofs.verify(context, nonce1, true));
+
+			// The issuer accepts the ProofU among them
+			IdemixIssuer issuer = new IdemixIssuer(pk, sk, context);
+			cb.constructCredential(issuer.issueSignature(new IssueCommitmentMessage(proofs, n_2), attributes, nonce1));
+		} finally {
+			executor.shutdown();
+		}
+	}
+
+	@Test
+	public void testCredentialWallet() {
+		CredentialIdentifier typeA = new CredentialIdentifier("irma-demo.MijnOverheid.ageLower");
+		CredentialIdentifier typeB = new CredentialIdentifier("irma-demo.MijnOverheid.fullName");
+		Date now = new Date();
+		Date past = new Date(now.getTime() - 1000);
+		Date future = new Date(now.getTime() + 100000);
+
+		IdemixCredential expired = new IdemixCredential(pk, attributes, CLSignature.signMessageBlock(sk, pk, attributes));
+		IdemixCredential valid = new IdemixCredential(pk, attributes, CLSignature.signMessageBlock(sk, pk, attributes));
+		IdemixCredential other = new IdemixCredential(pk, attributes, CLSignature.signMessageBlock(sk, pk, attributes));
+
+		CredentialWallet wallet = new CredentialWallet();
+		wallet.add(expired, typeA, 2, past);
+		wallet.add(valid, typeA, 2, future);
+		wallet.add(other, typeB, 2, null);
+		assertEquals(3, wallet.size());
+
+		Map<CredentialIdentifier, List<Integer>> request = new LinkedHashMap<>();
+		request.put(typeA, Arrays.asList(2, 1));
+		request.put(typeB, Arrays.asList(3));
+		List<Disclosure> selection = wallet.select(request, now);
+		assertEquals(2, selection.size());
+		assertSame(valid, selection.get(0).getCredential());
+		assertEquals(Arrays.asList(1, 2), selection.get(0).getDisclosedAttributes());
+		assertSame(other, selection.get(1).getCredential());
+
+		Random rnd = new Random();
+		IdemixSystemParameters params = pk.getSystemParameters();
+		BigInteger context = new BigInteger(params.l_h, rnd);
+		BigInteger nonce1 = new BigInteger(params.l_statzk, rnd);
+		ProofList proofs = CredentialWallet.addTo(new ProofListBuilder(context, nonce1), selection).build();
+		assertTrue("Combined disclosure proofs should verify", proofs.verify(context, nonce1, true));
+
+		// Once the valid credential expires, the request can no longer be satisfied
+		assertNull(wallet.select(request, new Date(future.getTime() + 1)));
+
+		// A credential under a newer key is preferred, even if it expires earlier
+		IdemixCredential rolled = new IdemixCredential(pk, attributes, CLSignature.signMessageBlock(sk, pk, attributes));
+		wallet.add(rolled, typeA, 3, new Date(future.getTime() - 1));
+		assertSame(rolled, wallet.select(request, now).get(0).getCredential());
+		assertSame(valid, wallet.getLatest(typeA, now).getCredential());
+		assertTrue(wallet.remove(rolled));
+
+		assertEquals(Collections.singletonList(wallet.getEntry(expired)), wallet.removeExpired(now));
+		assertEquals(2, wallet.size());
+		assertEquals(1, wallet.getEntries(typeA).size());
+		assertTrue(wallet.remove(valid));
+		assertNull(wallet.select(request, now));
+	}
+
+	@Test
+	public void testCredentialStore() throws Exception {
+		Path directory = Files.createTempDirectory("credentials");
+		CredentialStore.PublicKeyResolver resolver = (issuer, counter) -> pk;
+
+		List<IdemixCredential> creds = new ArrayList<>();
+		for (int i = 0; i < 3; i++) {
+			creds.add(new IdemixCredential(pk, attributes, CLSignature.signMessageBlock(sk, pk, attributes)));
+		}
+
+		CredentialStore store = new CredentialStore(directory, pk.getSystemParameters(), 6, 2, resolver);
+		List<Long> ids = new ArrayList<>();
+		for (IdemixCredential cred : creds) {
+			ids.add(store.put(cred, "irma-demo.Test"));
+		}
+		assertEquals(Arrays.asList(0L, 1L, 2L), ids);
+		assertEquals(3, store.size());
+
+		IdemixCredential cred = store.get(1);
+		assertEquals(creds.get(1).getSignature().getA(), cred.getSignature().getA());
+		assertEquals(creds.get(1).getSignature().get_v(), cred.getSignature().get_v());
+		assertTrue("Signature is not valid", cred.getSignature().verify(pk, attributes));
+
+		// Deleted records are reused
+		assertTrue(store.delete(0));
+		assertNull(store.get(0));
+		assertEquals(0L, store.put(creds.get(0), "irma-demo.Other"));
+		store.close();
+
+		store = new CredentialStore(directory, pk.getSystemParameters(), 6, 2, resolver);
+		try {
+			assertEquals(3, store.size());
+			assertEquals("irma-demo.Other", store.getIssuer(0));
+			assertEquals(pk.getCounter(), store.getKeyCounter(2));
+
+			Random rnd = new Random();
+			IdemixSystemParameters params = pk.getSystemParameters();
+			BigInteger context = new BigInteger(params.l_h, rnd);
+			BigInteger nonce1 = new BigInteger(params.l_statzk, rnd);
+			ProofD proof = store.get(2).createDisclosureProof(Arrays.asList(1, 2), context, nonce1);
+			assertTrue("Proof of disclosure should verify", proof.verify(pk, context, nonce1));
+		} finally {
+			store.close();
+		}
+	}
+
 	@Test
 	public void testSignature() {
 		CLSignature signature1 = CLSignature.signMessageBlock(sk, pk, attributes);
@@ -323,6 +1157,40 @@ public class IRMACryptoTest {
 		assertTrue("Combined signature should verify", collection.verify(context, nonce1, true));
 	}
 
+	@Test
+	public void testBatchSignature() {
+		CLSignature signature1 = CLSignature.signMessageBlock(sk, pk, attributes);
+		IdemixCredential cred1 = new IdemixCredential(pk, attributes, signature1);
+
+		Random rnd = new Random();
+		IdemixSystemParameters params = pk.getSystemParameters();
+		BigInteger context = new BigInteger(params.l_h, rnd);
+
+		List<BigInteger> messages = new ArrayList<>();
+		for (int i = 0; i < 5; i++)
+			messages.add(new BigInteger(256, rnd));
+
+		BatchSignature signature = new ProofListBuilder(context, messages)
+				.addProofD(cred1, Arrays.asList(1, 2))
+				.buildBatch();
+		assertEquals(5, signature.size());
+		assertEquals(1, signature.getPath(4).getSiblings().size()); // The last leaf moves up twice
+		assertTrue("Batch signature should verify", signature.verify(context, messages, true));
+		assertTrue("Signature on single message should verify",
+				signature.verify(context, messages.get(3), 3, true));
+
+		assertFalse(signature.verify(context, messages.get(3), 2, true));
+		assertFalse(signature.verify(context, messages.get(3).add(BigInteger.ONE), 3, true));
+		assertFalse(signature.verify(context, messages.subList(0, 4), true));
+		Collections.swap(messages, 0, 1);
+		assertFalse(signature.verify(context, messages, true));
+
+		// A single message needs no siblings
+		MerkleTree tree = new MerkleTree(messages.subList(0, 1));
+		assertTrue(tree.getPath(0).getSiblings().isEmpty());
+		assertTrue(tree.getPath(0).verify(messages.get(0), tree.getRoot()));
+	}
+
 	/**
 	 * Test if nonce used for signature cannot be reused in a disclosureproof
 	 */
@@ -432,6 +1300,326 @@ public class IRMACryptoTest {
 		assertTrue("Proof of disclosure should verify", proof.verify(pk, context, n_1));
 	}
 
+	@Test
+	public void fullIssuancePrecomputed() throws CredentialsException {
+		Random rnd = new Random();
+		IdemixSystemParameters params = pk.getSystemParameters();
+		BigInteger context = new BigInteger(params.l_h, rnd);
+		BigInteger n_1 = new BigInteger(params.l_statzk, rnd);
+		HolderSecret secret = HolderSecret.generate(params);
+		IdemixIssuer issuer = new IdemixIssuer(pk, sk, context);
+
+		// Fill the pool synchronously, so that every builder uses a precomputation
+		ProofUCommitmentPool pool = new ProofUCommitmentPool(pk, 3, Runnable::run);
+
+		CredentialBuilder cb = new CredentialBuilder(pk, attributes, context);
+		cb.setCommitmentPool(pool);
+		IssueCommitmentMessage commit_msg = cb.commitToSecretAndProve(secret, n_1);
+		cb.constructCredential(issuer.issueSignature(commit_msg, attributes, n_1));
+
+		// Bound proofs adopt the precomputed commitment to the secret key of the first builder
+		BigInteger n_2 = CredentialBuilder.createReceiverNonce(pk);
+		CredentialBuilder cb1 = new CredentialBuilder(pk, attributes, context, n_2);
+		CredentialBuilder cb2 = new CredentialBuilder(pk, attributes, context, n_2);
+		cb1.setCommitmentPool(pool);
+		cb2.setCommitmentPool(pool);
+		cb1.setSecret(secret);
+		ProofListBuilder builder = new ProofListBuilder(context, n_1)
+				.addCredentialBuilder(cb1)
+				.addCredentialBuilder(cb2);
+		assertNotNull(builder.getSecretKeyCommitment());
+		commit_msg = new IssueCommitmentMessage(builder.build(), n_2);
+
+		List<IssueSignatureMessage> msgs = issuer.issueSignatures(commit_msg,
+				Arrays.asList(attributes, attributes), n_1);
+		cb1.constructCredential(msgs.get(0));
+		cb2.constructCredential(msgs.get(1));
+
+		assertEquals(3, pool.getHits());
+		assertEquals(0, pool.getMisses());
+		assertEquals(1, secret.getMisses());
+		pool.shutdown();
+	}
+
+	@Test
+	public void testHolderSecret() throws CredentialsException {
+		Random rnd = new Random();
+		IdemixSystemParameters params = pk.getSystemParameters();
+		BigInteger context = new BigInteger(params.l_h, rnd);
+		BigInteger n_1 = new BigInteger(params.l_statzk, rnd);
+		IdemixIssuer issuer = new IdemixIssuer(pk, sk, context);
+		HolderSecret secret = HolderSecret.generate(params);
+
+		CredentialBuilder cb = new CredentialBuilder(pk, attributes, context);
+		IssueCommitmentMessage commit_msg = cb.commitToSecretAndProve(secret, n_1);
+		IdemixCredential cred = cb.constructCredential(issuer.issueSignature(commit_msg, attributes, n_1));
+		assertEquals(secret.getSecret(), cred.getAttribute(0));
+		assertEquals(pk.getGeneratorR(0).modPow(secret.getSecret(), pk.getModulus()), secret.getPower(pk));
+
+		// Bound issuance of two credentials reuses the cached power
+		BigInteger n_2 = CredentialBuilder.createReceiverNonce(pk);
+		CredentialBuilder cb1 = new CredentialBuilder(pk, attributes, context, n_2);
+		CredentialBuilder cb2 = new CredentialBuilder(pk, attributes, context, n_2);
+		ProofListBuilder builder = new ProofListBuilder(context, n_1);
+		builder.setSecretKey(secret);
+		builder.addProofD(cred, Arrays.asList(1, 2))
+				.addCredentialBuilder(cb1)
+				.addCredentialBuilder(cb2);
+		assertTrue(cb2.getHolderSecret() == secret);
+		commit_msg = new IssueCommitmentMessage(builder.build(), n_2);
+
+		List<IssueSignatureMessage> msgs = issuer.issueSignatures(commit_msg,
+				Arrays.asList(attributes, attributes), n_1);
+		cb1.constructCredential(msgs.get(0));
+		cb2.constructCredential(msgs.get(1));
+
+		assertEquals(1, secret.size());
+		assertEquals(1, secret.getMisses());
+		assertEquals(3, secret.getHits());
+	}
+
+	@Test
+	public void testBatchVerification() throws CredentialsException {
+		Random rnd = new Random();
+		IdemixSystemParameters params = pk.getSystemParameters();
+		BigInteger context = new BigInteger(params.l_h, rnd);
+		IdemixIssuer issuer = new IdemixIssuer(pk, sk, context);
+
+		List<CredentialBuilder> builders = new ArrayList<>();
+		List<IssueSignatureMessage> msgs = new ArrayList<>();
+		for (int i = 0; i < 4; i++) {
+			BigInteger n_1 = new BigInteger(params.l_statzk, rnd);
+			CredentialBuilder cb = new CredentialBuilder(pk, attributes, context);
+			IssueCommitmentMessage commit_msg = cb.commitToSecretAndProve(new BigInteger(params.l_m, rnd), n_1);
+			builders.add(cb);
+			msgs.add(issuer.issueSignature(commit_msg, attributes, n_1));
+		}
+
+		List<IdemixCredential> creds = CredentialBuilder.constructCredentials(builders, msgs, null);
+		assertEquals(4, creds.size());
+		assertFalse(creds.contains(null));
+
+		// A tampered signature is found by the fallback
+		CLSignature sig = msgs.get(2).getSignature();
+		msgs.set(2, new IssueSignatureMessage(new CLSignature(sig.getA(), sig.get_e(), sig.get_v().add(BigInteger.ONE)),
+				msgs.get(2).getProofS()));
+		creds = CredentialBuilder.constructCredentials(builders, msgs, null);
+		assertNull(creds.get(2));
+		assertNotNull(creds.get(0));
+		assertNotNull(creds.get(3));
+
+		// A malformed message only loses its own credential: one without a
+		// signature, and one whose proof throws while verifying
+		msgs.set(1, new IssueSignatureMessage(null, msgs.get(1).getProofS()));
+		msgs.set(2, new IssueSignatureMessage(sig, new ProofS(null, null)));
+		creds = CredentialBuilder.constructCredentials(builders, msgs, null);
+		assertNull(creds.get(1));
+		assertNull(creds.get(2));
+		assertNotNull(creds.get(0));
+		assertNotNull(creds.get(3));
+	}
+
+	@Test
+	public void testCLSignatureBatch() {
+		List<CLSignature> signatures = new ArrayList<>();
+		List<List<BigInteger>> ms = new ArrayList<>();
+		// Enough signatures to make verifyBatch combine them
+		int count = pk.getSystemParameters().l_statzk + 1;
+		for (int i = 0; i < count; i++) {
+			List<BigInteger> block = Arrays.asList(BigInteger.valueOf(i), BigInteger.TEN, BigInteger.ONE);
+			signatures.add(CLSignature.signMessageBlock(sk, pk, block));
+			ms.add(block);
+		}
+		assertTrue(CLSignature.verifyBatch(pk, signatures, ms));
+		assertTrue(CLSignature.verifyBatch(pk, signatures.subList(0, 3), ms.subList(0, 3)));
+
+		// Wrong messages
+		List<BigInteger> block = ms.get(1);
+		ms.set(1, Arrays.asList(BigInteger.TEN, BigInteger.TEN, BigInteger.ONE));
+		assertFalse(CLSignature.verifyBatch(pk, signatures, ms));
+		ms.set(1, block);
+
+		// A single sign error is noticed
+		CLSignature sig = signatures.get(0);
+		signatures.set(0, new CLSignature(pk.getModulus().subtract(sig.getA()), sig.get_e(), sig.get_v()));
+		assertFalse(CLSignature.verifyBatch(pk, signatures, ms));
+
+		// And so are two of them, which cancel out in a single random linear combination
+		sig = signatures.get(count - 1);
+		signatures.set(count - 1, new CLSignature(pk.getModulus().subtract(sig.getA()), sig.get_e(), sig.get_v()));
+		assertFalse(CLSignature.verifyBatch(pk, signatures, ms));
+		assertFalse(CLSignature.verifyBatch(pk, signatures.subList(0, 3), ms.subList(0, 3)));
+	}
+
+	@Test
+	public void testMultipleCredentialIssuance() throws CredentialsException {
+		Random rnd = new Random();
+		IdemixSystemParameters params = pk.getSystemParameters();
+		BigInteger context = new BigInteger(params.l_h, rnd);
+		BigInteger n_1 = new BigInteger(params.l_statzk, rnd);
+		BigInteger n_2 = CredentialBuilder.createReceiverNonce(pk);
+
+		List<BigInteger> attributes2 = new Vector<>(attributes);
+		attributes2.set(0, BigInteger.TEN);
+		CredentialBuilder cb1 = new CredentialBuilder(pk, attributes, context, n_2);
+		CredentialBuilder cb2 = new CredentialBuilder(pk, attributes2, context, n_2);
+
+		ProofListBuilder builder = new ProofListBuilder(context, n_1)
+				.addCredentialBuilder(cb1)
+				.addCredentialBuilder(cb2);
+		IssueCommitmentMessage commit_msg = new IssueCommitmentMessage(builder.build(), n_2);
+
+		IdemixIssuer issuer = new IdemixIssuer(pk, sk, context);
+		ExecutorService executor = Executors.newFixedThreadPool(2);
+		issuer.setExecutor(executor);
+		try {
+			List<IssueSignatureMessage> msgs = issuer.issueSignatures(commit_msg,
+					Arrays.asList(attributes, attributes2), n_1);
+			assertEquals(2, msgs.size());
+			cb1.constructCredential(msgs.get(0));
+			cb2.constructCredential(msgs.get(1));
+
+			// More credentials than commitments
+			try {
+				issuer.issueSignatures(commit_msg, Arrays.asList(attributes, attributes2, attributes), n_1);
+				fail("Issued more credentials than there are commitments");
+			} catch (CredentialsException e) {
+				// Expected
+			}
+		} finally {
+			executor.shutdown();
+		}
+	}
+
+	@Test
+	public void testIssuanceJournal() throws Exception {
+		Path directory = Files.createTempDirectory("journal");
+		IssuanceJournal journal = new IssuanceJournal(directory, 4, 1024,
+				IssuanceJournal.FsyncPolicy.ALWAYS, 0);
+		try {
+			Random rnd = new Random();
+			IdemixSystemParameters params = pk.getSystemParameters();
+			BigInteger context = new BigInteger(params.l_h, rnd);
+			IdemixIssuer issuer = new IdemixIssuer(pk, sk, context);
+			issuer.setJournal(journal);
+			issuer.setSpeculativeSigning(true);
+
+			// More signatures than slots in the ring and records per segment
+			List<BigInteger> es = new ArrayList<>();
+			for (int i = 0; i < 10; i++) {
+				BigInteger n_1 = new BigInteger(params.l_statzk, rnd);
+				CredentialBuilder cb = new CredentialBuilder(pk, attributes, context);
+				IssueCommitmentMessage commit_msg = cb.commitToSecretAndProve(new BigInteger(params.l_m, rnd), n_1);
+
+				// Speculative signatures that are discarded are not recorded
+				try {
+					issuer.issueSignature(commit_msg, attributes, BigInteger.TEN);
+					fail("Speculative issuance with an invalid proof returned a signature");
+				} catch (CredentialsException e) {
+					// Expected
+				}
+
+				// The attributes are copied, so reusing the list does not affect the record
+				List<BigInteger> attrs = new Vector<>(attributes);
+				es.add(issuer.issueSignature(commit_msg, attrs, n_1).getSignature().get_e());
+				attrs.set(0, BigInteger.TEN);
+			}
+			journal.flush();
+
+			List<JournalEntry> entries = IssuanceJournal.readAll(directory);
+			assertEquals(10, entries.size());
+			BigInteger hash = Crypto.sha256Hash(Crypto.asn1Encode(attributes.toArray(new BigInteger[0])));
+			for (int i = 0; i < entries.size(); i++) {
+				assertEquals(es.get(i), entries.get(i).get_e());
+				assertEquals(pk.getCounter(), entries.get(i).getKeyCounter());
+				assertEquals(hash, entries.get(i).getAttributeHash());
+			}
+		} finally {
+			journal.close();
+		}
+
+		// Reopening continues in a new segment
+		journal = new IssuanceJournal(directory);
+		journal.append(1, BigInteger.TEN, attributes);
+		journal.close();
+		List<JournalEntry> entries = IssuanceJournal.readAll(directory);
+		assertEquals(11, entries.size());
+		assertEquals(BigInteger.TEN, entries.get(10).get_e());
+	}
+
+	@Test
+	public void testAggregatedProofS() throws CredentialsException {
+		Random rnd = new Random();
+		IdemixSystemParameters params = pk.getSystemParameters();
+		BigInteger context = new BigInteger(params.l_h, rnd);
+		BigInteger n_1 = new BigInteger(params.l_statzk, rnd);
+		BigInteger n_2 = CredentialBuilder.createReceiverNonce(pk);
+
+		List<BigInteger> attributes2 = new Vector<>(attributes);
+		attributes2.set(0, BigInteger.TEN);
+		CredentialBuilder cb1 = new CredentialBuilder(pk, attributes, context, n_2);
+		CredentialBuilder cb2 = new CredentialBuilder(pk, attributes2, context, n_2);
+
+		ProofListBuilder builder = new ProofListBuilder(context, n_1)
+				.addCredentialBuilder(cb1)
+				.addCredentialBuilder(cb2);
+		IssueCommitmentMessage commit_msg = new IssueCommitmentMessage(builder.build(), n_2);
+
+		IdemixIssuer issuer = new IdemixIssuer(pk, sk, context);
+		IssueSignatureBundleMessage msg = issuer.issueSignatureBundle(commit_msg,
+				Arrays.asList(attributes, attributes2), n_1);
+		List<IdemixCredential> creds = CredentialBuilder.constructCredentials(Arrays.asList(cb1, cb2), msg);
+		assertEquals(2, creds.size());
+		assertEquals(BigInteger.TEN, creds.get(1).getAttribute(1));
+
+		// The proof should not verify against the signatures in a different order
+		List<CLSignature> swapped = Arrays.asList(msg.getSignatures().get(1), msg.getSignatures().get(0));
+		System.out.println("TEST: Will warn that hash doesn't match, that is expected");
+		assertFalse(msg.getProofS().verify(pk, swapped, context, n_2));
+
+		// Nor with a tampered response
+		List<BigInteger> responses = new Vector<>(msg.getProofS().get_e_responses());
+		responses.set(1, responses.get(1).add(BigInteger.ONE));
+		AggregatedProofS tampered = new AggregatedProofS(msg.getProofS().get_c(), responses);
+		assertFalse(tampered.verify(pk, msg.getSignatures(), context, n_2));
+	}
+
+	@Test(timeout = 60000)
+	public void testAggregatedProofSSpeculativeSingleThread() throws CredentialsException {
+		Random rnd = new Random();
+		IdemixSystemParameters params = pk.getSystemParameters();
+		BigInteger context = new BigInteger(params.l_h, rnd);
+		BigInteger n_1 = new BigInteger(params.l_statzk, rnd);
+		BigInteger n_2 = CredentialBuilder.createReceiverNonce(pk);
+
+		CredentialBuilder cb1 = new CredentialBuilder(pk, attributes, context, n_2);
+		CredentialBuilder cb2 = new CredentialBuilder(pk, attributes, context, n_2);
+		ProofListBuilder builder = new ProofListBuilder(context, n_1)
+				.addCredentialBuilder(cb1)
+				.addCredentialBuilder(cb2);
+		IssueCommitmentMessage commit_msg = new IssueCommitmentMessage(builder.build(), n_2);
+
+		// The speculative signing task must not wait for tasks queued behind it
+		ExecutorService executor = Executors.newFixedThreadPool(1);
+		try {
+			IdemixIssuer issuer = new IdemixIssuer(pk, sk, context);
+			issuer.setExecutor(executor);
+			issuer.setSpeculativeSigning(true);
+			IssueSignatureBundleMessage msg = issuer.issueSignatureBundle(commit_msg,
+					Arrays.asList(attributes, attributes), n_1);
+			assertEquals(2, CredentialBuilder.constructCredentials(Arrays.asList(cb1, cb2), msg).size());
+
+			try {
+				issuer.issueSignatureBundle(commit_msg, Arrays.asList(attributes, attributes), BigInteger.TEN);
+				fail("Speculative issuance with an invalid proof returned signatures");
+			} catch (CredentialsException e) {
+				// Expected
+			}
+		} finally {
+			executor.shutdown();
+		}
+	}
+
 	@Test
 	public void testWronglyBoundProofs() throws CredentialsException {
 		CLSignature signature1 = CLSignature.signMessageBlock(sk, pk, attributes);